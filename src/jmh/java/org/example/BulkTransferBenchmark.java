@@ -0,0 +1,93 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time to import a whole export with {@link BulkTransfer} into an
+ * empty {@link OffHeapRegistrationRepository}, e.g. when moving users from
+ * another system. The target is 10 million passkeys in minutes, run with
+ * {@code mvn -Pjmh verify -Djmh.args="BulkTransferBenchmark -p records=10000000"}
+ * on a machine with the memory for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BulkTransferBenchmark {
+
+    @Param({"1000000"})
+    public int records;
+
+    /**
+     * The threads decoding, 0 for one per core.
+     */
+    @Param({"0"})
+    public int threads;
+
+    private Path file;
+    private OffHeapRegistrationRepository repository;
+    private UsernameAvailability usernameAvailability;
+    private BulkTransfer bulkTransfer;
+
+    @Setup
+    public void writeExport() throws IOException {
+        file = Files.createTempFile("passkeys", ".bin");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            out.write(ByteBuffer.allocate(4).putInt(0x57414b58).array());
+            for (int n = 0; n < records; n++) {
+                out.write(CredentialRecords.store(TestRegistrations.registration(n)).array());
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyRepository() {
+        repository = new OffHeapRegistrationRepository(16 << 20, 16_000_000);
+        usernameAvailability = new UsernameAvailability(repository, records, 0.01, Duration.ofMinutes(5));
+        bulkTransfer = new BulkTransfer(repository, usernameAvailability, 1000, threads, "", "");
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkImport() {
+        usernameAvailability.close();
+        if (repository.countCredentials() != records) {
+            throw new IllegalStateException("Imported " + repository.countCredentials() + " of " + records);
+        }
+    }
+
+    @TearDown
+    public void deleteExport() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public BulkTransfer.ImportResult importAll() throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return bulkTransfer.importFrom(in);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of the ceremonies in {@link WebAuthnService}, one at a time,
+ * answered by a {@link SoftwareAuthenticator} signing with each of the
+ * algorithms. Parsing the JSON of the browser and the repository lookups
+ * the library does are measured separately, so that the verification
+ * itself is what remains in {@link #finishAssertion}.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=CeremonyBenchmark}, the
+ * gc profiler is on by default to show the allocations per operation.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CeremonyBenchmark {
+
+    private static final String USERNAME = "benchmark";
+
+    @Param({"ES256", "EDDSA", "RS256"})
+    public SoftwareAuthenticator.Algorithm algorithm;
+
+    /**
+     * Users in the repository besides the one logging in.
+     */
+    @Param({"10000"})
+    public int users;
+
+    private WebAuthnFixture fixture;
+    private SoftwareAuthenticator authenticator;
+    private ByteArray userHandle;
+    private ByteArray credentialId;
+    private String assertionJson;
+    private int registrations;
+
+    /**
+     * A new answer to a new registration for each invocation.
+     */
+    @State(Scope.Thread)
+    public static class RegistrationAnswer {
+        PublicKeyCredentialCreationOptions options;
+        String json;
+
+        @Setup(Level.Invocation)
+        public void prepare(CeremonyBenchmark benchmark) throws Exception {
+            options = benchmark.fixture.service.startRegistration("new" + benchmark.registrations++);
+            json = benchmark.authenticator.register(options.toCredentialsCreateJson());
+        }
+    }
+
+    /**
+     * A new, parsed, answer to a new re-authentication for each invocation.
+     */
+    @State(Scope.Thread)
+    public static class AssertionAnswer {
+        AssertionRequest request;
+        PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> credential;
+
+        @Setup(Level.Invocation)
+        public void prepare(CeremonyBenchmark benchmark) throws Exception {
+            request = benchmark.fixture.service.startReauthentication(USERNAME);
+            credential = PublicKeyCredential.parseAssertionResponseJson(
+                    benchmark.authenticator.authenticate(benchmark.fixture.credentialsGetJson.of(request)));
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new WebAuthnFixture();
+        TestRegistrations.fill(fixture.repository, users);
+        authenticator = new SoftwareAuthenticator(algorithm);
+        PublicKeyCredentialCreationOptions options = fixture.service.startRegistration(USERNAME);
+        fixture.service.finishRegistration(options, authenticator.register(options.toCredentialsCreateJson()));
+        userHandle = options.getUser().getId();
+        credentialId = fixture.repository.getCredentialIdsForUsername(USERNAME).iterator().next().getId();
+        assertionJson = authenticator.authenticate(fixture.credentialsGetJson.of(
+                fixture.service.startReauthentication(USERNAME)));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions startRegistration() {
+        PublicKeyCredentialCreationOptions options = fixture.service.startRegistration("start" + registrations++);
+        // not to fill the username filter with reservations
+        fixture.service.cancelRegistration(options.getUser());
+        return options;
+    }
+
+    @Benchmark
+    public Object finishRegistration(RegistrationAnswer answer) throws Exception {
+        return fixture.service.finishRegistration(answer.options, answer.json);
+    }
+
+    @Benchmark
+    public AssertionRequest startAssertion() {
+        return fixture.service.startAssertion();
+    }
+
+    @Benchmark
+    public AssertionRequest startReauthentication() {
+        return fixture.service.startReauthentication(USERNAME);
+    }
+
+    /**
+     * Without parsing, see {@link #parseAssertionResponseJson()}.
+     */
+    @Benchmark
+    public String finishAssertion(AssertionAnswer answer) throws Exception {
+        return fixture.service.finishAssertion(answer.request, answer.credential);
+    }
+
+    @Benchmark
+    public Object parseAssertionResponseJson() throws Exception {
+        return PublicKeyCredential.parseAssertionResponseJson(assertionJson);
+    }
+
+    @Benchmark
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername() {
+        return fixture.repository.getCredentialIdsForUsername(USERNAME);
+    }
+
+    @Benchmark
+    public Optional<?> getUserHandleForUsername() {
+        return fixture.repository.getUserHandleForUsername(USERNAME);
+    }
+
+    @Benchmark
+    public Optional<?> lookup() {
+        return fixture.repository.lookup(credentialId, userHandle);
+    }
+}
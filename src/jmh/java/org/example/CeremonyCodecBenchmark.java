@@ -0,0 +1,125 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the ceremonies kept in the
+ * {@link SessionStateStore} with {@link CeremonyCodec} and, for
+ * comparison, with the Jackson JSON of the library. The JSON is written
+ * with a shared ObjectMapper, as {@code toJson()} creating a new one on
+ * every call would be orders of magnitude slower. The re-authentication
+ * is of a user with {@code passkeys} passkeys, all listed in the request.
+ * The sizes of the encoded ceremonies are printed at the start of each
+ * run.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=CeremonyCodecBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CeremonyCodecBenchmark {
+
+    private static final String USERNAME = "benchmark";
+    private static final String OWNER = "0123456789ABCDEF0123456789ABCDEF";
+    private static final ObjectMapper json = JacksonCodecs.json();
+
+    @Param({"1", "10"})
+    public int passkeys;
+
+    private WebAuthnFixture fixture;
+    private PublicKeyCredentialCreationOptions registration;
+    private AssertionRequest reauthentication;
+    private byte[] registrationBinary;
+    private byte[] reauthenticationBinary;
+    private String registrationJson;
+    private String reauthenticationJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new WebAuthnFixture();
+        List<CredentialRegistration> registrations = new ArrayList<>();
+        for (int n = 0; n < passkeys; n++) {
+            registrations.add(TestRegistrations.registration(USERNAME, TestRegistrations.userHandle(0),
+                    TestRegistrations.credentialId(n), TestRegistrations.PUBLIC_KEY_COSE));
+        }
+        fixture.repository.storeAll(registrations);
+        registration = fixture.service.startRegistration("new");
+        reauthentication = fixture.service.startReauthentication(USERNAME);
+        registrationBinary = CeremonyCodec.encode(OWNER, registration);
+        reauthenticationBinary = CeremonyCodec.encode(OWNER, reauthentication);
+        registrationJson = json.writeValueAsString(registration);
+        reauthenticationJson = json.writeValueAsString(reauthentication);
+        System.out.printf("%nBytes: registration %d binary, %d JSON; re-authentication %d binary, %d JSON%n",
+                registrationBinary.length, registrationJson.getBytes(StandardCharsets.UTF_8).length,
+                reauthenticationBinary.length, reauthenticationJson.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public byte[] encodeRegistration() {
+        return CeremonyCodec.encode(OWNER, registration);
+    }
+
+    @Benchmark
+    public String encodeRegistrationJson() throws Exception {
+        return json.writeValueAsString(registration);
+    }
+
+    @Benchmark
+    public Object decodeRegistration() {
+        return CeremonyCodec.decode(registrationBinary).request();
+    }
+
+    @Benchmark
+    public Object decodeRegistrationJson() throws Exception {
+        return json.readValue(registrationJson, PublicKeyCredentialCreationOptions.class);
+    }
+
+    @Benchmark
+    public byte[] encodeReauthentication() {
+        return CeremonyCodec.encode(OWNER, reauthentication);
+    }
+
+    @Benchmark
+    public String encodeReauthenticationJson() throws Exception {
+        return json.writeValueAsString(reauthentication);
+    }
+
+    @Benchmark
+    public Object decodeReauthentication() {
+        return CeremonyCodec.decode(reauthenticationBinary).request();
+    }
+
+    @Benchmark
+    public Object decodeReauthenticationJson() throws Exception {
+        return json.readValue(reauthenticationJson, AssertionRequest.class);
+    }
+}
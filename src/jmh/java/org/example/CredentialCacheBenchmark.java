@@ -0,0 +1,98 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The throughput of the lookups the library does when verifying a login,
+ * and of the whole verification, with and without the cache of decoded
+ * passkeys of {@link OffHeapRegistrationRepository}
+ * ({@code credentialCacheBytes} 0 disables it). The lookups go to a set
+ * of {@code hotUsers} that fits in the cache, like the users logging in
+ * and re-authenticating often.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialCacheBenchmark {
+
+    private static final String USERNAME = "benchmark";
+
+    @Param({"0", "16000000"})
+    public long credentialCacheBytes;
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"1000"})
+    public int hotUsers;
+
+    private WebAuthnFixture fixture;
+    private SoftwareAuthenticator authenticator;
+
+    @State(Scope.Thread)
+    public static class AssertionAnswer {
+        AssertionRequest request;
+        PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> credential;
+
+        @Setup(Level.Invocation)
+        public void prepare(CredentialCacheBenchmark benchmark) throws Exception {
+            request = benchmark.fixture.service.startReauthentication(USERNAME);
+            credential = PublicKeyCredential.parseAssertionResponseJson(
+                    benchmark.authenticator.authenticate(benchmark.fixture.credentialsGetJson.of(request)));
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new WebAuthnFixture(new OffHeapRegistrationRepository(16 << 20, credentialCacheBytes),
+                new AuditLog("", 8192, "drop", 64 << 20, Duration.ofSeconds(1)), new VerificationExecutor(false, 0, 1000));
+        TestRegistrations.fill(fixture.repository, users);
+        authenticator = new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.ES256);
+        PublicKeyCredentialCreationOptions options = fixture.service.startRegistration(USERNAME);
+        fixture.service.finishRegistration(options, authenticator.register(options.toCredentialsCreateJson()));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> lookup() {
+        int n = ThreadLocalRandom.current().nextInt(hotUsers);
+        ByteArray credentialId = TestRegistrations.credentialId(n);
+        return fixture.repository.lookup(credentialId, TestRegistrations.userHandle(n));
+    }
+
+    @Benchmark
+    public String finishAssertion(AssertionAnswer answer) throws Exception {
+        return fixture.service.finishAssertion(answer.request, answer.credential);
+    }
+}
@@ -0,0 +1,142 @@
+package org.example;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The lookups the library does on every login, in
+ * {@link InMemoryRegistrationRepository} ({@code indexed}) and in the
+ * scanning repository it replaced ({@code scan}), with 10k to 1M passkeys.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=CredentialLookupBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CredentialLookupBenchmark {
+
+    /**
+     * The lookups as they were before the indexes, walking every passkey
+     * of every user.
+     */
+    static class ScanningRepository implements CredentialRepository {
+
+        private final Map<String, Set<RegisteredCredential>> usernameToCredential = new HashMap<>();
+        private final Map<String, Set<PublicKeyCredentialDescriptor>> usernameToKey = new HashMap<>();
+
+        void store(CredentialRegistration registration) {
+            usernameToCredential.computeIfAbsent(registration.username(), k -> new HashSet<>())
+                    .add(registration.credential());
+            usernameToKey.computeIfAbsent(registration.username(), k -> new HashSet<>())
+                    .add(registration.descriptor());
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String s) {
+            return usernameToKey.computeIfAbsent(s, k -> new HashSet<>());
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String s) {
+            return usernameToCredential.computeIfAbsent(s, k -> new HashSet<>())
+                    .stream().map(RegisteredCredential::getUserHandle).findFirst();
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            AtomicReference<String> username = new AtomicReference<>(null);
+            usernameToCredential.forEach((u, c) -> {
+                if (c.stream().anyMatch(rc -> rc.getUserHandle().equals(userHandle))) {
+                    username.set(u);
+                }
+            });
+            return Optional.ofNullable(username.get());
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return usernameToCredential.values().stream()
+                    .flatMap(Collection::stream)
+                    .filter(c -> credentialId.equals(c.getCredentialId()) && userHandle.equals(c.getUserHandle()))
+                    .findAny();
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            Set<RegisteredCredential> result = new HashSet<>();
+            usernameToCredential.forEach((u, credentials) -> credentials.forEach(c -> {
+                if (c.getCredentialId().equals(credentialId)) {
+                    result.add(c);
+                }
+            }));
+            return result;
+        }
+    }
+
+    @Param({"indexed", "scan"})
+    public String repository;
+
+    @Param({"10000", "100000", "1000000"})
+    public int credentials;
+
+    private CredentialRepository credentialRepository;
+
+    @Setup
+    public void setUp() {
+        if ("scan".equals(repository)) {
+            ScanningRepository scanning = new ScanningRepository();
+            for (int n = 0; n < credentials; n++) {
+                scanning.store(TestRegistrations.registration(n));
+            }
+            credentialRepository = scanning;
+        } else {
+            InMemoryRegistrationRepository indexed = new InMemoryRegistrationRepository();
+            TestRegistrations.fill(indexed, credentials);
+            credentialRepository = indexed;
+        }
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> lookup() {
+        int n = ThreadLocalRandom.current().nextInt(credentials);
+        return credentialRepository.lookup(TestRegistrations.credentialId(n), TestRegistrations.userHandle(n));
+    }
+
+    @Benchmark
+    public Set<RegisteredCredential> lookupAll() {
+        return credentialRepository.lookupAll(TestRegistrations.credentialId(ThreadLocalRandom.current().nextInt(credentials)));
+    }
+
+    @Benchmark
+    public Optional<String> getUsernameForUserHandle() {
+        return credentialRepository.getUsernameForUserHandle(
+                TestRegistrations.userHandle(ThreadLocalRandom.current().nextInt(credentials)));
+    }
+}
@@ -0,0 +1,193 @@
+package org.example;
+
+import com.upokecenter.cbor.CBORObject;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the answers of the browser in {@link CredentialResponses}, with
+ * {@code webauthn.transport} {@code json} and {@code binary}. The
+ * binary answers are what {@code uploadCredential} in webauthnhelpers.js
+ * posts for the same credentials. The registration has an attestation
+ * with {@code certificates} certificates of a kilobyte each. They are
+ * not valid certificates, but parsing doesn't look inside them. The bytes
+ * on the wire of each answer are printed at the start of each run.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=CredentialResponsesBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialResponsesBenchmark {
+
+    private static final byte REGISTRATION = 1;
+    private static final byte ASSERTION = 2;
+
+    @Param({"json", "binary"})
+    public String transport;
+
+    @Param({"0", "2"})
+    public int certificates;
+
+    private WebAuthnFixture fixture;
+    private CredentialResponses responses;
+    private byte[] registrationBody;
+    private byte[] assertionBody;
+    private String registrationJson;
+    private String assertionJson;
+
+    /**
+     * What the browser sent for the next registration: the JSON, or the
+     * token of the upload.
+     */
+    @State(Scope.Thread)
+    public static class RegistrationAnswer {
+        String answer;
+
+        @Setup(Level.Invocation)
+        public void upload(CredentialResponsesBenchmark benchmark) {
+            answer = benchmark.answer(benchmark.registrationJson, benchmark.registrationBody);
+        }
+    }
+
+    /**
+     * What the browser sent for the next login.
+     */
+    @State(Scope.Thread)
+    public static class AssertionAnswer {
+        String answer;
+
+        @Setup(Level.Invocation)
+        public void upload(CredentialResponsesBenchmark benchmark) {
+            answer = benchmark.answer(benchmark.assertionJson, benchmark.assertionBody);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new WebAuthnFixture();
+        responses = new CredentialResponses(fixture.stateStore, transport, Duration.ofMinutes(5));
+        SoftwareAuthenticator authenticator = new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.ES256);
+        PublicKeyCredentialCreationOptions options = fixture.service.startRegistration("benchmark");
+        var registration = PublicKeyCredential.parseRegistrationResponseJson(
+                authenticator.register(options.toCredentialsCreateJson()));
+        registration = withCertificates(registration, certificates);
+        fixture.service.finishRegistration(options, authenticator.register(options.toCredentialsCreateJson()));
+        var assertion = PublicKeyCredential.parseAssertionResponseJson(
+                authenticator.authenticate(fixture.credentialsGetJson.of(fixture.service.startAssertion())));
+
+        registrationJson = JacksonCodecs.json().writeValueAsString(registration);
+        assertionJson = JacksonCodecs.json().writeValueAsString(assertion);
+        registrationBody = body(REGISTRATION, registration.getId(), registration.getResponse().getClientDataJSON(),
+                registration.getResponse().getAttestationObject());
+        assertionBody = body(ASSERTION, assertion.getId(), assertion.getResponse().getClientDataJSON(),
+                assertion.getResponse().getAuthenticatorData(), assertion.getResponse().getSignature(),
+                assertion.getResponse().getUserHandle().orElse(ByteArray.fromHex("")));
+        System.out.printf("%nBytes: registration %d JSON, %d binary; assertion %d JSON, %d binary%n",
+                registrationJson.getBytes(StandardCharsets.UTF_8).length, registrationBody.length,
+                assertionJson.getBytes(StandardCharsets.UTF_8).length, assertionBody.length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object parseRegistration(RegistrationAnswer registration) throws IOException {
+        return responses.registration(registration.answer);
+    }
+
+    @Benchmark
+    public Object parseAssertion(AssertionAnswer assertion) throws IOException {
+        return responses.assertion(assertion.answer);
+    }
+
+    private String answer(String json, byte[] body) {
+        if ("json".equals(transport)) {
+            return json;
+        }
+        String token = responses.newToken();
+        responses.upload(token, body);
+        return token;
+    }
+
+    /**
+     * @return the credential with a packed attestation with the given
+     * number of made up certificates
+     */
+    private static PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> withCertificates(
+            PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> credential,
+            int certificates) throws Exception {
+        if (certificates == 0) {
+            return credential;
+        }
+        Random random = new Random(certificates);
+        CBORObject x5c = CBORObject.NewArray();
+        for (int i = 0; i < certificates; i++) {
+            byte[] certificate = new byte[1024];
+            random.nextBytes(certificate);
+            x5c.Add(CBORObject.FromObject(certificate));
+        }
+        byte[] signature = new byte[72];
+        random.nextBytes(signature);
+        CBORObject attestation = CBORObject.DecodeFromBytes(credential.getResponse().getAttestationObject().getBytes());
+        attestation.set("fmt", CBORObject.FromObject("packed"));
+        attestation.set("attStmt", CBORObject.NewMap()
+                .Add("alg", -7)
+                .Add("sig", signature)
+                .Add("x5c", x5c));
+        return credential.toBuilder()
+                .response(credential.getResponse().toBuilder()
+                        .attestationObject(new ByteArray(attestation.EncodeToBytes()))
+                        .build())
+                .build();
+    }
+
+    /**
+     * @return the upload of uploadCredential in webauthnhelpers.js
+     */
+    private static byte[] body(byte type, ByteArray... fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeByte(type);
+        for (ByteArray field : fields) {
+            out.writeInt(field.size());
+            out.write(field.getBytes());
+        }
+        byte[] extensions = "{}".getBytes(StandardCharsets.UTF_8);
+        out.writeInt(extensions.length);
+        out.write(extensions);
+        return bytes.toByteArray();
+    }
+}
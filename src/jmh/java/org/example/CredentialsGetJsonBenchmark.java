@@ -0,0 +1,102 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.AssertionRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What it takes to send the options of a re-authentication to the
+ * browser: with {@link CredentialsGetJson} ({@code encoder}), and as it
+ * was done before ({@code jackson}), with
+ * {@link AssertionRequest#toCredentialsGetJson()} formatted into a new
+ * script for every ceremony. Most of the time of the latter goes to
+ * creating a new ObjectMapper on every call, {@code jacksonSharedMapper}
+ * shows Jackson without that. The user has {@code passkeys} passkeys, all
+ * listed in {@code allowCredentials}.
+ * <p>
+ * The allocations are what matter here, run with the gc profiler, the
+ * default of {@code mvn -Pjmh verify -Djmh.args=CredentialsGetJsonBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialsGetJsonBenchmark {
+
+    private static final String USERNAME = "benchmark";
+    // the script each login used to send
+    private static final String SCRIPT = """
+            // raw credential JSON (binary fields b64d)
+            var c = %s;
+            // convert binary fields from base64 to bytes
+            fromB64Cred(c);
+            const cred = await navigator.credentials.get(c);
+            return createCredentialJsonForServer(cred);
+            """;
+    private static final ObjectMapper json = JacksonCodecs.json();
+
+    @Param({"1", "10", "50"})
+    public int passkeys;
+
+    private WebAuthnFixture fixture;
+    private AssertionRequest request;
+
+    @Setup
+    public void setUp() {
+        fixture = new WebAuthnFixture();
+        List<CredentialRegistration> registrations = new ArrayList<>();
+        for (int n = 0; n < passkeys; n++) {
+            registrations.add(TestRegistrations.registration(USERNAME, TestRegistrations.userHandle(0),
+                    TestRegistrations.credentialId(n), TestRegistrations.PUBLIC_KEY_COSE));
+        }
+        fixture.repository.storeAll(registrations);
+    }
+
+    /**
+     * A new challenge for each iteration, the passkeys stay the same.
+     */
+    @Setup(Level.Iteration)
+    public void startReauthentication() {
+        request = fixture.service.startReauthentication(USERNAME);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String encoder() throws Exception {
+        return fixture.credentialsGetJson.of(request);
+    }
+
+    @Benchmark
+    public String jackson() throws Exception {
+        return SCRIPT.formatted(request.toCredentialsGetJson());
+    }
+
+    @Benchmark
+    public String jacksonSharedMapper() throws Exception {
+        return SCRIPT.formatted("{\"publicKey\":" + json.writeValueAsString(request.getPublicKeyCredentialRequestOptions()) + "}");
+    }
+}
@@ -0,0 +1,124 @@
+package org.example;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.example.WebAuthnMetrics.Ceremony.LOGIN;
+
+/**
+ * What the metrics of {@link WebAuthnMetrics} add to a login, in its two
+ * requests to the server. The {@code finish} benchmarks do the same
+ * repository lookups as the library does when verifying the assertion,
+ * the instrumented one through {@link TimedCredentialRepository} and
+ * inside the timers {@link WebAuthnSession} stops there. The difference is
+ * the overhead on the assertion path, which should stay under a
+ * microsecond. The {@code start} benchmarks show the timers of starting
+ * the login, around no work.
+ * <p>
+ * Most of the overhead is reading the clock, twice per timer plus once
+ * more inside each Micrometer timer. That is slower in some virtual
+ * machines than on bare metal.
+ * </p>
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=MetricsOverheadBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+    /**
+     * The registry of the app is the Prometheus one.
+     */
+    @Param({"prometheus", "simple"})
+    public String registry;
+
+    private final ByteArray credentialId = TestRegistrations.credentialId(42);
+    private final ByteArray userHandle = TestRegistrations.userHandle(42);
+    private InMemoryRegistrationRepository repository;
+    private CredentialRepository timedRepository;
+    private WebAuthnMetrics metrics;
+    private CeremonyStore ceremonyStore;
+    private AuditLog auditLog;
+
+    @Setup
+    public void setUp() {
+        MeterRegistry meterRegistry = "simple".equals(registry)
+                ? new SimpleMeterRegistry()
+                : new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        repository = new InMemoryRegistrationRepository();
+        TestRegistrations.fill(repository, 10000);
+        ceremonyStore = new CeremonyStore(new InProcessSessionStateStore(), Duration.ofMinutes(5), 1000, 5);
+        auditLog = new AuditLog("", 8192, "drop", 64 << 20, Duration.ofSeconds(1));
+        metrics = new WebAuthnMetrics(meterRegistry, repository, ceremonyStore, new VerificationExecutor(false, 0, 1000),
+                new RateLimiter(1000, 1000, 1000, 16), auditLog, Duration.ofMinutes(1));
+        timedRepository = new TimedCredentialRepository(repository, metrics);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        metrics.close();
+        ceremonyStore.close();
+        auditLog.close();
+    }
+
+    /**
+     * The browser round trip, stopped in {@link #finishInstrumented}.
+     */
+    @State(Scope.Thread)
+    public static class Browser {
+        Timer.Sample sample = Timer.start();
+    }
+
+    @Benchmark
+    public ByteArray start() {
+        return credentialId;
+    }
+
+    @Benchmark
+    public Timer.Sample startInstrumented() {
+        metrics.start(LOGIN).record(() -> credentialId);
+        return Timer.start();
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> finish() {
+        Optional<String> username = repository.getUsernameForUserHandle(userHandle);
+        return username.isPresent() ? repository.lookup(credentialId, userHandle) : Optional.empty();
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> finishInstrumented(Browser browser) {
+        browser.sample.stop(metrics.browserRoundTrip(LOGIN));
+        return metrics.finish(LOGIN).record(() -> {
+            Optional<String> username = timedRepository.getUsernameForUserHandle(userHandle);
+            return username.isPresent() ? timedRepository.lookup(credentialId, userHandle) : Optional.empty();
+        });
+    }
+}
@@ -0,0 +1,116 @@
+package org.example;
+
+import com.vaadin.flow.server.auth.AnonymousAllowed;
+import jakarta.annotation.security.DenyAll;
+import jakarta.annotation.security.RolesAllowed;
+import org.example.views.LoginAndRegistrationView;
+import org.example.views.MainView;
+import org.example.views.ReauthenticationView;
+import org.example.views.TransferView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What checking the access adds to a navigation of a logged-in user to
+ * the {@code target} view. {@code compiled} is {@link RouteAccess}, with
+ * the rules read from the annotations when the service starts.
+ * {@code annotations} reads the same annotations on every navigation,
+ * like a checker without the compiled rules would. {@code loggedIn} is
+ * the check done before the rules, whether the user has logged in, so
+ * the difference to it is the cost of the rules.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args=NavigationBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NavigationBenchmark {
+
+    private static final Map<String, Class<?>> TARGETS = Map.of(
+            "main", MainView.class,
+            "transfer", TransferView.class,
+            "login", LoginAndRegistrationView.class);
+
+    @Param({"main", "transfer", "login"})
+    public String target;
+
+    private WebAuthnFixture fixture;
+    private WebAuthnSession session;
+    private RouteAccess routeAccess;
+    private Class<?> navigationTarget;
+
+    @Setup
+    public void setUp() {
+        fixture = new WebAuthnFixture();
+        session = fixture.session(null);
+        session.setUser("benchmark");
+        routeAccess = RouteAccess.compile(List.of(MainView.class, TransferView.class,
+                LoginAndRegistrationView.class, ReauthenticationView.class));
+        navigationTarget = TARGETS.get(target);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean loggedIn() {
+        return session.isLoggedIn();
+    }
+
+    @Benchmark
+    public RouteAccess.Decision compiled() {
+        return routeAccess.check(navigationTarget, session);
+    }
+
+    @Benchmark
+    public RouteAccess.Decision annotations() {
+        if (navigationTarget.isAnnotationPresent(DenyAll.class)) {
+            return RouteAccess.Decision.DENY;
+        }
+        if (navigationTarget.isAnnotationPresent(AnonymousAllowed.class)) {
+            return RouteAccess.Decision.ALLOW;
+        }
+        if (!session.isLoggedIn()) {
+            return RouteAccess.Decision.LOGIN;
+        }
+        RolesAllowed rolesAllowed = navigationTarget.getAnnotation(RolesAllowed.class);
+        if (rolesAllowed != null && !hasAnyRole(rolesAllowed.value())) {
+            return RouteAccess.Decision.DENY;
+        }
+        RequiresReauthentication reauthentication = navigationTarget.getAnnotation(RequiresReauthentication.class);
+        if (reauthentication != null
+                && !session.isAuthenticatedWithin(reauthentication.unit().toNanos(reauthentication.maxAge()))) {
+            return RouteAccess.Decision.REAUTHENTICATE;
+        }
+        return RouteAccess.Decision.ALLOW;
+    }
+
+    private boolean hasAnyRole(String[] roles) {
+        for (String role : roles) {
+            if (session.hasRole(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logins on one node of a {@link ReplicatedRegistrationRepository}
+ * cluster, alone and while passkeys are registered and removed on the
+ * other nodes. The logins read the local index only, so they should take
+ * the same time with 1, 3 or 5 nodes and with or without the writes. The
+ * {@code converge} benchmark is the time from registering a passkey on
+ * the last node until the first one can log in with it.
+ * <p>
+ * The nodes are connected with {@link LoopbackReplicationTransport}, so
+ * the time to converge is that of applying the change on every node,
+ * without the network. Run with
+ * {@code mvn -Pjmh verify -Djmh.args=ReplicationBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicationBenchmark {
+
+    // passkeys registered on the other nodes are removed after this many
+    // more, to keep the size of the cluster constant
+    private static final int REGISTERED = 1000;
+
+    @Param({"1", "3", "5"})
+    public int nodes;
+
+    @Param({"100000"})
+    public int users;
+
+    private final List<ReplicatedRegistrationRepository> cluster = new ArrayList<>();
+    private final List<LoopbackReplicationTransport> transports = new ArrayList<>();
+    private ReplicatedRegistrationRepository local;
+    private ReplicatedRegistrationRepository remote;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        String channel = UUID.randomUUID().toString();
+        for (int i = 0; i < nodes; i++) {
+            LoopbackReplicationTransport transport = new LoopbackReplicationTransport(channel);
+            transports.add(transport);
+            cluster.add(new ReplicatedRegistrationRepository(transport));
+        }
+        local = cluster.get(0);
+        remote = cluster.get(nodes - 1);
+        TestRegistrations.fill(local, users);
+        next = users;
+    }
+
+    @TearDown
+    public void tearDown() {
+        cluster.forEach(ReplicatedRegistrationRepository::close);
+        transports.forEach(LoopbackReplicationTransport::close);
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> login() {
+        int n = ThreadLocalRandom.current().nextInt(users);
+        return local.lookup(TestRegistrations.credentialId(n), TestRegistrations.userHandle(n));
+    }
+
+    @Benchmark
+    @Group("replicating")
+    public Optional<RegisteredCredential> loginWhileReplicating() {
+        return login();
+    }
+
+    @Benchmark
+    @Group("replicating")
+    public void registerElsewhere() {
+        register();
+    }
+
+    @Benchmark
+    public Optional<RegisteredCredential> converge() {
+        int n = register();
+        Optional<RegisteredCredential> credential;
+        do {
+            credential = local.lookup(TestRegistrations.credentialId(n), TestRegistrations.userHandle(n));
+        } while (credential.isEmpty());
+        return credential;
+    }
+
+    private int register() {
+        int n = next++;
+        remote.storeAll(List.of(TestRegistrations.registration(n)));
+        if (n - REGISTERED >= users) {
+            remote.removeCredential(TestRegistrations.credentialId(n - REGISTERED));
+        }
+        return n;
+    }
+}
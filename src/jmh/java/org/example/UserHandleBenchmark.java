@@ -0,0 +1,88 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * New user handles, and started registrations, per second with the
+ * {@link SecureRandomUserHandleGenerator} ({@code secure}) and with the
+ * single {@code java.util.Random} shared by all registrations that it
+ * replaced ({@code shared}).
+ * <p>
+ * The contention only shows with several threads, run e.g. with
+ * {@code mvn -Pjmh verify -Djmh.args="UserHandleBenchmark -t 64"} for
+ * each of 1, 4, 16 and 64 threads.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserHandleBenchmark {
+
+    /**
+     * The user handles as they were generated before.
+     */
+    static class SharedRandomUserHandleGenerator implements UserHandleGenerator {
+
+        private final Random random = new Random();
+
+        @Override
+        public ByteArray newUserHandle() {
+            byte[] bytes = new byte[SecureRandomUserHandleGenerator.HANDLE_LENGTH];
+            random.nextBytes(bytes);
+            return new ByteArray(bytes);
+        }
+    }
+
+    @Param({"secure", "shared"})
+    public String generator;
+
+    private UserHandleGenerator userHandleGenerator;
+    private WebAuthnFixture fixture;
+    private final AtomicLong registrations = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        userHandleGenerator = "shared".equals(generator)
+                ? new SharedRandomUserHandleGenerator()
+                : new SecureRandomUserHandleGenerator();
+        fixture = new WebAuthnFixture(userHandleGenerator);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public ByteArray newUserHandle() {
+        return userHandleGenerator.newUserHandle();
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions startRegistration() {
+        PublicKeyCredentialCreationOptions options = fixture.service.startRegistration("new" + registrations.incrementAndGet());
+        // not to fill the username filter with reservations
+        fixture.service.cancelRegistration(options.getUser());
+        return options;
+    }
+}
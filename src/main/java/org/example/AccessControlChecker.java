@@ -1,16 +1,25 @@
 package org.example;
 
+import com.vaadin.flow.router.AccessDeniedException;
 import com.vaadin.flow.router.BeforeEnterEvent;
 import com.vaadin.flow.router.BeforeEnterListener;
+import com.vaadin.flow.router.QueryParameters;
+import com.vaadin.flow.router.RouteData;
 import com.vaadin.flow.server.ServiceInitEvent;
 import com.vaadin.flow.server.VaadinServiceInitListener;
 import org.example.views.LoginAndRegistrationView;
+import org.example.views.ReauthenticationView;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.Map;
+
 /**
- * A trivial access control checker that navigates user to the
- * {@link LoginAndRegistrationView} if they are not logged in.
+ * A simple access control checker that navigates user to the
+ * {@link LoginAndRegistrationView} if they are not logged in, and to the
+ * {@link ReauthenticationView} if the route requires a recent
+ * re-authentication. The rules come from the annotations of the views,
+ * see {@link RouteAccess}, compiled when the service starts.
  *
  * In a real world Vaadin application one typically uses role based
  * checks or permission. Check for example {@link com.vaadin.flow.server.auth.AnnotatedViewAccessChecker}
@@ -27,18 +36,27 @@ public class AccessControlChecker implements VaadinServiceInitListener, BeforeEn
     @Autowired
     WebAuthnSession session;
 
+    private RouteAccess routeAccess;
+
     @Override
     public void serviceInit(ServiceInitEvent event) {
+        routeAccess = RouteAccess.compile(event.getSource().getRouter().getRegistry()
+                .getRegisteredRoutes().stream()
+                .<Class<?>>map(RouteData::getNavigationTarget)
+                .toList());
         event.getSource()
                 .addUIInitListener(e -> e.getUI().addBeforeEnterListener(this));
     }
 
     @Override
     public void beforeEnter(BeforeEnterEvent e) {
-        // Allow only LoginAndRegistrationView if not logged in
-        if (!session.isLoggedIn() &&
-                e.getNavigationTarget() != LoginAndRegistrationView.class) {
-            e.forwardTo(LoginAndRegistrationView.class);
+        switch (routeAccess.check(e.getNavigationTarget(), session)) {
+            case ALLOW -> {
+            }
+            case LOGIN -> e.forwardTo(LoginAndRegistrationView.class);
+            case REAUTHENTICATE -> e.forwardTo(ReauthenticationView.ROUTE, QueryParameters.simple(
+                    Map.of(ReauthenticationView.CONTINUE, e.getLocation().getPathWithQueryParameters())));
+            case DENY -> e.rerouteToError(AccessDeniedException.class);
         }
     }
 }
@@ -1,7 +1,11 @@
 package org.example;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 
 /**
  * The entry point of the Spring Boot application.
@@ -13,4 +17,19 @@ public class Application {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * The in-JVM transport for {@code webauthn.repository=replicated},
+     * unless the application defines a real {@link ReplicationTransport}.
+     * A bean method here rather than a scanned component, so that the
+     * condition sees the transports of the scanned components and
+     * configurations.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "webauthn.repository", havingValue = "replicated")
+    @ConditionalOnMissingBean(ReplicationTransport.class)
+    LoopbackReplicationTransport loopbackReplicationTransport(
+            @Value("${webauthn.replication.channel:default}") String channel) {
+        return new LoopbackReplicationTransport(channel);
+    }
+
 }
@@ -0,0 +1,279 @@
+package org.example;
+
+import jakarta.annotation.PreDestroy;
+import org.example.WebAuthnMetrics.Ceremony;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A security audit log of the ceremonies, successful and failed, written
+ * as JSON lines to gzipped files. Disabled by default, set
+ * {@code webauthn.audit.directory} to enable.
+ * <p>
+ * Recording an event doesn't touch the disk. The events are copied into
+ * a ring buffer of preallocated slots, claimed with compare-and-set, and
+ * a single writer thread appends everything there is in the buffer as a
+ * batch, flushing the file once per batch. A file is rolled over when it
+ * reaches {@code webauthn.audit.max-file-size} uncompressed bytes or when
+ * the (UTC) day changes.
+ * </p>
+ * <p>
+ * If the writer can't keep up and the buffer is full, the event is
+ * dropped and counted ({@code webauthn.audit.overflow=drop}, the default)
+ * or the recording thread waits for space ({@code block}), at most
+ * {@code webauthn.audit.block-timeout}, and then drops it. A stalled disk
+ * thus delays the ceremonies but never hangs them. The lag of the
+ * writer, events recorded but not yet written, is published in
+ * {@link WebAuthnMetrics} along with the dropped and written counts.
+ * </p>
+ */
+@Service
+public class AuditLog {
+
+    private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter
+            .ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    /**
+     * A preallocated event, reused when the ring wraps around.
+     */
+    private static final class Slot {
+        long timestamp;
+        Ceremony ceremony;
+        boolean success;
+        String username;
+        String address;
+        String failure;
+    }
+
+    private final Path directory;
+    private final boolean block;
+    private final long blockTimeoutNanos;
+    private final long maxFileSize;
+    private final Slot[] slots;
+    private final int mask;
+    // the sequence number of the event in each slot once it is complete
+    private final AtomicLongArray published;
+    // the next sequence number to claim and to write
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // used by the writer thread only
+    private final StringBuilder line = new StringBuilder(256);
+    private Writer out;
+    private long fileSize;
+    private LocalDate fileDay;
+    private int fileCount;
+
+    public AuditLog(@Value("${webauthn.audit.directory:}") String directory,
+                    @Value("${webauthn.audit.capacity:8192}") int capacity,
+                    @Value("${webauthn.audit.overflow:drop}") String overflow,
+                    @Value("${webauthn.audit.max-file-size:67108864}") long maxFileSize,
+                    @Value("${webauthn.audit.block-timeout:PT1S}") Duration blockTimeout) {
+        this.directory = directory.isEmpty() ? null : Path.of(directory);
+        this.block = "block".equals(overflow);
+        this.blockTimeoutNanos = blockTimeout.toNanos();
+        this.maxFileSize = maxFileSize;
+        // a power of two, so that the slot is a mask away from the sequence
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        if (this.directory == null) {
+            writer = null;
+        } else {
+            try {
+                Files.createDirectories(this.directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't create the audit log directory " + directory, e);
+            }
+            writer = new Thread(this::write, "audit-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * Records a ceremony.
+     *
+     * @param username the user, or null if not known, e.g. for a failed login
+     * @param address  the client address, or null if not known
+     * @param failure  the reason of a failure, null on success
+     */
+    public void record(Ceremony ceremony, String username, String address, String failure) {
+        if (writer == null) {
+            return;
+        }
+        long sequence;
+        long deadline = 0;
+        while (true) {
+            sequence = head.get();
+            if (sequence - tail.get() > mask) {
+                if (!block) {
+                    dropped.increment();
+                    return;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + blockTimeoutNanos;
+                } else if (now - deadline >= 0) {
+                    // the writer is stuck, e.g. on a full disk
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            } else if (head.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        Slot slot = slots[(int) sequence & mask];
+        slot.timestamp = System.currentTimeMillis();
+        slot.ceremony = ceremony;
+        slot.success = failure == null;
+        slot.username = username;
+        slot.address = address;
+        slot.failure = failure;
+        published.set((int) sequence & mask, sequence);
+    }
+
+    /**
+     * @return the events recorded but not written yet
+     */
+    public long getLag() {
+        return head.get() - tail.get();
+    }
+
+    public long getWritten() {
+        return tail.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void write() {
+        while (running || tail.get() != head.get()) {
+            try {
+                if (writeBatch() == 0) {
+                    // nothing to write, the next batch may as well be bigger
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            } catch (IOException e) {
+                log.error("Writing the audit log failed, retrying in a second", e);
+                closeFile();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        closeFile();
+    }
+
+    private int writeBatch() throws IOException {
+        long next = tail.get();
+        int count = 0;
+        // at most a buffer full at a time, so that the file is flushed now and then
+        while (count < slots.length && published.get((int) next & mask) == next) {
+            Slot slot = slots[(int) next & mask];
+            if (out == null || fileSize >= maxFileSize || !fileDay.equals(day(slot.timestamp))) {
+                roll(slot.timestamp);
+            }
+            format(slot);
+            out.append(line);
+            fileSize += line.length();
+            // drop the references, and let the slot be claimed again
+            slot.username = slot.address = slot.failure = null;
+            tail.set(++next);
+            count++;
+        }
+        if (count > 0) {
+            out.flush();
+        }
+        return count;
+    }
+
+    private void format(Slot slot) {
+        line.setLength(0);
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.timestamp))
+                .append("\",\"ceremony\":\"").append(slot.ceremony.tag)
+                .append("\",\"success\":").append(slot.success);
+        field("username", slot.username);
+        field("address", slot.address);
+        field("failure", slot.failure);
+        line.append("}\n");
+    }
+
+    private void field(String name, String value) {
+        if (value != null) {
+            line.append(",\"").append(name).append("\":");
+            JsonStrings.append(line, value);
+        }
+    }
+
+    private void roll(long timestamp) throws IOException {
+        closeFile();
+        Path file = directory.resolve("audit-%s-%d.jsonl.gz".formatted(
+                FILE_TIME.format(Instant.ofEpochMilli(timestamp)), fileCount++));
+        // sync flush, so that each batch is readable from the file right away
+        out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE_NEW), 1 << 16, true),
+                StandardCharsets.UTF_8), 1 << 16);
+        fileSize = 0;
+        fileDay = day(timestamp);
+    }
+
+    private static LocalDate day(long timestamp) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Closing the audit log file failed", e);
+            }
+            out = null;
+        }
+    }
+
+    @PreDestroy
+    void close() throws InterruptedException {
+        if (writer != null) {
+            // let the writer empty the buffer
+            running = false;
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+}
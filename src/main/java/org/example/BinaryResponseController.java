@@ -0,0 +1,49 @@
+package org.example;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+/**
+ * Receives the raw answers of the WebAuthn API when the binary transport
+ * is enabled, see {@link CredentialResponses}. The token in the path was
+ * generated for the ceremony and is good for a single upload.
+ */
+@RestController
+@ConditionalOnProperty(name = "webauthn.transport", havingValue = "binary")
+public class BinaryResponseController {
+
+    static final String PATH = "webauthn/response/";
+
+    private final CredentialResponses responses;
+    private final int maxResponseSize;
+
+    public BinaryResponseController(CredentialResponses responses,
+                                    @Value("${webauthn.transport.max-response-size:65536}") int maxResponseSize) {
+        this.responses = responses;
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    @PostMapping(path = "/" + PATH + "{token}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Void> upload(@PathVariable String token, HttpServletRequest request) throws IOException {
+        if (request.getContentLengthLong() > maxResponseSize) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        // the length header is optional, so read at most one byte too much to find out
+        byte[] body = request.getInputStream().readNBytes(maxResponseSize + 1);
+        if (body.length > maxResponseSize) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        return responses.upload(token, body)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter for strings: answers "definitely not added"
+ * or "maybe added". Bits are set with compare-and-set, so adding and
+ * querying never lock. Items can't be removed.
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * @param expectedItems     how many items the filter is sized for, more
+     *                          can be added at the cost of more false positives
+     * @param falsePositiveRate the wanted rate of false "maybe" answers
+     */
+    BloomFilter(long expectedItems, double falsePositiveRate) {
+        long n = Math.max(1, expectedItems);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) / 64));
+        this.words = new AtomicLongArray(words);
+        this.bits = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    }
+
+    void add(String item) {
+        long h1 = Hashing.hash(item, 0);
+        long h2 = Hashing.step(h1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Hashing.index(h1, h2, i, bits);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word;
+            while (((word = words.get(index)) & mask) == 0
+                    && !words.compareAndSet(index, word, word | mask)) {
+                // somebody set another bit of the same word, retry
+            }
+        }
+    }
+
+    boolean mightContain(String item) {
+        long h1 = Hashing.hash(item, 0);
+        long h2 = Hashing.step(h1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Hashing.index(h1, h2, i, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
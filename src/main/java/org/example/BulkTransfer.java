@@ -0,0 +1,285 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.COSEAlgorithmIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports and imports all passkeys as a stream of {@link CredentialRecords},
+ * e.g. to move users from another system or between repositories. Set
+ * {@code webauthn.bulk.import} and/or {@code webauthn.bulk.export} to a file
+ * to run them at startup, the import first.
+ * <p>
+ * The import reads the file in batches. Decoding the records, including
+ * their COSE keys, is the expensive part and runs in parallel, while the
+ * calling thread checks the decoded batches against the repository in
+ * file order and stores them with {@link RegistrationRepository#storeAll}.
+ * Only a few batches per thread are in flight, so the memory needed does
+ * not depend on the size of the file. Records with a key that doesn't
+ * decode to a public key of a known algorithm, an already known
+ * credential id, a username taken by another user handle or a user handle
+ * of another username are skipped, also when the other one is earlier in
+ * the same file.
+ * </p>
+ */
+@Service
+public class BulkTransfer implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkTransfer.class);
+    static final int MAGIC = 0x57414b58; // "WAKX"
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * @param imported the passkeys stored
+     * @param rejected the records skipped, see the class comment
+     */
+    public record ImportResult(long imported, long rejected) {
+    }
+
+    private record Decoded(List<CredentialRegistration> registrations, int rejected) {
+    }
+
+    private final RegistrationRepository repository;
+    private final UsernameAvailability usernameAvailability;
+    private final int batchSize;
+    private final int threads;
+    private final String importFile;
+    private final String exportFile;
+
+    public BulkTransfer(RegistrationRepository repository, UsernameAvailability usernameAvailability,
+                        @Value("${webauthn.bulk.batch-size:1000}") int batchSize,
+                        @Value("${webauthn.bulk.threads:0}") int threads,
+                        @Value("${webauthn.bulk.import:}") String importFile,
+                        @Value("${webauthn.bulk.export:}") String exportFile) {
+        this.repository = repository;
+        this.usernameAvailability = usernameAvailability;
+        this.batchSize = Math.max(1, batchSize);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.importFile = importFile;
+        this.exportFile = exportFile;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (!importFile.isEmpty()) {
+            long start = System.nanoTime();
+            ImportResult result;
+            try (InputStream in = Files.newInputStream(Path.of(importFile))) {
+                result = importFrom(in);
+            }
+            log.info("Imported {} passkeys from {} in {} ms, skipped {}", result.imported(), importFile,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result.rejected());
+        }
+        if (!exportFile.isEmpty()) {
+            long count;
+            try (OutputStream out = Files.newOutputStream(Path.of(exportFile))) {
+                count = export(out);
+            }
+            log.info("Exported {} passkeys to {}", count, exportFile);
+        }
+    }
+
+    /**
+     * Writes all passkeys to the stream.
+     *
+     * @return the number of passkeys written
+     */
+    public long export(OutputStream out) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        buffered.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+        long[] count = new long[1];
+        try {
+            repository.forEachRegistration(r -> {
+                try {
+                    buffered.write(CredentialRecords.store(r).array());
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        buffered.flush();
+        return count[0];
+    }
+
+    /**
+     * Reads passkeys written by {@link #export(OutputStream)} and stores
+     * the new ones.
+     *
+     * @throws IOException if the stream is not an export or is corrupted,
+     *                     the batches before that are imported
+     */
+    public ImportResult importFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a passkey export");
+        }
+        ExecutorService decoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "bulk-import");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<Decoded>> inFlight = new ArrayDeque<>();
+        long[] counts = new long[2];
+        try {
+            ByteBuffer batch;
+            while ((batch = readBatch(data)) != null) {
+                if (inFlight.size() >= threads * 2) {
+                    store(inFlight.poll(), counts);
+                }
+                ByteBuffer records = batch;
+                inFlight.add(decoders.submit(() -> decode(records)));
+            }
+            while (!inFlight.isEmpty()) {
+                store(inFlight.poll(), counts);
+            }
+        } finally {
+            decoders.shutdownNow();
+        }
+        return new ImportResult(counts[0], counts[1]);
+    }
+
+    /**
+     * @return the framed records of the next batch, or null at the end
+     */
+    private ByteBuffer readBatch(DataInputStream in) throws IOException {
+        List<byte[]> records = new ArrayList<>(batchSize);
+        int bytes = 0;
+        while (records.size() < batchSize) {
+            int size;
+            try {
+                size = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            if (size <= 0 || size > MAX_RECORD_SIZE) {
+                throw new IOException("Corrupted record in the import");
+            }
+            byte[] record = new byte[CredentialRecords.HEADER_SIZE + size];
+            ByteBuffer.wrap(record).putInt(size);
+            in.readFully(record, 4, record.length - 4);
+            records.add(record);
+            bytes += record.length;
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(bytes);
+        records.forEach(batch::put);
+        return batch.flip();
+    }
+
+    private static Decoded decode(ByteBuffer records) {
+        List<CredentialRegistration> valid = new ArrayList<>();
+        int[] rejected = new int[1];
+        int end = CredentialRecords.readAll(records, new CredentialRecords.Handler() {
+            @Override
+            public void stored(CredentialRegistration registration) {
+                if (isValidKey(registration.credential().getPublicKeyCose())) {
+                    valid.add(registration);
+                } else {
+                    rejected[0]++;
+                }
+            }
+
+            @Override
+            public void removed(ByteArray credentialId) {
+                rejected[0]++;
+            }
+
+            @Override
+            public void used(CredentialUsage usage) {
+                rejected[0]++;
+            }
+        });
+        if (end != records.limit()) {
+            throw new IllegalArgumentException("Corrupted record in the import");
+        }
+        return new Decoded(valid, rejected[0]);
+    }
+
+    private static boolean isValidKey(ByteArray publicKeyCose) {
+        try {
+            // decodes the key to a Java key, and finds out its algorithm
+            CoseKeys.decode(publicKeyCose);
+            return COSEAlgorithmIdentifier.fromPublicKey(publicKeyCose).isPresent();
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void store(Future<Decoded> decoding, long[] counts) throws IOException {
+        Decoded decoded;
+        try {
+            decoded = decoding.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        List<CredentialRegistration> accepted = new ArrayList<>(decoded.registrations().size());
+        Set<ByteArray> credentialIds = new HashSet<>();
+        // the users of the records accepted from this batch, not yet in the repository
+        Map<String, ByteArray> handles = new HashMap<>();
+        Map<ByteArray, String> usernames = new HashMap<>();
+        long rejected = decoded.rejected();
+        for (CredentialRegistration r : decoded.registrations()) {
+            ByteArray userHandle = r.credential().getUserHandle();
+            ByteArray knownHandle = handles.containsKey(r.username())
+                    ? handles.get(r.username())
+                    : repository.getUserHandleForUsername(r.username()).orElse(userHandle);
+            String knownUsername = usernames.containsKey(userHandle)
+                    ? usernames.get(userHandle)
+                    : repository.getUsernameForUserHandle(userHandle).orElse(r.username());
+            if (!knownHandle.equals(userHandle)
+                    || !knownUsername.equals(r.username())
+                    || credentialIds.contains(r.credential().getCredentialId())
+                    || !repository.lookupAll(r.credential().getCredentialId()).isEmpty()) {
+                rejected++;
+            } else {
+                accepted.add(r);
+                credentialIds.add(r.credential().getCredentialId());
+                handles.put(r.username(), userHandle);
+                usernames.put(userHandle, r.username());
+            }
+        }
+        repository.storeAll(accepted);
+        handles.forEach(usernameAvailability::registered);
+        counts[0] += accepted.size();
+        counts[1] += rejected;
+    }
+}
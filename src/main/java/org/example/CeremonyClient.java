@@ -0,0 +1,44 @@
+package org.example;
+
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The other side of the ceremonies of {@link WebAuthnSession}: whatever
+ * answers {@code navigator.credentials.create} and {@code get}.
+ * <p>
+ * In the app that is the browser of the user, see
+ * {@link CredentialResponses}. Registering another bean of this type as
+ * {@code @Primary}, e.g. a software authenticator signing the challenges
+ * itself, allows driving the real ceremonies without browsers, for
+ * example to find out how many concurrent logins a node can take.
+ * </p>
+ */
+public interface CeremonyClient {
+
+    /**
+     * Creates a passkey.
+     *
+     * @param optionsJson the credentials create JSON of the creation options
+     * @return a future for the answer to pass to {@link #registration(String)}
+     */
+    CompletableFuture<String> create(String optionsJson);
+
+    /**
+     * Authenticates with a passkey.
+     *
+     * @param optionsJson the credentials get JSON of the assertion request
+     * @return a future for the answer to pass to {@link #assertion(String)}
+     */
+    CompletableFuture<String> get(String optionsJson);
+
+    PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> registration(String answer) throws IOException;
+
+    PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> assertion(String answer) throws IOException;
+}
@@ -0,0 +1,324 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.AssertionExtensionInputs;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.COSEAlgorithmIdentifier;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobAuthenticationInput;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobRegistrationInput;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobRegistrationInput.LargeBlobSupport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialParameters;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import com.yubico.webauthn.data.RegistrationExtensionInputs;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+import com.yubico.webauthn.extension.appid.AppId;
+import com.yubico.webauthn.extension.appid.InvalidAppIdException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * A compact binary format for the pending ceremonies kept in a
+ * {@link SessionStateStore}: the {@link PublicKeyCredentialCreationOptions}
+ * of a registration or the {@link AssertionRequest} of a login, and the
+ * session that started it.
+ * <p>
+ * The JSON of the library would work too, but it is several times larger,
+ * as the binary fields are base64 encoded and every field is named, and
+ * much slower to produce and parse. Here the fields are written in a fixed
+ * order: byte arrays with a short length prefix, optional values with a
+ * presence flag and enums by name, so that the format does not depend on
+ * the order of the constants in the library.
+ * </p>
+ */
+final class CeremonyCodec {
+
+    /**
+     * A decoded ceremony.
+     *
+     * @param owner   the session that started the ceremony
+     * @param request either PublicKeyCredentialCreationOptions or AssertionRequest
+     */
+    record Ceremony(String owner, Object request) {
+    }
+
+    private static final byte VERSION = 1;
+    private static final byte REGISTRATION = 1;
+    private static final byte ASSERTION = 2;
+
+    private CeremonyCodec() {
+    }
+
+    static byte[] encode(String owner, Object request) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            if (request instanceof PublicKeyCredentialCreationOptions options) {
+                out.writeByte(REGISTRATION);
+                out.writeUTF(owner);
+                writeCreationOptions(out, options);
+            } else if (request instanceof AssertionRequest assertion) {
+                out.writeByte(ASSERTION);
+                out.writeUTF(owner);
+                writeAssertionRequest(out, assertion);
+            } else {
+                throw new IllegalArgumentException("Not a ceremony: " + request);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Ceremony decode(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unknown ceremony format");
+            }
+            byte type = in.readByte();
+            String owner = in.readUTF();
+            return switch (type) {
+                case REGISTRATION -> new Ceremony(owner, readCreationOptions(in));
+                case ASSERTION -> new Ceremony(owner, readAssertionRequest(in));
+                default -> throw new IllegalArgumentException("Unknown ceremony type " + type);
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeCreationOptions(DataOutputStream out, PublicKeyCredentialCreationOptions options) throws IOException {
+        out.writeUTF(options.getRp().getId());
+        out.writeUTF(options.getRp().getName());
+        out.writeUTF(options.getUser().getName());
+        out.writeUTF(options.getUser().getDisplayName());
+        writeBytes(out, options.getUser().getId());
+        writeBytes(out, options.getChallenge());
+        out.writeByte(options.getPubKeyCredParams().size());
+        for (PublicKeyCredentialParameters p : options.getPubKeyCredParams()) {
+            out.writeLong(p.getAlg().getId());
+        }
+        writeOptionalLong(out, options.getTimeout());
+        writeOptionalDescriptors(out, options.getExcludeCredentials());
+        Optional<AuthenticatorSelectionCriteria> selection = options.getAuthenticatorSelection();
+        out.writeBoolean(selection.isPresent());
+        if (selection.isPresent()) {
+            writeOptionalEnum(out, selection.get().getAuthenticatorAttachment());
+            writeOptionalEnum(out, selection.get().getResidentKey());
+            writeOptionalEnum(out, selection.get().getUserVerification());
+        }
+        out.writeUTF(options.getAttestation().name());
+        RegistrationExtensionInputs extensions = options.getExtensions();
+        writeOptionalString(out, extensions.getAppidExclude().map(AppId::getId));
+        out.writeBoolean(extensions.getCredProps());
+        writeOptionalString(out, extensions.getLargeBlob().map(l -> l.getSupport().getValue()));
+        out.writeBoolean(extensions.getUvm());
+    }
+
+    private static PublicKeyCredentialCreationOptions readCreationOptions(DataInputStream in) throws IOException {
+        RelyingPartyIdentity rp = RelyingPartyIdentity.builder().id(in.readUTF()).name(in.readUTF()).build();
+        UserIdentity user = UserIdentity.builder().name(in.readUTF()).displayName(in.readUTF()).id(readBytes(in)).build();
+        ByteArray challenge = readBytes(in);
+        List<PublicKeyCredentialParameters> params = new ArrayList<>();
+        for (int i = in.readByte(); i > 0; i--) {
+            long alg = in.readLong();
+            params.add(PublicKeyCredentialParameters.builder()
+                    .alg(COSEAlgorithmIdentifier.fromId(alg)
+                            .orElseThrow(() -> new IllegalArgumentException("Unknown algorithm " + alg)))
+                    .build());
+        }
+        var builder = PublicKeyCredentialCreationOptions.builder()
+                .rp(rp)
+                .user(user)
+                .challenge(challenge)
+                .pubKeyCredParams(params)
+                .timeout(readOptionalLong(in))
+                .excludeCredentials(readOptionalDescriptors(in).map(Set::copyOf));
+        if (in.readBoolean()) {
+            builder.authenticatorSelection(AuthenticatorSelectionCriteria.builder()
+                    .authenticatorAttachment(readOptionalEnum(in, AuthenticatorAttachment::valueOf))
+                    .residentKey(readOptionalEnum(in, ResidentKeyRequirement::valueOf).orElse(null))
+                    .userVerification(readOptionalEnum(in, UserVerificationRequirement::valueOf).orElse(null))
+                    .build());
+        }
+        builder.attestation(AttestationConveyancePreference.valueOf(in.readUTF()));
+        var extensions = RegistrationExtensionInputs.builder()
+                .appidExclude(readOptionalAppId(in))
+                .credProps(in.readBoolean());
+        readOptionalString(in).ifPresent(support -> extensions.largeBlob(new LargeBlobRegistrationInput(new LargeBlobSupport(support))));
+        if (in.readBoolean()) {
+            extensions.uvm();
+        }
+        return builder.extensions(extensions.build()).build();
+    }
+
+    private static void writeAssertionRequest(DataOutputStream out, AssertionRequest request) throws IOException {
+        PublicKeyCredentialRequestOptions options = request.getPublicKeyCredentialRequestOptions();
+        writeBytes(out, options.getChallenge());
+        writeOptionalLong(out, options.getTimeout());
+        writeOptionalString(out, Optional.ofNullable(options.getRpId()));
+        writeOptionalDescriptors(out, options.getAllowCredentials());
+        writeOptionalEnum(out, options.getUserVerification());
+        AssertionExtensionInputs extensions = options.getExtensions();
+        writeOptionalString(out, extensions.getAppid().map(AppId::getId));
+        Optional<LargeBlobAuthenticationInput> largeBlob = extensions.getLargeBlob();
+        out.writeBoolean(largeBlob.isPresent());
+        if (largeBlob.isPresent()) {
+            out.writeBoolean(largeBlob.get().getRead());
+            out.writeBoolean(largeBlob.get().getWrite().isPresent());
+            if (largeBlob.get().getWrite().isPresent()) {
+                writeBytes(out, largeBlob.get().getWrite().get());
+            }
+        }
+        out.writeBoolean(extensions.getUvm());
+        writeOptionalString(out, request.getUsername());
+        out.writeBoolean(request.getUserHandle().isPresent());
+        if (request.getUserHandle().isPresent()) {
+            writeBytes(out, request.getUserHandle().get());
+        }
+    }
+
+    private static AssertionRequest readAssertionRequest(DataInputStream in) throws IOException {
+        var options = PublicKeyCredentialRequestOptions.builder()
+                .challenge(readBytes(in))
+                .timeout(readOptionalLong(in))
+                .rpId(readOptionalString(in))
+                .allowCredentials(readOptionalDescriptors(in));
+        readOptionalEnum(in, UserVerificationRequirement::valueOf).ifPresent(options::userVerification);
+        var extensions = AssertionExtensionInputs.builder().appid(readOptionalAppId(in));
+        if (in.readBoolean()) {
+            boolean read = in.readBoolean();
+            if (in.readBoolean()) {
+                extensions.largeBlob(LargeBlobAuthenticationInput.write(readBytes(in)));
+            } else if (read) {
+                extensions.largeBlob(LargeBlobAuthenticationInput.read());
+            }
+        }
+        if (in.readBoolean()) {
+            extensions.uvm();
+        }
+        var request = AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(options.extensions(extensions.build()).build())
+                .username(readOptionalString(in));
+        if (in.readBoolean()) {
+            request.userHandle(readBytes(in));
+        }
+        return request.build();
+    }
+
+    private static void writeOptionalDescriptors(DataOutputStream out,
+                                                 Optional<? extends Collection<PublicKeyCredentialDescriptor>> descriptors) throws IOException {
+        out.writeBoolean(descriptors.isPresent());
+        if (descriptors.isEmpty()) {
+            return;
+        }
+        out.writeShort(descriptors.get().size());
+        for (PublicKeyCredentialDescriptor d : descriptors.get()) {
+            writeBytes(out, d.getId());
+            Set<AuthenticatorTransport> transports = d.getTransports()
+                    .<Set<AuthenticatorTransport>>map(t -> t).orElse(Set.of());
+            out.writeByte(transports.size());
+            for (AuthenticatorTransport t : transports) {
+                out.writeUTF(t.getId());
+            }
+        }
+    }
+
+    private static Optional<List<PublicKeyCredentialDescriptor>> readOptionalDescriptors(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return Optional.empty();
+        }
+        int count = in.readUnsignedShort();
+        List<PublicKeyCredentialDescriptor> descriptors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var descriptor = PublicKeyCredentialDescriptor.builder().id(readBytes(in));
+            int transportCount = in.readByte();
+            if (transportCount > 0) {
+                SortedSet<AuthenticatorTransport> transports = new TreeSet<>();
+                for (int j = 0; j < transportCount; j++) {
+                    transports.add(AuthenticatorTransport.of(in.readUTF()));
+                }
+                descriptor.transports(transports);
+            }
+            descriptors.add(descriptor.build());
+        }
+        return Optional.of(descriptors);
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteArray bytes) throws IOException {
+        out.writeShort(bytes.size());
+        out.write(bytes.getBytes());
+    }
+
+    private static ByteArray readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new ByteArray(bytes);
+    }
+
+    private static void writeOptionalLong(DataOutputStream out, Optional<Long> value) throws IOException {
+        out.writeBoolean(value.isPresent());
+        if (value.isPresent()) {
+            out.writeLong(value.get());
+        }
+    }
+
+    private static Optional<Long> readOptionalLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? Optional.of(in.readLong()) : Optional.empty();
+    }
+
+    private static void writeOptionalString(DataOutputStream out, Optional<String> value) throws IOException {
+        out.writeBoolean(value.isPresent());
+        if (value.isPresent()) {
+            out.writeUTF(value.get());
+        }
+    }
+
+    private static Optional<String> readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? Optional.of(in.readUTF()) : Optional.empty();
+    }
+
+    private static void writeOptionalEnum(DataOutputStream out, Optional<? extends Enum<?>> value) throws IOException {
+        writeOptionalString(out, value.map(Enum::name));
+    }
+
+    private static <E extends Enum<E>> Optional<E> readOptionalEnum(DataInputStream in, Function<String, E> valueOf) throws IOException {
+        return readOptionalString(in).map(valueOf);
+    }
+
+    private static Optional<AppId> readOptionalAppId(DataInputStream in) throws IOException {
+        Optional<String> id = readOptionalString(in);
+        if (id.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new AppId(id.get()));
+        } catch (InvalidAppIdException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the server side state of the WebAuthn ceremonies (registrations
+ * and logins) that are waiting for the browser to answer. The state is
+ * keyed by the challenge sent to the browser.
+ * <p>
+ * The state must stay on the server: the library needs the original
+ * request to verify the browser's answer. But a user may also just close
+ * the tab, so the ceremonies are forgotten after a timeout. Expiration
+ * uses a time wheel with one slot per second, so the sweeper only looks at
+ * the ceremonies expiring right now. The number of pending ceremonies is
+ * capped both per session and globally. New ceremonies above the caps are
+ * rejected, so e.g. a bot reloading the login page can't grow the heap.
+ * </p>
+ * <p>
+ * The requests themselves are kept in the {@link SessionStateStore},
+ * encoded with {@link CeremonyCodec}, so that with a shared store a
+ * ceremony started on one node can be finished on another. The caps and
+ * counters are bookkeeping of this node only.
+ * </p>
+ */
+@Service
+public class CeremonyStore {
+
+    private record Ceremony(String owner, long expiresAtSecond) {
+    }
+
+    private final SessionStateStore stateStore;
+    private final ConcurrentMap<ByteArray, Ceremony> ceremonies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> pendingPerOwner = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Duration ttl;
+    private final long ttlSeconds;
+    private final int maxPending;
+    private final int maxPendingPerSession;
+    private final Set<ByteArray>[] wheel;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ceremony-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+    private long sweptUntilSecond;
+
+    @SuppressWarnings("unchecked")
+    public CeremonyStore(SessionStateStore stateStore,
+                         @Value("${webauthn.ceremony.ttl:PT5M}") Duration ttl,
+                         @Value("${webauthn.ceremony.max-pending:100000}") int maxPending,
+                         @Value("${webauthn.ceremony.max-pending-per-session:5}") int maxPendingPerSession) {
+        this.stateStore = stateStore;
+        this.ttl = ttl;
+        this.ttlSeconds = Math.max(1, ttl.toSeconds());
+        this.maxPending = maxPending;
+        this.maxPendingPerSession = maxPendingPerSession;
+        // The wheel must be longer than the TTL, so that a slot is
+        // swept before ceremonies expiring a round later are added to it
+        wheel = new Set[(int) ttlSeconds + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = ConcurrentHashMap.newKeySet();
+        }
+        sweptUntilSecond = nowSecond();
+        sweeper.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stores a registration waiting for the browser.
+     *
+     * @param owner an id of the session starting the ceremony
+     * @return the challenge to later finish the ceremony with
+     * @throws IllegalStateException if there are too many ceremonies pending
+     */
+    public ByteArray start(String owner, PublicKeyCredentialCreationOptions creationOptions) {
+        return start(owner, creationOptions.getChallenge(), creationOptions);
+    }
+
+    /**
+     * Stores a login or re-authentication waiting for the browser.
+     *
+     * @param owner an id of the session starting the ceremony
+     * @return the challenge to later finish the ceremony with
+     * @throws IllegalStateException if there are too many ceremonies pending
+     */
+    public ByteArray start(String owner, AssertionRequest assertionRequest) {
+        return start(owner, assertionRequest.getPublicKeyCredentialRequestOptions().getChallenge(), assertionRequest);
+    }
+
+    /**
+     * Removes and returns the state of a pending ceremony.
+     *
+     * @throws IllegalStateException if the ceremony has expired or was
+     *                               not started by the given owner
+     */
+    public <T> T finish(String owner, ByteArray challenge, Class<T> type) {
+        String key = key(challenge);
+        byte[] stored = stateStore.get(key);
+        CeremonyCodec.Ceremony ceremony = stored == null ? null : CeremonyCodec.decode(stored);
+        if (ceremony == null || !ceremony.owner().equals(owner)
+                || !type.isInstance(ceremony.request()) || stateStore.remove(key) == null) {
+            throw new IllegalStateException("The request has expired, please try again.");
+        }
+        // not there if the ceremony was started on another node
+        Ceremony local = ceremonies.get(challenge);
+        if (local != null) {
+            remove(challenge, local);
+        }
+        completed.increment();
+        return type.cast(ceremony.request());
+    }
+
+    /**
+     * Forgets a ceremony that failed in the browser, e.g. because the
+     * user cancelled it. Does nothing if it is already finished.
+     */
+    public void cancel(ByteArray challenge) {
+        stateStore.remove(key(challenge));
+        Ceremony ceremony = ceremonies.get(challenge);
+        if (ceremony != null) {
+            remove(challenge, ceremony);
+        }
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private ByteArray start(String owner, ByteArray challenge, Object request) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new IllegalStateException("The server is busy, please try again later.");
+        }
+        boolean[] accepted = new boolean[1];
+        pendingPerOwner.compute(owner, (o, count) -> {
+            int c = count == null ? 0 : count;
+            if (c >= maxPendingPerSession) {
+                return count;
+            }
+            accepted[0] = true;
+            return c + 1;
+        });
+        if (!accepted[0]) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new IllegalStateException("Too many unfinished requests, please try again later.");
+        }
+        try {
+            stateStore.put(key(challenge), CeremonyCodec.encode(owner, request), ttl);
+        } catch (RuntimeException e) {
+            pendingPerOwner.computeIfPresent(owner, (o, count) -> count == 1 ? null : count - 1);
+            pending.decrementAndGet();
+            throw e;
+        }
+        long expiresAtSecond = nowSecond() + ttlSeconds;
+        ceremonies.put(challenge, new Ceremony(owner, expiresAtSecond));
+        slot(expiresAtSecond).add(challenge);
+        return challenge;
+    }
+
+    private boolean remove(ByteArray challenge, Ceremony ceremony) {
+        if (!ceremonies.remove(challenge, ceremony)) {
+            // somebody else was faster
+            return false;
+        }
+        slot(ceremony.expiresAtSecond()).remove(challenge);
+        pendingPerOwner.computeIfPresent(ceremony.owner(), (o, count) -> count == 1 ? null : count - 1);
+        pending.decrementAndGet();
+        return true;
+    }
+
+    private void expire() {
+        long now = nowSecond();
+        while (sweptUntilSecond < now) {
+            sweptUntilSecond++;
+            Iterator<ByteArray> slot = slot(sweptUntilSecond).iterator();
+            while (slot.hasNext()) {
+                ByteArray challenge = slot.next();
+                Ceremony ceremony = ceremonies.get(challenge);
+                if (ceremony == null) {
+                    slot.remove();
+                } else if (ceremony.expiresAtSecond() <= now && remove(challenge, ceremony)) {
+                    stateStore.remove(key(challenge));
+                    expired.increment();
+                }
+            }
+        }
+    }
+
+    private static String key(ByteArray challenge) {
+        return "ceremony:" + challenge.getBase64Url();
+    }
+
+    private Set<ByteArray> slot(long second) {
+        return wheel[(int) Math.floorMod(second, (long) wheel.length)];
+    }
+
+    private static long nowSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    @PreDestroy
+    void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,124 @@
+package org.example;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import com.yubico.webauthn.data.ByteArray;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Decodes the COSE public keys of passkeys (RFC 9053) to Java keys, like
+ * Yubico's library does when verifying a signature, but without the
+ * signature. Used to check passkeys coming from elsewhere before they
+ * are stored, see {@link BulkTransfer}.
+ */
+final class CoseKeys {
+
+    private static final int KTY_OKP = 1;
+    private static final int KTY_EC2 = 2;
+    private static final int KTY_RSA = 3;
+    private static final int CRV_ED25519 = 6;
+    // the SubjectPublicKeyInfo of an Ed25519 key without the key itself
+    private static final byte[] ED25519_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+
+    private CoseKeys() {
+    }
+
+    /**
+     * @throws GeneralSecurityException if the key is malformed, of an
+     *                                  unsupported type or curve, or not
+     *                                  on its curve
+     */
+    static PublicKey decode(ByteArray publicKeyCose) throws GeneralSecurityException {
+        CBORObject key;
+        try {
+            key = CBORObject.DecodeFromBytes(publicKeyCose.getBytes());
+        } catch (RuntimeException e) {
+            throw new InvalidKeySpecException("Not CBOR", e);
+        }
+        if (key.getType() != CBORType.Map) {
+            throw new InvalidKeySpecException("Not a COSE key");
+        }
+        return switch (integer(key, 1)) {
+            case KTY_EC2 -> ec(key);
+            case KTY_OKP -> okp(key);
+            case KTY_RSA -> KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(
+                    new BigInteger(1, bytes(key, -1)), new BigInteger(1, bytes(key, -2))));
+            default -> throw new InvalidKeySpecException("Unsupported key type");
+        };
+    }
+
+    private static PublicKey ec(CBORObject key) throws GeneralSecurityException {
+        String curve = switch (integer(key, -1)) {
+            case 1 -> "secp256r1";
+            case 2 -> "secp384r1";
+            case 3 -> "secp521r1";
+            default -> throw new InvalidKeySpecException("Unsupported curve");
+        };
+        AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+        parameters.init(new ECGenParameterSpec(curve));
+        ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+        ECPoint point = new ECPoint(new BigInteger(1, bytes(key, -2)), new BigInteger(1, bytes(key, -3)));
+        // KeyFactory accepts any point, a signature could never be verified
+        if (!onCurve(point, spec.getCurve())) {
+            throw new InvalidKeySpecException("Point not on the curve");
+        }
+        return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, spec));
+    }
+
+    private static boolean onCurve(ECPoint point, EllipticCurve curve) {
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        BigInteger x = point.getAffineX();
+        BigInteger y = point.getAffineY();
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0) {
+            return false;
+        }
+        // y^2 = x^3 + ax + b
+        BigInteger right = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+        return y.modPow(BigInteger.TWO, p).equals(right);
+    }
+
+    private static PublicKey okp(CBORObject key) throws GeneralSecurityException {
+        if (integer(key, -1) != CRV_ED25519) {
+            throw new InvalidKeySpecException("Unsupported curve");
+        }
+        byte[] x = bytes(key, -2);
+        if (x.length != 32) {
+            throw new InvalidKeySpecException("Malformed Ed25519 key");
+        }
+        byte[] encoded = new byte[ED25519_PREFIX.length + x.length];
+        System.arraycopy(ED25519_PREFIX, 0, encoded, 0, ED25519_PREFIX.length);
+        System.arraycopy(x, 0, encoded, ED25519_PREFIX.length, x.length);
+        return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private static int integer(CBORObject key, int label) throws InvalidKeySpecException {
+        CBORObject value = key.get(CBORObject.FromObject(label));
+        if (value == null || value.getType() != CBORType.Integer || !value.CanValueFitInInt32()) {
+            throw new InvalidKeySpecException("Missing or malformed " + label);
+        }
+        return value.AsInt32Value();
+    }
+
+    private static byte[] bytes(CBORObject key, int label) throws InvalidKeySpecException {
+        CBORObject value = key.get(CBORObject.FromObject(label));
+        if (value == null || value.getType() != CBORType.ByteString) {
+            throw new InvalidKeySpecException("Missing or malformed " + label);
+        }
+        return value.GetByteString();
+    }
+}
@@ -0,0 +1,177 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+
+/**
+ * A compact binary format for {@link CredentialRegistration}s, used by the
+ * file based repository. Each record is framed as
+ * <pre>
+ * int length | int crc32c | payload
+ * </pre>
+ * so that a record torn by a crash can be detected and ignored. The
+ * payload starts with a type byte, then the fields with short length
+ * prefixes. Strings are UTF-8.
+ */
+final class CredentialRecords {
+
+    /**
+     * Receives the decoded records.
+     */
+    interface Handler {
+        void stored(CredentialRegistration registration);
+
+        void removed(ByteArray credentialId);
+
+        void used(CredentialUsage usage);
+    }
+
+    static final int HEADER_SIZE = 8;
+    static final byte STORE = 1;
+    static final byte REMOVE = 2;
+    static final byte USAGE = 3;
+
+    private CredentialRecords() {
+    }
+
+    static ByteBuffer store(CredentialRegistration registration) {
+        byte[] username = registration.username().getBytes(StandardCharsets.UTF_8);
+        RegisteredCredential credential = registration.credential();
+        Set<AuthenticatorTransport> transports = registration.descriptor().getTransports()
+                .<Set<AuthenticatorTransport>>map(t -> t).orElse(Set.of());
+        int size = 1
+                + 2 + username.length
+                + 2 + credential.getCredentialId().size()
+                + 2 + credential.getUserHandle().size()
+                + 2 + credential.getPublicKeyCose().size()
+                + 1 + transports.stream().mapToInt(t -> 2 + t.getId().length()).sum()
+                + 8;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.position(HEADER_SIZE);
+        buffer.put(STORE);
+        putBytes(buffer, username);
+        putBytes(buffer, credential.getCredentialId().getBytes());
+        putBytes(buffer, credential.getUserHandle().getBytes());
+        putBytes(buffer, credential.getPublicKeyCose().getBytes());
+        buffer.put((byte) transports.size());
+        transports.forEach(t -> putBytes(buffer, t.getId().getBytes(StandardCharsets.UTF_8)));
+        buffer.putLong(credential.getSignatureCount());
+        return frame(buffer);
+    }
+
+    static ByteBuffer remove(ByteArray credentialId) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 1 + 2 + credentialId.size());
+        buffer.position(HEADER_SIZE);
+        buffer.put(REMOVE);
+        putBytes(buffer, credentialId.getBytes());
+        return frame(buffer);
+    }
+
+    static ByteBuffer usage(CredentialUsage usage) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 1 + 2 + usage.credentialId().size() + 8 + 8);
+        buffer.position(HEADER_SIZE);
+        buffer.put(USAGE);
+        putBytes(buffer, usage.credentialId().getBytes());
+        buffer.putLong(usage.signatureCount());
+        buffer.putLong(usage.lastUsed().toEpochMilli());
+        return frame(buffer);
+    }
+
+    /**
+     * Fills in the header of a record whose payload is written after it.
+     */
+    private static ByteBuffer frame(ByteBuffer buffer) {
+        int size = buffer.position() - HEADER_SIZE;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER_SIZE, size);
+        buffer.putInt(0, size);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes records from the given buffer, starting at its position,
+     * until its limit or the first incomplete or corrupted record.
+     *
+     * @return the position after the last valid record
+     */
+    static int readAll(ByteBuffer buffer, Handler handler) {
+        CRC32C crc = new CRC32C();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining()) {
+                return start;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), size);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            try {
+                switch (payload.get()) {
+                    case STORE -> handler.stored(readStore(payload));
+                    case REMOVE -> handler.removed(new ByteArray(getBytes(payload)));
+                    case USAGE -> handler.used(new CredentialUsage(new ByteArray(getBytes(payload)),
+                            payload.getLong(), Instant.ofEpochMilli(payload.getLong())));
+                    default -> {
+                        return start;
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return start;
+            }
+            buffer.position(start + HEADER_SIZE + size);
+        }
+        return buffer.position();
+    }
+
+    private static CredentialRegistration readStore(ByteBuffer payload) {
+        String username = new String(getBytes(payload), StandardCharsets.UTF_8);
+        ByteArray credentialId = new ByteArray(getBytes(payload));
+        ByteArray userHandle = new ByteArray(getBytes(payload));
+        ByteArray publicKeyCose = new ByteArray(getBytes(payload));
+        int transportCount = payload.get() & 0xFF;
+        SortedSet<AuthenticatorTransport> transports = new TreeSet<>();
+        for (int i = 0; i < transportCount; i++) {
+            transports.add(AuthenticatorTransport.of(new String(getBytes(payload), StandardCharsets.UTF_8)));
+        }
+        long signatureCount = payload.getLong();
+        var descriptor = PublicKeyCredentialDescriptor.builder().id(credentialId);
+        if (transportCount > 0) {
+            descriptor.transports(transports);
+        }
+        return new CredentialRegistration(username, descriptor.build(),
+                RegisteredCredential.builder()
+                        .credentialId(credentialId)
+                        .userHandle(userHandle)
+                        .publicKeyCose(publicKeyCose)
+                        .signatureCount(signatureCount)
+                        .build());
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
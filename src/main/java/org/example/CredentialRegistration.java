@@ -0,0 +1,19 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+/**
+ * A single passkey of a user, as persisted by the
+ * {@link RegistrationRepository} implementations. The descriptor is what
+ * the browser gets in allowCredentials, the credential is what the WebAuthn
+ * library needs to verify assertions.
+ *
+ * @param username   the username owning the passkey
+ * @param descriptor the credential id and the transports it was created with
+ * @param credential the public key and the user handle
+ */
+public record CredentialRegistration(String username,
+                                     PublicKeyCredentialDescriptor descriptor,
+                                     RegisteredCredential credential) {
+}
@@ -0,0 +1,209 @@
+package org.example;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.vaadin.firitin.util.JsPromise;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The {@link CeremonyClient} of the app: runs the WebAuthn API in the
+ * browser and turns its answer into a {@link PublicKeyCredential} for
+ * {@link WebAuthnService}.
+ * <p>
+ * By default the browser answers with JSON, the binary fields base64url
+ * encoded, like the library expects. With {@code webauthn.transport=binary}
+ * the browser instead POSTs the raw buffers to
+ * {@link BinaryResponseController}, and only a token identifying the upload
+ * comes back via Vaadin. That saves the third added by base64 (and the
+ * escaping of the JSON string), which matters for attestation objects with
+ * certificate chains, and the server reads the fields directly instead of
+ * building a JSON tree. The format is a version and type byte followed by
+ * the fields, each prefixed with a four byte length:
+ * </p>
+ * <ul>
+ *     <li>registration (1): rawId, clientDataJSON, attestationObject, client extension results</li>
+ *     <li>login (2): rawId, clientDataJSON, authenticatorData, signature, userHandle, client extension results</li>
+ * </ul>
+ * <p>
+ * The client extension results are small and kept as JSON. The uploads
+ * wait in the {@link SessionStateStore} until the ceremony finishes.
+ * </p>
+ */
+@Component
+public class CredentialResponses implements CeremonyClient {
+
+    private static final byte VERSION = 1;
+    private static final byte REGISTRATION = 1;
+    private static final byte ASSERTION = 2;
+    // an issued token, nothing uploaded yet
+    private static final byte[] WAITING = new byte[0];
+    // JacksonCodecs.json() creates a new mapper on every call, and so do
+    // the parse*ResponseJson methods of PublicKeyCredential, which costs
+    // milliseconds per answer
+    private static final ObjectMapper json = JacksonCodecs.json();
+    private static final TypeReference<PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs>> REGISTRATION_JSON = new TypeReference<>() {
+    };
+    private static final TypeReference<PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs>> ASSERTION_JSON = new TypeReference<>() {
+    };
+
+    private final SessionStateStore stateStore;
+    private final boolean binary;
+    private final Duration ttl;
+    private final SecureRandom random = new SecureRandom();
+
+    public CredentialResponses(SessionStateStore stateStore,
+                               @Value("${webauthn.transport:json}") String transport,
+                               @Value("${webauthn.ceremony.ttl:PT5M}") Duration ttl) {
+        this.stateStore = stateStore;
+        this.binary = "binary".equals(transport);
+        this.ttl = ttl;
+    }
+
+    @Override
+    public CompletableFuture<String> create(String optionsJson) {
+        if (!binary) {
+            return JsPromise.computeString("return await webauthnCreate($0);", optionsJson);
+        }
+        String token = newToken();
+        return JsPromise.computeString("return await webauthnCreateBinary($0, $1);", optionsJson, url(token))
+                .thenApply(ignored -> token);
+    }
+
+    @Override
+    public CompletableFuture<String> get(String optionsJson) {
+        if (!binary) {
+            return JsPromise.computeString("return await webauthnGet($0);", optionsJson);
+        }
+        String token = newToken();
+        return JsPromise.computeString("return await webauthnGetBinary($0, $1);", optionsJson, url(token))
+                .thenApply(ignored -> token);
+    }
+
+    @Override
+    public PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> registration(String answer) throws IOException {
+        if (!binary) {
+            return json.readValue(answer, REGISTRATION_JSON);
+        }
+        ByteBuffer in = take(answer, REGISTRATION);
+        try {
+            ByteArray id = field(in);
+            ByteArray clientDataJSON = field(in);
+            ByteArray attestationObject = field(in);
+            var response = AuthenticatorAttestationResponse.builder()
+                    .attestationObject(attestationObject)
+                    .clientDataJSON(clientDataJSON)
+                    .build();
+            ByteArray extensions = field(in);
+            return PublicKeyCredential.<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs>builder()
+                    .id(id)
+                    .response(response)
+                    .clientExtensionResults(isEmpty(extensions)
+                            ? ClientRegistrationExtensionOutputs.builder().build()
+                            : json.readValue(extensions.getBytes(), ClientRegistrationExtensionOutputs.class))
+                    .build();
+        } catch (BufferUnderflowException | IllegalArgumentException | Base64UrlException e) {
+            throw new IOException("Malformed registration response", e);
+        }
+    }
+
+    @Override
+    public PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> assertion(String answer) throws IOException {
+        if (!binary) {
+            return json.readValue(answer, ASSERTION_JSON);
+        }
+        ByteBuffer in = take(answer, ASSERTION);
+        try {
+            ByteArray id = field(in);
+            ByteArray clientDataJSON = field(in);
+            ByteArray authenticatorData = field(in);
+            ByteArray signature = field(in);
+            ByteArray userHandle = field(in);
+            var response = AuthenticatorAssertionResponse.builder()
+                    .authenticatorData(authenticatorData)
+                    .clientDataJSON(clientDataJSON)
+                    .signature(signature)
+                    .userHandle(userHandle.isEmpty() ? Optional.empty() : Optional.of(userHandle))
+                    .build();
+            ByteArray extensions = field(in);
+            return PublicKeyCredential.<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs>builder()
+                    .id(id)
+                    .response(response)
+                    .clientExtensionResults(isEmpty(extensions)
+                            ? ClientAssertionExtensionOutputs.builder().build()
+                            : json.readValue(extensions.getBytes(), ClientAssertionExtensionOutputs.class))
+                    .build();
+        } catch (BufferUnderflowException | IllegalArgumentException | Base64UrlException e) {
+            throw new IOException("Malformed assertion response", e);
+        }
+    }
+
+    /**
+     * Saves an upload of the browser for the ceremony waiting for it.
+     *
+     * @return false if the token is unknown or already used
+     */
+    boolean upload(String token, byte[] body) {
+        // only the first of concurrent uploads with the same token wins
+        return stateStore.replace(key(token), WAITING, body, ttl);
+    }
+
+    /**
+     * @return a new token for a single upload
+     */
+    String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        stateStore.put(key(token), WAITING, ttl);
+        return token;
+    }
+
+    private ByteBuffer take(String token, byte type) throws IOException {
+        byte[] body = stateStore.remove(key(token));
+        if (body == null || body.length < 2 || body[0] != VERSION || body[1] != type) {
+            throw new IOException("No response from the browser");
+        }
+        return ByteBuffer.wrap(body, 2, body.length - 2);
+    }
+
+    private static String url(String token) {
+        return BinaryResponseController.PATH + token;
+    }
+
+    private static String key(String token) {
+        return "response:" + token;
+    }
+
+    private static ByteArray field(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new ByteArray(bytes);
+    }
+
+    private static boolean isEmpty(ByteArray extensionsJson) {
+        return extensionsJson.isEmpty() || Arrays.equals(extensionsJson.getBytes(), "{}".getBytes());
+    }
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+
+import java.time.Instant;
+
+/**
+ * The state of a passkey after a successful login.
+ *
+ * @param credentialId   the passkey used
+ * @param signatureCount the signature counter reported by the authenticator,
+ *                       used by the WebAuthn library to detect cloned
+ *                       authenticators
+ * @param lastUsed       when the login happened
+ */
+public record CredentialUsage(ByteArray credentialId, long signatureCount, Instant lastUsed) {
+
+    /**
+     * Combines two updates of the same passkey, keeping the highest
+     * counter and the latest time.
+     */
+    CredentialUsage merge(CredentialUsage other) {
+        return new CredentialUsage(credentialId,
+                Math.max(signatureCount, other.signatureCount),
+                lastUsed.isAfter(other.lastUsed) ? lastUsed : other.lastUsed);
+    }
+}
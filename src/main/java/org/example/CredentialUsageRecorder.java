@@ -0,0 +1,81 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the signature counters and last used times of passkeys after
+ * logins and writes them to the {@link RegistrationRepository} in the
+ * background.
+ * <p>
+ * Every login changes these, so writing them synchronously would add a
+ * repository write to every login. Instead, the updates are collected to
+ * a concurrent map where repeated logins with the same passkey coalesce
+ * into one entry, and the map is flushed as a single batch every
+ * {@code webauthn.usage.flush-interval}. The trade-off is that a cloned
+ * authenticator used within the same interval as the original is not
+ * detected by the counter check.
+ * </p>
+ */
+@Service
+public class CredentialUsageRecorder {
+
+    private static final Logger log = LoggerFactory.getLogger(CredentialUsageRecorder.class);
+
+    private final ConcurrentMap<ByteArray, CredentialUsage> pending = new ConcurrentHashMap<>();
+    private final RegistrationRepository repository;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "credential-usage-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CredentialUsageRecorder(RegistrationRepository repository,
+                                   @Value("${webauthn.usage.flush-interval:PT1S}") Duration flushInterval) {
+        this.repository = repository;
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void record(CredentialUsage usage) {
+        pending.merge(usage.credentialId(), usage, CredentialUsage::merge);
+    }
+
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<CredentialUsage> batch = new ArrayList<>();
+        for (ByteArray id : pending.keySet()) {
+            CredentialUsage usage = pending.remove(id);
+            if (usage != null) {
+                batch.add(usage);
+            }
+        }
+        try {
+            repository.updateUsage(batch);
+        } catch (RuntimeException e) {
+            // put them back to be retried with the next batch
+            batch.forEach(this::record);
+            log.warn("Writing {} credential usage updates failed", batch.size(), e);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        flusher.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,121 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.AssertionExtensionInputs;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Writes the options of logins and re-authentications for
+ * {@code navigator.credentials.get} in the browser.
+ * <p>
+ * The JSON is the same as {@link AssertionRequest#toCredentialsGetJson()}
+ * gives, but written directly into a per thread buffer instead of going
+ * through Jackson. The
+ * {@code allowCredentials} of a user only change when they add or remove a
+ * passkey, so their JSON is cached per user and reused as long as the
+ * passkeys are the same. Requests with extensions, not used by this app,
+ * fall back to Jackson.
+ * </p>
+ */
+@Component
+public class CredentialsGetJson {
+
+    private static final AssertionExtensionInputs NO_EXTENSIONS = AssertionExtensionInputs.builder().build();
+    // buffers grown larger than this are not kept for reuse
+    private static final int MAX_KEPT_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private record AllowCredentials(List<PublicKeyCredentialDescriptor> descriptors, String json) {
+    }
+
+    private final Cache<String, AllowCredentials> allowCredentials;
+
+    public CredentialsGetJson(@Value("${webauthn.allow-credentials.cache-size:10000}") long cacheSize) {
+        allowCredentials = Caffeine.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * @return the JSON of the options, binary fields base64url encoded
+     */
+    public String of(AssertionRequest request) throws JsonProcessingException {
+        PublicKeyCredentialRequestOptions options = request.getPublicKeyCredentialRequestOptions();
+        if (!NO_EXTENSIONS.equals(options.getExtensions())) {
+            return request.toCredentialsGetJson();
+        }
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        sb.append("{\"publicKey\":{\"challenge\":\"")
+                .append(options.getChallenge().getBase64Url()).append('"');
+        if (options.getTimeout().isPresent()) {
+            sb.append(",\"timeout\":").append(options.getTimeout().get());
+        }
+        if (options.getRpId() != null) {
+            sb.append(",\"rpId\":");
+            JsonStrings.append(sb, options.getRpId());
+        }
+        if (options.getAllowCredentials().isPresent()) {
+            sb.append(",\"allowCredentials\":")
+                    .append(allowCredentials(request.getUsername(), options.getAllowCredentials().get()));
+        }
+        if (options.getUserVerification().isPresent()) {
+            sb.append(",\"userVerification\":\"").append(options.getUserVerification().get().getValue()).append('"');
+        }
+        sb.append(",\"extensions\":{}}}");
+        String json = sb.toString();
+        if (sb.capacity() > MAX_KEPT_CAPACITY) {
+            buffers.remove();
+        }
+        return json;
+    }
+
+    private String allowCredentials(Optional<String> username, List<PublicKeyCredentialDescriptor> descriptors) {
+        if (username.isEmpty()) {
+            return encode(descriptors);
+        }
+        AllowCredentials cached = allowCredentials.getIfPresent(username.get());
+        if (cached == null || !cached.descriptors().equals(descriptors)) {
+            // a new user, or they have changed their passkeys
+            cached = new AllowCredentials(descriptors, encode(descriptors));
+            allowCredentials.put(username.get(), cached);
+        }
+        return cached.json();
+    }
+
+    private static String encode(List<PublicKeyCredentialDescriptor> descriptors) {
+        StringBuilder sb = new StringBuilder(descriptors.size() * 80 + 2).append('[');
+        for (int i = 0; i < descriptors.size(); i++) {
+            PublicKeyCredentialDescriptor d = descriptors.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"type\":\"").append(d.getType().getId())
+                    .append("\",\"id\":\"").append(d.getId().getBase64Url()).append('"');
+            if (d.getTransports().isPresent()) {
+                sb.append(",\"transports\":[");
+                Set<AuthenticatorTransport> transports = d.getTransports().get();
+                boolean first = true;
+                for (AuthenticatorTransport t : transports) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    JsonStrings.append(sb, t.getId());
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+        return sb.append(']').toString();
+    }
+}
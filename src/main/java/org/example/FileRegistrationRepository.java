@@ -0,0 +1,433 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A repository that survives restarts. Queries are answered by an
+ * {@link InMemoryRegistrationRepository} and every stored or removed
+ * passkey is also appended to a log file in the compact
+ * {@link CredentialRecords} format before the change completes.
+ * <p>
+ * Concurrent registrations share fsyncs via {@link GroupCommit}, so the
+ * disk is not hit once per user under load. Every now and then the log
+ * is rotated and the whole index is written to a snapshot, after which
+ * the older files are removed. At startup the latest snapshot and the
+ * logs after it are memory-mapped and replayed. Replay is idempotent, so
+ * a snapshot may well contain passkeys also found in the next log.
+ * </p>
+ * Enable with {@code webauthn.repository=file}.
+ */
+@Service
+@ConditionalOnProperty(name = "webauthn.repository", havingValue = "file")
+public class FileRegistrationRepository implements RegistrationRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(FileRegistrationRepository.class);
+    private static final Pattern FILE_NAME = Pattern.compile("(log|snapshot)-(\\d+)\\.bin");
+    private static final int MAGIC = 0x57414b31; // "WAK1"
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int MAX_MAPPED_WINDOW = 1 << 30;
+
+    /**
+     * A record to append to the log and how to apply it to the index
+     * once it is durable.
+     */
+    private record LogEntry(ByteBuffer record, Runnable apply) {
+    }
+
+    private final InMemoryRegistrationRepository index = new InMemoryRegistrationRepository();
+    private final GroupCommit<LogEntry> commits = new GroupCommit<>(this::append, 1024);
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "credential-snapshotter");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong recordsSinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final Path directory;
+    private final long snapshotInterval;
+
+    // Only touched within GroupCommit, which serializes the access
+    private FileChannel logChannel;
+    private long generation;
+    // set if a failed append could not be undone, the log then ends with
+    // a torn record and nothing may be appended after it
+    private IOException failure;
+
+    public FileRegistrationRepository(
+            @Value("${webauthn.file.directory:data}") Path directory,
+            @Value("${webauthn.file.snapshot-interval:100000}") long snapshotInterval) throws IOException {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return index.getCredentialIdsForUsername(username);
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return index.getUserHandleForUsername(username);
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return index.getUsernameForUserHandle(userHandle);
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        return index.lookup(credentialId, userHandle);
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        return index.lookupAll(credentialId);
+    }
+
+    @Override
+    public void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON) {
+        CredentialRegistration registration = new CredentialRegistration(username, keyId, RegisteredCredential.builder()
+                .credentialId(keyId.getId())
+                .userHandle(user)
+                .publicKeyCose(publicKeyCose)
+                .signatureCount(attestation.getAuthenticatorData().getSignatureCounter())
+                .build());
+        log(new LogEntry(CredentialRecords.store(registration), () -> index.store(registration)));
+    }
+
+    @Override
+    public void storeAll(Collection<CredentialRegistration> registrations) {
+        // all in as few writes and fsyncs as the batch size allows
+        logAll(registrations.stream()
+                .map(r -> new LogEntry(CredentialRecords.store(r), () -> index.store(r)))
+                .toList());
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        if (!index.lookupAll(credentialId).isEmpty()) {
+            log(new LogEntry(CredentialRecords.remove(credentialId), () -> index.removeCredential(credentialId)));
+        }
+    }
+
+    @Override
+    public void updateUsage(Collection<CredentialUsage> usages) {
+        logAll(usages.stream()
+                .map(u -> new LogEntry(CredentialRecords.usage(u), () -> index.updateUsage(List.of(u))))
+                .toList());
+    }
+
+    @Override
+    public Optional<Instant> getLastUsed(ByteArray credentialId) {
+        return index.getLastUsed(credentialId);
+    }
+
+    /**
+     * Returns once the entry is on disk and applied to the index.
+     */
+    private void log(LogEntry entry) {
+        logAll(List.of(entry));
+    }
+
+    private void logAll(List<LogEntry> entries) {
+        commits.commitAll(entries);
+        if (recordsSinceSnapshot.addAndGet(entries.size()) >= snapshotInterval
+                && snapshotPending.compareAndSet(false, true)) {
+            snapshotter.execute(this::snapshot);
+        }
+    }
+
+    @Override
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        return index.findUsers(usernamePrefix, after, limit);
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        index.forEachUsername(consumer);
+    }
+
+    @Override
+    public void forEachRegistration(Consumer<CredentialRegistration> consumer) {
+        index.forEachRegistration(consumer);
+    }
+
+    @Override
+    public long countUsers(String usernamePrefix, long max) {
+        return index.countUsers(usernamePrefix, max);
+    }
+
+    @Override
+    public long countCredentials() {
+        return index.countCredentials();
+    }
+
+    private void append(List<LogEntry> batch) throws IOException {
+        if (failure != null) {
+            throw new IOException("The credential log is broken", failure);
+        }
+        ByteBuffer[] records = batch.stream().map(LogEntry::record).toArray(ByteBuffer[]::new);
+        ByteBuffer last = records[records.length - 1];
+        long start = logChannel.position();
+        try {
+            while (last.hasRemaining()) {
+                logChannel.write(records);
+            }
+            logChannel.force(false);
+        } catch (IOException e) {
+            // Cut off what was written of the failed batch. Replay stops at
+            // the first torn record, so the batches acknowledged after it
+            // would be lost on restart.
+            try {
+                logChannel.truncate(start);
+                logChannel.position(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+                failure = e;
+                log.error("Could not undo a failed append, no more changes are accepted", e);
+            }
+            throw e;
+        }
+        // Only durable changes become visible
+        batch.forEach(e -> e.apply().run());
+    }
+
+    /**
+     * Switches to a new log and writes the index to a snapshot covering
+     * everything logged before it. Writes continue during the snapshot.
+     */
+    private void snapshot() {
+        try {
+            long[] snapshotGeneration = new long[1];
+            commits.exclusively(() -> {
+                try {
+                    logChannel.close();
+                    generation++;
+                    logChannel = openLog(generation);
+                    snapshotGeneration[0] = generation;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            recordsSinceSnapshot.set(0);
+            Path tmp = directory.resolve("snapshot.tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+                out.write(fileHeader().array());
+                index.forEachRegistration(r -> {
+                    try {
+                        out.write(CredentialRecords.store(r).array());
+                        ByteArray id = r.credential().getCredentialId();
+                        Optional<Instant> lastUsed = index.getLastUsed(id);
+                        if (lastUsed.isPresent()) {
+                            out.write(CredentialRecords.usage(new CredentialUsage(id,
+                                    r.credential().getSignatureCount(), lastUsed.get())).array());
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, directory.resolve(fileName("snapshot", snapshotGeneration[0])),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteFilesBefore(snapshotGeneration[0]);
+        } catch (IOException | UncheckedIOException e) {
+            // The logs are still there, so nothing is lost, try again later
+            log.warn("Writing credential snapshot failed", e);
+        } finally {
+            snapshotPending.set(false);
+        }
+    }
+
+    private void recover() throws IOException {
+        long latestSnapshot = -1;
+        long latestLog = -1;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Matcher m = FILE_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    long g = Long.parseLong(m.group(2));
+                    if (m.group(1).equals("snapshot")) {
+                        latestSnapshot = Math.max(latestSnapshot, g);
+                    } else {
+                        latestLog = Math.max(latestLog, g);
+                    }
+                }
+            }
+        }
+        long started = System.nanoTime();
+        long records = 0;
+        if (latestSnapshot >= 0) {
+            records += replay(directory.resolve(fileName("snapshot", latestSnapshot)), false);
+        }
+        long replayedFromLogs = 0;
+        for (long g = Math.max(latestSnapshot, 0); g <= latestLog; g++) {
+            Path file = directory.resolve(fileName("log", g));
+            if (Files.exists(file)) {
+                replayedFromLogs += replay(file, g == latestLog);
+            }
+        }
+        records += replayedFromLogs;
+        log.info("Replayed {} credential records in {} ms", records, (System.nanoTime() - started) / 1_000_000);
+
+        generation = Math.max(Math.max(latestSnapshot, latestLog), 0);
+        logChannel = openLog(generation);
+        if (latestSnapshot >= 0) {
+            deleteFilesBefore(latestSnapshot);
+        }
+        recordsSinceSnapshot.set(replayedFromLogs);
+    }
+
+    /**
+     * Reads all records of the given file into the index.
+     *
+     * @param truncateTail true if the file may end with a record torn by a
+     *                     crash, which is then cut off
+     */
+    private long replay(Path file, boolean truncateTail) throws IOException {
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long position = FILE_HEADER_SIZE;
+            if (size < FILE_HEADER_SIZE || !readFileHeader(channel)) {
+                throw new IOException("Not a credential file: " + file);
+            }
+            // Large files are mapped in windows that always start at a record
+            while (position < size) {
+                long windowSize = Math.min(size - position, MAX_MAPPED_WINDOW);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                int end = CredentialRecords.readAll(window, new CredentialRecords.Handler() {
+                    @Override
+                    public void stored(CredentialRegistration registration) {
+                        index.store(registration);
+                        count[0]++;
+                    }
+
+                    @Override
+                    public void removed(ByteArray credentialId) {
+                        index.removeCredential(credentialId);
+                        count[0]++;
+                    }
+
+                    @Override
+                    public void used(CredentialUsage usage) {
+                        index.updateUsage(List.of(usage));
+                        count[0]++;
+                    }
+                });
+                if (end == 0) {
+                    break;
+                }
+                position += end;
+            }
+            if (position < size) {
+                if (!truncateTail) {
+                    throw new IOException("Corrupted credential file: " + file);
+                }
+                log.warn("Discarding {} bytes of incomplete records at the end of {}", size - position, file);
+                channel.truncate(position);
+                channel.force(true);
+            }
+        }
+        return count[0];
+    }
+
+    private FileChannel openLog(long generation) throws IOException {
+        Path file = directory.resolve(fileName("log", generation));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            channel.write(fileHeader());
+            channel.force(true);
+        }
+        return channel;
+    }
+
+    private void deleteFilesBefore(long generation) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Matcher m = FILE_NAME.matcher(file.getFileName().toString());
+                if (m.matches() && Long.parseLong(m.group(2)) < generation) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer fileHeader() {
+        return ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(1).flip();
+    }
+
+    private static boolean readFileHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        channel.read(header, 0);
+        return header.getInt(0) == MAGIC && header.getInt(4) == 1;
+    }
+
+    private static String fileName(String type, long generation) {
+        return "%s-%d.bin".formatted(type, generation);
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            // a snapshot still being written would delete the logs under
+            // the next instance recovering from them
+            if (!snapshotter.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Gave up waiting for the credential snapshot to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commits.exclusively(() -> {
+            try {
+                logChannel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
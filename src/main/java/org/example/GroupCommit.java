@@ -0,0 +1,118 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets concurrent writers share one expensive flush, like an fsync or a
+ * JDBC batch. Each caller queues its item and then competes for the flush
+ * lock. Whoever gets it flushes everything queued so far, so the batches
+ * grow by themselves under load, while a lone writer is never delayed.
+ * {@link #commit(Object)} returns only once the item is flushed.
+ *
+ * @param <T> the type of items written
+ */
+class GroupCommit<T> {
+
+    interface Flusher<T> {
+        void flush(List<T> batch) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        final T item;
+        boolean done;
+        RuntimeException failure;
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    private final Queue<Pending<T>> queue = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Flusher<T> flusher;
+    private final int maxBatchSize;
+
+    GroupCommit(Flusher<T> flusher, int maxBatchSize) {
+        this.flusher = flusher;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    void commit(T item) {
+        commitAll(List.of(item));
+    }
+
+    /**
+     * Like {@link #commit(Object)}, but for several items that are then
+     * likely flushed together.
+     */
+    void commitAll(Collection<T> items) {
+        List<Pending<T>> pendings = new ArrayList<>(items.size());
+        for (T item : items) {
+            Pending<T> pending = new Pending<>(item);
+            pendings.add(pending);
+            queue.add(pending);
+        }
+        // The fields of pending are only touched while holding the lock
+        for (Pending<T> pending : pendings) {
+            while (true) {
+                flushLock.lock();
+                try {
+                    if (!pending.done) {
+                        flushQueued();
+                    }
+                    if (pending.done) {
+                        if (pending.failure != null) {
+                            throw pending.failure;
+                        }
+                        break;
+                    }
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the given task so that no flush is in progress at the same
+     * time, e.g. to switch the target of the writes.
+     */
+    void exclusively(Runnable task) {
+        flushLock.lock();
+        try {
+            task.run();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushQueued() {
+        List<Pending<T>> batch = new ArrayList<>();
+        Pending<T> p;
+        while (batch.size() < maxBatchSize && (p = queue.poll()) != null) {
+            batch.add(p);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        RuntimeException failure = null;
+        try {
+            flusher.flush(batch.stream().map(b -> b.item).toList());
+        } catch (IOException e) {
+            failure = new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (Pending<T> b : batch) {
+            b.failure = failure;
+            b.done = true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.example;
+
+/**
+ * The string hashes of {@link BloomFilter} and the count-min sketches of
+ * {@link RateLimiter}. Both need several independent indexes per item,
+ * which are derived from two 64 bit hashes as {@code h1 + i * h2}
+ * ("double hashing") instead of computing a hash per index. The hash
+ * tables of {@link OffHeapRegistrationRepository} use the byte variant.
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * FNV-1a over the chars, finished with {@link #mix(long)}.
+     * String.hashCode has too few bits for millions of items.
+     *
+     * @param seed mixed into the hash, a random seed keeps others from
+     *             picking items that collide on purpose
+     */
+    static long hash(String s, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Like {@link #hash(String, long)}, but over bytes.
+     */
+    static long hash(byte[] bytes, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * The second hash for double hashing, odd so that it never repeats
+     * the same index.
+     */
+    static long step(long h1) {
+        return mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+    }
+
+    /**
+     * The index {@code i} of an item in a table of the given size.
+     */
+    static long index(long h1, long h2, int i, long size) {
+        return Math.floorMod(h1 + i * h2, size);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every input bit to all output bits.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,96 +1,271 @@
 package org.example;
 
-import com.yubico.webauthn.CredentialRepository;
 import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.data.AttestationObject;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
 
 /**
  * This is a minimal "in-memory DB" for users and their passkeys.
  * For this demo app this is slightly overkill as they users can have
  * only one passkey.
+ * <p>
+ * The repository is shared by all sessions and the WebAuthn library
+ * calls it on every login, so all the queries it needs are answered
+ * directly from an index: credentialId, userHandle and username. The
+ * indexes are concurrent maps and the values are immutable, so the
+ * read path never takes a lock.
+ * </p>
+ * <p>
+ * This is the default repository. Other implementations use it as their
+ * in-memory index.
+ * </p>
  * <p>See Yubico's docs for more information.</p>
  */
-// TODO clean this
 @Service
-public class InMemoryRegistrationRepository implements CredentialRepository {
+@ConditionalOnProperty(name = "webauthn.repository", havingValue = "memory", matchIfMissing = true)
+public class InMemoryRegistrationRepository implements RegistrationRepository {
 
-    private Map<String, Set<RegisteredCredential>> usernameToCredential = new HashMap<>();
-    private Map<String, Set<PublicKeyCredentialDescriptor>> usernameToKey = new HashMap<>();
+    /**
+     * All the passkeys of a single user. Instances are never modified,
+     * but replaced as a whole when a new passkey is stored, so that
+     * readers always see a consistent user without locking. The
+     * descriptors are an immutable, array backed set and the Optional the
+     * WebAuthn library asks for is created once, so queries of existing
+     * users don't allocate either.
+     */
+    record UserRecord(String username, ByteArray userHandle,
+                      Set<PublicKeyCredentialDescriptor> descriptors, Optional<ByteArray> foundUserHandle) {
+
+        UserRecord(String username, ByteArray userHandle, Set<PublicKeyCredentialDescriptor> descriptors) {
+            this(username, userHandle, descriptors, Optional.of(userHandle));
+        }
+
+        UserRecord with(PublicKeyCredentialDescriptor descriptor) {
+            Set<PublicKeyCredentialDescriptor> d = new HashSet<>(descriptors);
+            d.add(descriptor);
+            return new UserRecord(username, userHandle, Set.copyOf(d), foundUserHandle);
+        }
+
+        /**
+         * @return the user without the given passkey, null if it was the last one
+         */
+        UserRecord without(ByteArray credentialId) {
+            Set<PublicKeyCredentialDescriptor> d = new HashSet<>(descriptors);
+            d.removeIf(pkcd -> pkcd.getId().equals(credentialId));
+            return d.isEmpty() ? null : new UserRecord(username, userHandle, Set.copyOf(d), foundUserHandle);
+        }
+    }
+
+    /**
+     * A passkey and when it was last used to log in, null if never. The
+     * results of lookup and lookupAll are created once as well.
+     */
+    record StoredCredential(RegisteredCredential credential, Instant lastUsed,
+                            Optional<RegisteredCredential> found, Set<RegisteredCredential> foundAll) {
+
+        StoredCredential(RegisteredCredential credential, Instant lastUsed) {
+            this(credential, lastUsed, Optional.of(credential), Set.of(credential));
+        }
+
+        StoredCredential withLastUsed(Instant lastUsed) {
+            return new StoredCredential(credential, lastUsed, found, foundAll);
+        }
+    }
+
+    private final ConcurrentMap<String, UserRecord> usernameIndex = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteArray, Optional<String>> userHandleIndex = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteArray, StoredCredential> credentialIdIndex = new ConcurrentHashMap<>();
+    // usernames in order for listing, kept in sync within usernameIndex's atomic updates
+    private final NavigableSet<String> sortedUsernames = new ConcurrentSkipListSet<>();
+
+    // The queries below are also done with unknown names and ids, e.g. by
+    // bots probing the login page. They only read the indexes and answer
+    // misses with shared empty instances, so nothing is allocated or
+    // retained for them.
 
     @Override
-    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String s) {
-        return usernameToKey.computeIfAbsent(s, k -> new HashSet<>());
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        UserRecord user = usernameIndex.get(username);
+        return user == null ? Collections.emptySet() : user.descriptors();
     }
 
     @Override
-    public Optional<ByteArray> getUserHandleForUsername(String s) {
-        return usernameToCredential.computeIfAbsent(s, k -> new HashSet<>())
-                .stream().map(c -> c.getUserHandle()).findFirst();
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        UserRecord user = usernameIndex.get(username);
+        return user == null ? Optional.empty() : user.foundUserHandle();
     }
 
     @Override
     public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
-        AtomicReference<String> username = new AtomicReference<>(null);
-        usernameToCredential.forEach((u, c) -> {
-            Optional<RegisteredCredential> first = c.stream().filter(rc -> rc.getUserHandle().equals(userHandle)).findFirst();
-            if(first.isPresent()) {
-                username.set(u);
-            }
-        });
-        return Optional.ofNullable(username.get());
+        return userHandleIndex.getOrDefault(userHandle, Optional.empty());
     }
 
     @Override
     public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
-
-        Optional<RegisteredCredential> registrationMaybe =
-                usernameToCredential.values().stream()
-                        .flatMap(Collection::stream)
-                        .filter(
-                                credReg ->
-                                        credentialId.equals(credReg.getCredentialId())
-                                                && userHandle.equals(credReg.getUserHandle()))
-                        .findAny();
-
-        return registrationMaybe;
+        StoredCredential stored = credentialIdIndex.get(credentialId);
+        if (stored != null && stored.credential().getUserHandle().equals(userHandle)) {
+            return stored.found();
+        }
+        return Optional.empty();
     }
 
     @Override
     public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
-        HashSet<RegisteredCredential> res = new HashSet<>();
-        usernameToCredential.forEach((uname, creds) -> {
-            creds.forEach(c -> {
-                if(c.getCredentialId().equals(credentialId)) {
-                    res.add(c);
-                }
-            });
-        });
-        return res;
+        // The library refuses to register an already known credentialId,
+        // so there can be at most one match
+        StoredCredential stored = credentialIdIndex.get(credentialId);
+        return stored == null ? Collections.emptySet() : stored.foundAll();
     }
 
+    @Override
     public void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON) {
-        RegisteredCredential registeredCredential = RegisteredCredential.builder()
+        store(new CredentialRegistration(username, keyId, RegisteredCredential.builder()
                 .credentialId(keyId.getId())
                 .userHandle(user)
                 .publicKeyCose(publicKeyCose)
-                .build();
-        usernameToCredential.computeIfAbsent(username, k -> new HashSet<>()).add(registeredCredential);
-        usernameToKey.computeIfAbsent(username, k -> new HashSet<>()).add(keyId);
+                .signatureCount(attestation.getAuthenticatorData().getSignatureCounter())
+                .build()));
+    }
+
+    void store(CredentialRegistration registration) {
+        String username = registration.username();
+        RegisteredCredential credential = registration.credential();
+        PublicKeyCredentialDescriptor descriptor = registration.descriptor();
+        // The user record is updated atomically per username, the other
+        // indexes only point to data that already exists in it
+        usernameIndex.compute(username, (u, existing) -> {
+            if (existing == null) {
+                sortedUsernames.add(u);
+                return new UserRecord(u, credential.getUserHandle(), Set.of(descriptor));
+            }
+            return existing.with(descriptor);
+        });
+        credentialIdIndex.merge(credential.getCredentialId(), new StoredCredential(credential, null),
+                (old, stored) -> new StoredCredential(credential, old.lastUsed()));
+        userHandleIndex.putIfAbsent(credential.getUserHandle(), Optional.of(username));
     }
 
-    public List<String> findKnownUsers() {
-        return usernameToCredential.keySet().stream().toList();
+    @Override
+    public void storeAll(Collection<CredentialRegistration> registrations) {
+        registrations.forEach(this::store);
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        StoredCredential stored = credentialIdIndex.remove(credentialId);
+        if (stored == null) {
+            return;
+        }
+        ByteArray userHandle = stored.credential().getUserHandle();
+        String username = userHandleIndex.getOrDefault(userHandle, Optional.empty()).orElse(null);
+        if (username != null && usernameIndex.computeIfPresent(username, (u, user) -> {
+            UserRecord remaining = user.without(credentialId);
+            if (remaining == null) {
+                sortedUsernames.remove(u);
+            }
+            return remaining;
+        }) == null) {
+            // that was the last passkey, forget the user too
+            userHandleIndex.remove(userHandle, Optional.of(username));
+        }
+    }
+
+    @Override
+    public void updateUsage(Collection<CredentialUsage> usages) {
+        for (CredentialUsage usage : usages) {
+            credentialIdIndex.computeIfPresent(usage.credentialId(), (id, stored) -> {
+                RegisteredCredential c = stored.credential();
+                // never go backwards, even if updates arrive out of order
+                long count = Math.max(c.getSignatureCount(), usage.signatureCount());
+                Instant lastUsed = stored.lastUsed() == null || stored.lastUsed().isBefore(usage.lastUsed())
+                        ? usage.lastUsed() : stored.lastUsed();
+                return count == c.getSignatureCount()
+                        ? stored.withLastUsed(lastUsed)
+                        : new StoredCredential(c.toBuilder().signatureCount(count).build(), lastUsed);
+            });
+        }
+    }
+
+    @Override
+    public Optional<Instant> getLastUsed(ByteArray credentialId) {
+        StoredCredential stored = credentialIdIndex.get(credentialId);
+        return stored == null ? Optional.empty() : Optional.ofNullable(stored.lastUsed());
+    }
+
+    @Override
+    public void forEachRegistration(Consumer<CredentialRegistration> consumer) {
+        usernameIndex.values().forEach(user -> user.descriptors().forEach(d -> {
+            StoredCredential stored = credentialIdIndex.get(d.getId());
+            if (stored != null) {
+                consumer.accept(new CredentialRegistration(user.username(), d, stored.credential()));
+            }
+        }));
+    }
+
+    @Override
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        NavigableSet<String> usernames = withPrefix(usernamePrefix);
+        if (after != null) {
+            usernames = usernames.tailSet(after, false);
+        }
+        List<String> page = new ArrayList<>(Math.min(limit, 100));
+        Iterator<String> i = usernames.iterator();
+        while (page.size() < limit && i.hasNext()) {
+            page.add(i.next());
+        }
+        return page;
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        sortedUsernames.forEach(consumer);
+    }
+
+    @Override
+    public long countUsers(String usernamePrefix, long max) {
+        if (usernamePrefix.isEmpty()) {
+            return Math.min(usernameIndex.size(), max);
+        }
+        // counting a sub set walks it, so only as far as asked
+        return count(withPrefix(usernamePrefix), max);
+    }
+
+    static long count(NavigableSet<String> usernames, long max) {
+        long count = 0;
+        for (Iterator<String> i = usernames.iterator(); count < max && i.hasNext(); i.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private NavigableSet<String> withPrefix(String usernamePrefix) {
+        if (usernamePrefix.isEmpty()) {
+            return sortedUsernames;
+        }
+        // all strings starting with the prefix sort before prefix + the largest char
+        return sortedUsernames.subSet(usernamePrefix, true, usernamePrefix + Character.MAX_VALUE, false);
+    }
+
+    @Override
+    public long countCredentials() {
+        return credentialIdIndex.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SessionStateStore} in the local heap, for running a single
+ * node. This is the default, {@code webauthn.session-store=local}. A
+ * cluster would replace this with a store shared by the nodes.
+ */
+@Service
+@ConditionalOnProperty(name = "webauthn.session-store", havingValue = "local", matchIfMissing = true)
+public class InProcessSessionStateStore implements SessionStateStore {
+
+    private record Entry(byte[] value, long expiresAtNanos) {
+
+        boolean isExpired(long now) {
+            return now - expiresAtNanos > 0;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-state-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public InProcessSessionStateStore() {
+        sweeper.scheduleWithFixedDelay(this::expire, 10, 10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration ttl) {
+        entries.put(key, new Entry(value, System.nanoTime() + ttl.toNanos()));
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null || entry.isExpired(System.nanoTime()) ? null : entry.value();
+    }
+
+    @Override
+    public boolean replace(String key, byte[] expected, byte[] value, Duration ttl) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(now) || !Arrays.equals(entry.value(), expected)) {
+            return false;
+        }
+        // fails if another thread replaced or removed the entry meanwhile
+        return entries.replace(key, entry, new Entry(value, now + ttl.toNanos()));
+    }
+
+    @Override
+    public byte[] remove(String key) {
+        Entry entry = entries.remove(key);
+        return entry == null || entry.isExpired(System.nanoTime()) ? null : entry.value();
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> e.isExpired(now));
+    }
+
+    @PreDestroy
+    void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,393 @@
+package org.example;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * A repository storing passkeys to a relational database via the
+ * connection pool Spring Boot configures ({@code spring.datasource.*},
+ * an embedded H2 database by default). Enable with
+ * {@code webauthn.repository=jdbc}.
+ * <p>
+ * The table is keyed by the credential id and indexed by user handle and
+ * username, see webauthn-schema.sql. Logins would hit the database on
+ * each assertion, so the queries the WebAuthn library does are answered
+ * from bounded read-through caches. The credential cache is bounded by the
+ * size of the keys rather than the number of entries, as e.g. RSA keys are
+ * several times larger than the common EC keys. Concurrent registrations
+ * are inserted as a single JDBC batch via {@link GroupCommit}. If the
+ * batch fails, its rows are inserted one by one, so that a bad row only
+ * fails its own registration.
+ * </p>
+ */
+@Service
+@ConditionalOnProperty(name = "webauthn.repository", havingValue = "jdbc")
+public class JdbcRegistrationRepository implements RegistrationRepository {
+
+    /**
+     * What is cached per username: the user handle and the passkeys.
+     */
+    private record UserEntry(ByteArray userHandle, Set<PublicKeyCredentialDescriptor> descriptors) {
+    }
+
+    /**
+     * A registration waiting to be inserted, and why inserting it failed.
+     */
+    private static final class Insert {
+        final CredentialRegistration registration;
+        // set within GroupCommit, read by the registering thread after it
+        RuntimeException failure;
+
+        Insert(CredentialRegistration registration) {
+            this.registration = registration;
+        }
+    }
+
+    // the sizes of the columns in webauthn-schema.sql
+    private static final int MAX_CREDENTIAL_ID_BYTES = 1023;
+    private static final int MAX_USER_HANDLE_BYTES = 64;
+    private static final int MAX_USERNAME_LENGTH = 255;
+    private static final int MAX_PUBLIC_KEY_BYTES = 2048;
+    private static final int MAX_TRANSPORTS_LENGTH = 255;
+
+    private static final String INSERT = """
+            INSERT INTO webauthn_credential
+            (credential_id, user_handle, username, public_key_cose, transports, signature_count)
+            VALUES (?, ?, ?, ?, ?, ?)""";
+
+    private static final String UPDATE_USAGE = """
+            UPDATE webauthn_credential
+            SET signature_count = GREATEST(signature_count, ?), last_used = GREATEST(COALESCE(last_used, ?), ?)
+            WHERE credential_id = ?""";
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate transaction;
+    private final GroupCommit<Insert> inserts = new GroupCommit<>(this::insertEach, 500);
+    // Misses are not cached: the loaders return null for unknown keys, so
+    // probing with random names or ids can't push real users out
+    private final LoadingCache<ByteArray, RegisteredCredential> credentials;
+    private final LoadingCache<String, UserEntry> users;
+    private final LoadingCache<ByteArray, String> usernames;
+
+    public JdbcRegistrationRepository(JdbcTemplate jdbc, PlatformTransactionManager transactionManager,
+                                      @Value("${webauthn.jdbc.cache-size:100000}") long cacheSize,
+                                      @Value("${webauthn.jdbc.credential-cache-bytes:64000000}") long credentialCacheBytes,
+                                      @Value("${webauthn.jdbc.initialize-schema:true}") boolean initializeSchema) {
+        this.jdbc = jdbc;
+        this.transaction = new TransactionTemplate(transactionManager);
+        if (initializeSchema) {
+            new ResourceDatabasePopulator(new ClassPathResource("webauthn-schema.sql"))
+                    .execute(jdbc.getDataSource());
+        }
+        credentials = Caffeine.newBuilder()
+                .maximumWeight(credentialCacheBytes)
+                .weigher(JdbcRegistrationRepository::weigh)
+                .build(this::loadCredential);
+        users = Caffeine.newBuilder().maximumSize(cacheSize).build(this::loadUser);
+        usernames = Caffeine.newBuilder().maximumSize(cacheSize).build(this::loadUsername);
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        UserEntry user = users.get(username);
+        return user == null ? Set.of() : user.descriptors();
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        UserEntry user = users.get(username);
+        return user == null ? Optional.empty() : Optional.of(user.userHandle());
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return Optional.ofNullable(usernames.get(userHandle));
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        RegisteredCredential c = credentials.get(credentialId);
+        return c != null && c.getUserHandle().equals(userHandle) ? Optional.of(c) : Optional.empty();
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        RegisteredCredential c = credentials.get(credentialId);
+        return c == null ? Set.of() : Set.of(c);
+    }
+
+    @Override
+    public void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON) {
+        RegisteredCredential credential = RegisteredCredential.builder()
+                .credentialId(keyId.getId())
+                .userHandle(user)
+                .publicKeyCose(publicKeyCose)
+                .signatureCount(attestation.getAuthenticatorData().getSignatureCounter())
+                .build();
+        CredentialRegistration registration = new CredentialRegistration(username, keyId, credential);
+        // a row the table can't hold would fail the batch it is in
+        checkFits(registration);
+        Insert insert = new Insert(registration);
+        inserts.commit(insert);
+        if (insert.failure != null) {
+            throw insert.failure;
+        }
+        credentials.put(keyId.getId(), credential);
+        // the user may have been cached with fewer passkeys
+        users.invalidate(username);
+    }
+
+    @Override
+    public void storeAll(Collection<CredentialRegistration> registrations) {
+        // straight to the database in one batch, without caching millions
+        // of passkeys nobody has used yet
+        insert(new ArrayList<>(registrations));
+        for (CredentialRegistration r : registrations) {
+            users.invalidate(r.username());
+        }
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        RegisteredCredential c = credentials.get(credentialId);
+        if (c == null) {
+            return;
+        }
+        String username = usernames.get(c.getUserHandle());
+        jdbc.update("DELETE FROM webauthn_credential WHERE credential_id = ?", credentialId.getBytes());
+        credentials.invalidate(credentialId);
+        usernames.invalidate(c.getUserHandle());
+        if (username != null) {
+            users.invalidate(username);
+        }
+    }
+
+    @Override
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        // the username index serves the prefix match, the start and the order
+        if (after == null) {
+            return jdbc.queryForList("""
+                            SELECT DISTINCT username FROM webauthn_credential
+                            WHERE username LIKE ? ESCAPE '!'
+                            ORDER BY username LIMIT ?""",
+                    String.class, likePrefix(usernamePrefix), limit);
+        }
+        return jdbc.queryForList("""
+                        SELECT DISTINCT username FROM webauthn_credential
+                        WHERE username LIKE ? ESCAPE '!' AND username > ?
+                        ORDER BY username LIMIT ?""",
+                String.class, likePrefix(usernamePrefix), after, limit);
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        jdbc.query("SELECT DISTINCT username FROM webauthn_credential",
+                (RowCallbackHandler) rs -> consumer.accept(rs.getString(1)));
+    }
+
+    @Override
+    public void forEachRegistration(Consumer<CredentialRegistration> consumer) {
+        jdbc.query(con -> {
+                    var ps = con.prepareStatement("""
+                            SELECT username, credential_id, transports, user_handle, public_key_cose, signature_count
+                            FROM webauthn_credential""");
+                    // stream the rows instead of loading them all
+                    ps.setFetchSize(1000);
+                    return ps;
+                },
+                (RowCallbackHandler) rs -> consumer.accept(new CredentialRegistration(rs.getString(1), descriptor(rs),
+                        RegisteredCredential.builder()
+                                .credentialId(new ByteArray(rs.getBytes(2)))
+                                .userHandle(new ByteArray(rs.getBytes(4)))
+                                .publicKeyCose(new ByteArray(rs.getBytes(5)))
+                                .signatureCount(rs.getLong(6))
+                                .build())));
+    }
+
+    @Override
+    public long countUsers(String usernamePrefix, long max) {
+        return jdbc.queryForObject("""
+                        SELECT COUNT(*) FROM (
+                            SELECT DISTINCT username FROM webauthn_credential
+                            WHERE username LIKE ? ESCAPE '!' LIMIT ?)""",
+                Long.class, likePrefix(usernamePrefix), max);
+    }
+
+    private static String likePrefix(String prefix) {
+        return prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+    }
+
+    @Override
+    public long countCredentials() {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM webauthn_credential", Long.class);
+    }
+
+    private void insert(List<CredentialRegistration> batch) {
+        transaction.executeWithoutResult(status ->
+                jdbc.batchUpdate(INSERT, batch, batch.size(), JdbcRegistrationRepository::setInsert));
+    }
+
+    /**
+     * Inserts the registrations of concurrent users in one batch. One bad
+     * row, e.g. a credential id registered twice, rolls back the whole
+     * batch, so then the rows are retried one at a time and only the bad
+     * ones fail.
+     */
+    private void insertEach(List<Insert> batch) {
+        try {
+            insert(batch.stream().map(i -> i.registration).toList());
+        } catch (DataAccessException e) {
+            if (batch.size() == 1) {
+                throw e;
+            }
+            for (Insert i : batch) {
+                try {
+                    jdbc.update(INSERT, ps -> setInsert(ps, i.registration));
+                } catch (DataAccessException rowFailure) {
+                    i.failure = rowFailure;
+                }
+            }
+        }
+    }
+
+    private static void setInsert(PreparedStatement ps, CredentialRegistration r) throws SQLException {
+        RegisteredCredential c = r.credential();
+        ps.setBytes(1, c.getCredentialId().getBytes());
+        ps.setBytes(2, c.getUserHandle().getBytes());
+        ps.setString(3, r.username());
+        ps.setBytes(4, c.getPublicKeyCose().getBytes());
+        ps.setString(5, transports(r.descriptor()));
+        ps.setLong(6, c.getSignatureCount());
+    }
+
+    private static String transports(PublicKeyCredentialDescriptor descriptor) {
+        return descriptor.getTransports()
+                .map(t -> t.stream().map(AuthenticatorTransport::getId).collect(Collectors.joining(",")))
+                .orElse(null);
+    }
+
+    private static void checkFits(CredentialRegistration r) {
+        RegisteredCredential c = r.credential();
+        String transports = transports(r.descriptor());
+        if (r.username().length() > MAX_USERNAME_LENGTH
+                || c.getCredentialId().size() > MAX_CREDENTIAL_ID_BYTES
+                || c.getUserHandle().size() > MAX_USER_HANDLE_BYTES
+                || c.getPublicKeyCose().size() > MAX_PUBLIC_KEY_BYTES
+                || transports != null && transports.length() > MAX_TRANSPORTS_LENGTH) {
+            throw new IllegalArgumentException("Passkey does not fit in the database");
+        }
+    }
+
+    @Override
+    public void updateUsage(Collection<CredentialUsage> usages) {
+        transaction.executeWithoutResult(status ->
+                jdbc.batchUpdate(UPDATE_USAGE, usages, usages.size(), (ps, u) -> {
+                    OffsetDateTime lastUsed = u.lastUsed().atOffset(ZoneOffset.UTC);
+                    ps.setLong(1, u.signatureCount());
+                    // like the counter, only ever moves forward
+                    ps.setObject(2, lastUsed);
+                    ps.setObject(3, lastUsed);
+                    ps.setBytes(4, u.credentialId().getBytes());
+                }));
+        // keep the cached counters in sync, the library compares against them
+        for (CredentialUsage u : usages) {
+            credentials.asMap().computeIfPresent(u.credentialId(), (id, c) -> c.getSignatureCount() >= u.signatureCount()
+                    ? c : c.toBuilder().signatureCount(u.signatureCount()).build());
+        }
+    }
+
+    @Override
+    public Optional<Instant> getLastUsed(ByteArray credentialId) {
+        return jdbc.query("SELECT last_used FROM webauthn_credential WHERE credential_id = ?",
+                        (rs, i) -> rs.getObject(1, OffsetDateTime.class),
+                        credentialId.getBytes()).stream()
+                .filter(Objects::nonNull)
+                .map(OffsetDateTime::toInstant)
+                .findFirst();
+    }
+
+    private RegisteredCredential loadCredential(ByteArray credentialId) {
+        return jdbc.query("SELECT credential_id, user_handle, public_key_cose, signature_count FROM webauthn_credential WHERE credential_id = ?",
+                (rs, i) -> RegisteredCredential.builder()
+                        .credentialId(new ByteArray(rs.getBytes(1)))
+                        .userHandle(new ByteArray(rs.getBytes(2)))
+                        .publicKeyCose(new ByteArray(rs.getBytes(3)))
+                        .signatureCount(rs.getLong(4))
+                        .build(),
+                credentialId.getBytes()).stream().findFirst().orElse(null);
+    }
+
+    private UserEntry loadUser(String username) {
+        record Row(ByteArray userHandle, PublicKeyCredentialDescriptor descriptor) {
+        }
+        List<Row> rows = jdbc.query("SELECT user_handle, credential_id, transports FROM webauthn_credential WHERE username = ?",
+                (rs, i) -> new Row(new ByteArray(rs.getBytes(1)), descriptor(rs)),
+                username);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        return new UserEntry(rows.get(0).userHandle(), rows.stream()
+                .map(Row::descriptor)
+                .collect(Collectors.toUnmodifiableSet()));
+    }
+
+    private String loadUsername(ByteArray userHandle) {
+        return jdbc.query("SELECT username FROM webauthn_credential WHERE user_handle = ?",
+                (rs, i) -> rs.getString(1),
+                userHandle.getBytes()).stream().findFirst().orElse(null);
+    }
+
+    /**
+     * Roughly the bytes a cached credential takes, the byte arrays plus
+     * their base64 strings and the object overhead.
+     */
+    static int weigh(ByteArray credentialId, RegisteredCredential credential) {
+        int keyBytes = credentialId.size() + credential.getUserHandle().size() + credential.getPublicKeyCose().size();
+        return 200 + keyBytes * 3;
+    }
+
+    private static PublicKeyCredentialDescriptor descriptor(ResultSet rs) throws SQLException {
+        var descriptor = PublicKeyCredentialDescriptor.builder().id(new ByteArray(rs.getBytes(2)));
+        String transports = rs.getString(3);
+        if (transports != null && !transports.isEmpty()) {
+            SortedSet<AuthenticatorTransport> t = Arrays.stream(transports.split(","))
+                    .map(AuthenticatorTransport::of)
+                    .collect(Collectors.toCollection(TreeSet::new));
+            descriptor.transports(t);
+        }
+        return descriptor.build();
+    }
+}
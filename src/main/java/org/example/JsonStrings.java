@@ -0,0 +1,31 @@
+package org.example;
+
+/**
+ * Writes JSON string literals for the JSON built by hand, in
+ * {@link CredentialsGetJson} and {@link AuditLog}, where going through
+ * Jackson would cost more than the rest of the work.
+ */
+final class JsonStrings {
+
+    private JsonStrings() {
+    }
+
+    /**
+     * Appends the string quoted, escaping the quotes, backslashes and
+     * control characters.
+     */
+    static void append(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ReplicationTransport} between nodes running in the same JVM,
+ * e.g. several application contexts in a test. Nodes with the same
+ * {@code webauthn.replication.channel} see each other. Changes are
+ * delivered synchronously, one sender at a time.
+ * <p>
+ * Used only if the application defines no other transport, see
+ * {@link Application}, and warns at startup: nodes in different JVMs
+ * using it silently diverge.
+ * </p>
+ */
+public class LoopbackReplicationTransport implements ReplicationTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(LoopbackReplicationTransport.class);
+
+    // guarded by itself
+    private static final Map<String, List<LoopbackReplicationTransport>> channels = new HashMap<>();
+
+    private final String channel;
+    private Listener listener;
+
+    public LoopbackReplicationTransport(String channel) {
+        this.channel = channel;
+        log.warn("Replicating passkeys only within this JVM (channel '{}'), " +
+                "define a ReplicationTransport bean to replicate between nodes", channel);
+    }
+
+    @Override
+    public void connect(Listener listener) {
+        synchronized (channels) {
+            List<LoopbackReplicationTransport> nodes = channels.computeIfAbsent(channel, c -> new ArrayList<>());
+            this.listener = listener;
+            if (!nodes.isEmpty()) {
+                nodes.get(0).listener.writeSnapshot(listener::received);
+            }
+            nodes.add(this);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer records) {
+        synchronized (channels) {
+            for (LoopbackReplicationTransport node : channels.getOrDefault(channel, List.of())) {
+                if (node != this) {
+                    node.listener.received(records.duplicate());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        synchronized (channels) {
+            List<LoopbackReplicationTransport> nodes = channels.get(channel);
+            if (nodes != null) {
+                nodes.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.yubico.fido.metadata.AAGUID;
+import com.yubico.fido.metadata.AuthenticatorStatus;
+import com.yubico.fido.metadata.FidoMetadataDownloader;
+import com.yubico.fido.metadata.MetadataBLOBPayload;
+import com.yubico.fido.metadata.MetadataBLOBPayloadEntry;
+import com.yubico.fido.metadata.MetadataStatement;
+import com.yubico.fido.metadata.StatusReport;
+import com.yubico.internal.util.CertificateParser;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.ByteArray;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CRL;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An allow-list of authenticator models, from a FIDO Metadata Service
+ * (MDS) BLOB in a local file. Disabled by default, set
+ * {@code webauthn.attestation.metadata-blob} to enable. Registrations are
+ * then accepted only from authenticators that send an attestation
+ * certificate chain leading to the root certificates listed for their
+ * model in the BLOB, and whose latest status isn't e.g. revoked. Note that
+ * this rules out most synced passkeys, which have no attestation.
+ * <p>
+ * The entries are indexed by AAGUID and by attestation certificate key
+ * identifier when the BLOB is loaded. Authenticators of the same model
+ * share their attestation certificates, so a chain that was validated is
+ * cached by the hash of its leaf certificate, until a certificate of the
+ * chain expires. Later registrations with the same authenticator model
+ * only look it up. Rejected chains are validated again every time.
+ * </p>
+ * <p>
+ * The file is checked for changes periodically. A new BLOB is verified
+ * and indexed on the side and then swapped in as a whole, so registrations
+ * never wait for a reload. If the new BLOB is not valid, the old one stays
+ * in use.
+ * </p>
+ */
+@Service
+public class MetadataTrustStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataTrustStore.class);
+
+    // the latest status report of these makes a model untrusted
+    private static final Set<AuthenticatorStatus> UNTRUSTED = EnumSet.of(
+            AuthenticatorStatus.REVOKED,
+            AuthenticatorStatus.ATTESTATION_KEY_COMPROMISE,
+            AuthenticatorStatus.USER_VERIFICATION_BYPASS,
+            AuthenticatorStatus.USER_KEY_REMOTE_COMPROMISE,
+            AuthenticatorStatus.USER_KEY_PHYSICAL_COMPROMISE);
+
+    /**
+     * A loaded BLOB with its indexes and validation results, never
+     * modified after loading except for the cache.
+     */
+    private record Snapshot(Instant modified, int serial,
+                            Map<ByteArray, List<MetadataStatement>> byAaguid,
+                            Map<String, List<MetadataStatement>> byKeyIdentifier,
+                            Cache<ChainKey, Validation> validated) {
+    }
+
+    /**
+     * Identifies an attestation chain by its AAGUID and the hash of its
+     * leaf certificate, which is signed by the rest of the chain.
+     */
+    private record ChainKey(ByteArray aaguid, ByteArray leafSha256) {
+    }
+
+    /**
+     * A chain that was validated, valid until the first certificate of the
+     * chain expires. Rejected chains are not kept: the attestation
+     * signature covers only the leaf, so whoever registers could strip or
+     * garble the rest of a genuine chain and get the leaf rejected for
+     * everybody else.
+     */
+    private record Validation(MetadataStatement statement, Instant notAfter) {
+    }
+
+    /**
+     * Forgets validations when the chain expires, so that an expired
+     * chain is validated again, and rejected.
+     */
+    private static final class ChainExpiry implements Expiry<ChainKey, Validation> {
+
+        @Override
+        public long expireAfterCreate(ChainKey key, Validation validation, long currentTime) {
+            return Math.max(0, Duration.between(Instant.now(), validation.notAfter()).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(ChainKey key, Validation validation, long currentTime,
+                                      long currentDuration) {
+            return expireAfterCreate(key, validation, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(ChainKey key, Validation validation, long currentTime,
+                                    long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    private final Path blobFile;
+    private final Path trustRootFile;
+    private final List<Path> crlFiles;
+    private final String legalHeader;
+    private final int cacheSize;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metadata-reloader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public MetadataTrustStore(@Value("${webauthn.attestation.metadata-blob:}") String blobFile,
+                              @Value("${webauthn.attestation.trust-root:}") String trustRootFile,
+                              @Value("${webauthn.attestation.crls:}") List<String> crlFiles,
+                              @Value("${webauthn.attestation.legal-header:Retrieval and use of this BLOB indicates acceptance of the appropriate agreement located at https://fidoalliance.org/metadata/metadata-legal-terms/}") String legalHeader,
+                              @Value("${webauthn.attestation.cache-size:10000}") int cacheSize,
+                              @Value("${webauthn.attestation.reload-interval:PT1H}") Duration reloadInterval) {
+        this.blobFile = blobFile.isEmpty() ? null : Path.of(blobFile);
+        this.trustRootFile = trustRootFile.isEmpty() ? null : Path.of(trustRootFile);
+        this.crlFiles = crlFiles.stream().filter(f -> !f.isBlank()).map(Path::of).toList();
+        this.legalHeader = legalHeader;
+        this.cacheSize = cacheSize;
+        if (this.blobFile != null) {
+            if (this.trustRootFile == null) {
+                throw new IllegalStateException("webauthn.attestation.trust-root is needed to verify the metadata BLOB");
+            }
+            try {
+                snapshot.set(load());
+                logLoaded();
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                throw new IllegalStateException("Loading the metadata BLOB " + blobFile + " failed", e);
+            }
+            long seconds = reloadInterval.toSeconds();
+            reloader.scheduleWithFixedDelay(this::reloadIfModified, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return blobFile != null;
+    }
+
+    /**
+     * @return the metadata of the authenticator model if the attestation
+     * of the registration is trusted, empty if not or if the trust store
+     * is disabled
+     */
+    public Optional<MetadataStatement> findTrusted(RegistrationResult registration) {
+        Snapshot current = snapshot.get();
+        List<X509Certificate> chain = registration.getAttestationTrustPath().orElse(List.of());
+        if (current == null || chain.isEmpty()) {
+            return Optional.empty();
+        }
+        ChainKey key;
+        try {
+            key = new ChainKey(registration.getAaguid(), new ByteArray(
+                    MessageDigest.getInstance("SHA-256").digest(chain.get(0).getEncoded())));
+        } catch (GeneralSecurityException e) {
+            return Optional.empty();
+        }
+        Validation validation = current.validated().getIfPresent(key);
+        if (validation != null) {
+            return Optional.of(validation.statement());
+        }
+        Optional<MetadataStatement> statement = validate(current, registration.getAaguid(), chain);
+        statement.ifPresent(s -> current.validated().put(key, new Validation(s, notAfter(chain))));
+        return statement;
+    }
+
+    private static Instant notAfter(List<X509Certificate> chain) {
+        return chain.stream()
+                .map(c -> c.getNotAfter().toInstant())
+                .min(Comparator.naturalOrder())
+                .orElseThrow();
+    }
+
+    /**
+     * Reloads the BLOB if its file has changed, keeping the old one on
+     * errors.
+     */
+    public void reloadIfModified() {
+        try {
+            if (!Files.getLastModifiedTime(blobFile).toInstant().equals(snapshot.get().modified())) {
+                snapshot.set(load());
+                logLoaded();
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            log.warn("Reloading the metadata BLOB {} failed, using the old one", blobFile, e);
+        }
+    }
+
+    private void logLoaded() {
+        Snapshot loaded = snapshot.get();
+        log.info("Loaded metadata BLOB number {} with {} AAGUIDs and {} attestation key identifiers",
+                loaded.serial(), loaded.byAaguid().size(), loaded.byKeyIdentifier().size());
+    }
+
+    private Snapshot load() throws IOException, GeneralSecurityException {
+        Instant modified = Files.getLastModifiedTime(blobFile).toInstant();
+        X509Certificate trustRoot;
+        try (InputStream in = Files.newInputStream(trustRootFile)) {
+            // PEM or DER
+            trustRoot = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+        FidoMetadataDownloader.FidoMetadataDownloaderBuilder downloader = FidoMetadataDownloader.builder()
+                .expectLegalHeader(legalHeader)
+                .useTrustRoot(trustRoot)
+                .useBlob(Files.readString(blobFile).trim());
+        if (!crlFiles.isEmpty()) {
+            downloader.useCrls(readCrls());
+        }
+        MetadataBLOBPayload payload;
+        try {
+            payload = downloader.build().loadCachedBlob().getPayload();
+        } catch (IOException | GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        Map<ByteArray, List<MetadataStatement>> byAaguid = new HashMap<>();
+        Map<String, List<MetadataStatement>> byKeyIdentifier = new HashMap<>();
+        for (MetadataBLOBPayloadEntry entry : payload.getEntries()) {
+            Optional<MetadataStatement> statement = entry.getMetadataStatement();
+            if (statement.isEmpty() || isUntrusted(entry)) {
+                continue;
+            }
+            entry.getAaguid().filter(aaguid -> !aaguid.isZero()).ifPresent(aaguid ->
+                    byAaguid.computeIfAbsent(aaguid.asBytes(), a -> new ArrayList<>()).add(statement.get()));
+            for (String keyIdentifier : entry.getAttestationCertificateKeyIdentifiers()) {
+                byKeyIdentifier.computeIfAbsent(keyIdentifier.toLowerCase(), k -> new ArrayList<>()).add(statement.get());
+            }
+        }
+        return new Snapshot(modified, payload.getNo(), byAaguid, byKeyIdentifier,
+                Caffeine.newBuilder().maximumSize(cacheSize).expireAfter(new ChainExpiry()).build());
+    }
+
+    private List<CRL> readCrls() throws IOException, GeneralSecurityException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        List<CRL> crls = new ArrayList<>();
+        for (Path file : crlFiles) {
+            try (InputStream in = Files.newInputStream(file)) {
+                crls.addAll(factory.generateCRLs(in));
+            }
+        }
+        return crls;
+    }
+
+    private static boolean isUntrusted(MetadataBLOBPayloadEntry entry) {
+        return entry.getStatusReports().stream()
+                .max(Comparator.comparing(r -> r.getEffectiveDate().orElse(LocalDate.MIN)))
+                .map(StatusReport::getStatus)
+                .filter(UNTRUSTED::contains)
+                .isPresent();
+    }
+
+    private static Optional<MetadataStatement> validate(Snapshot snapshot, ByteArray aaguid,
+                                                        List<X509Certificate> chain) {
+        // the candidate models, by AAGUID (FIDO2) or by key identifier (U2F)
+        Set<MetadataStatement> candidates = new LinkedHashSet<>();
+        if (!new AAGUID(aaguid).isZero()) {
+            candidates.addAll(snapshot.byAaguid().getOrDefault(aaguid, List.of()));
+        }
+        for (X509Certificate certificate : chain) {
+            try {
+                String keyIdentifier = new ByteArray(CertificateParser.computeSubjectKeyIdentifier(certificate)).getHex();
+                candidates.addAll(snapshot.byKeyIdentifier().getOrDefault(keyIdentifier, List.of()));
+            } catch (GeneralSecurityException e) {
+                return Optional.empty();
+            }
+        }
+        for (MetadataStatement candidate : candidates) {
+            if (isValidPath(chain, candidate.getAttestationRootCertificates())) {
+                return Optional.of(candidate);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isValidPath(List<X509Certificate> chain, Collection<X509Certificate> roots) {
+        if (roots.isEmpty()) {
+            return false;
+        }
+        // authenticators may include the root, which isn't part of the path
+        List<X509Certificate> path = new ArrayList<>(chain);
+        while (path.size() > 1 && roots.contains(path.get(path.size() - 1))) {
+            path.remove(path.size() - 1);
+        }
+        try {
+            Set<TrustAnchor> anchors = new LinkedHashSet<>();
+            for (X509Certificate root : roots) {
+                anchors.add(new TrustAnchor(root, null));
+            }
+            PKIXParameters parameters = new PKIXParameters(anchors);
+            // attestation certificates rarely have CRLs, revoked models
+            // are excluded by their status in the BLOB instead
+            parameters.setRevocationEnabled(false);
+            CertPathValidator.getInstance("PKIX").validate(
+                    CertificateFactory.getInstance("X.509").generateCertPath(path), parameters);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        reloader.shutdownNow();
+    }
+}
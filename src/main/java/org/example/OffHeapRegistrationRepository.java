@@ -0,0 +1,728 @@
+package org.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory repository for lots of passkeys: the passkeys are packed
+ * into direct (off-heap) byte buffers instead of being kept as objects.
+ * Enable with {@code webauthn.repository=offheap}.
+ * <p>
+ * As objects, each passkey is a handful of {@link ByteArray}s, each with
+ * its own cached base64 strings, several hundred bytes of heap that the GC
+ * has to trace. Here a passkey is a single record in a buffer, and the
+ * indexes by credential id, username and user handle are open addressing
+ * hash tables of record addresses in primitive arrays. The objects the
+ * WebAuthn library asks for are built from the record when needed. Only the
+ * usernames are also kept on the heap in a sorted set, for listing users.
+ * </p>
+ * <p>
+ * The passkeys the library verifies logins with are kept decoded in a
+ * cache of {@code webauthn.offheap.credential-cache-bytes}, so that users
+ * logging in and re-authenticating often don't rebuild them each time.
+ * Removing a passkey drops it from the cache.
+ * </p>
+ * <p>
+ * Like the default repository, nothing is persisted. Removed passkeys
+ * leave garbage in their chunk. When less than a quarter of a chunk is
+ * still in use, the passkeys left in it are moved to the chunk being
+ * written and the chunk is released. Direct memory is limited by
+ * {@code -XX:MaxDirectMemorySize}, which defaults to the max heap size.
+ * </p>
+ */
+@Service
+@ConditionalOnProperty(name = "webauthn.repository", havingValue = "offheap")
+public class OffHeapRegistrationRepository implements RegistrationRepository {
+
+    // Record layout: the mutable fields at fixed offsets, then the
+    // variable length fields as u16 length + bytes in this order, then the
+    // transports as a count byte and a length byte + ASCII id per transport
+    private static final int NEXT_IN_USER = 0;
+    private static final int SIGNATURE_COUNT = 8;
+    private static final int LAST_USED = 16;
+    private static final int VARIABLE_FIELDS = 24;
+    private static final int CREDENTIAL_ID = 0;
+    private static final int USER_HANDLE = 1;
+    private static final int USERNAME = 2;
+    private static final int PUBLIC_KEY_COSE = 3;
+    private static final int TRANSPORTS = 4;
+
+    private static final long NONE = -1;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    /**
+     * An open addressing hash table from a key stored in the records to
+     * a record address. Linear probing, removed entries leave a tombstone
+     * until the next resize.
+     */
+    private final class Index {
+        private static final long EMPTY = 0;
+        private static final long REMOVED = -1;
+
+        private final int field;
+        // record address + 1, so that zero can mean empty
+        private long[] slots = new long[1024];
+        private int[] hashes = new int[1024];
+        private int size;
+        private int used;
+
+        Index(int field) {
+            this.field = field;
+        }
+
+        long find(int hash, byte[] key) {
+            int mask = slots.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long slot = slots[i];
+                if (slot == EMPTY) {
+                    return NONE;
+                }
+                if (slot != REMOVED && hashes[i] == hash && fieldEquals(slot - 1, field, key)) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        void put(int hash, long address) {
+            if ((used + 1) * 2L > slots.length) {
+                resize();
+            }
+            int mask = slots.length - 1;
+            int i = hash & mask;
+            while (slots[i] != EMPTY && slots[i] != REMOVED) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == EMPTY) {
+                used++;
+            }
+            slots[i] = address + 1;
+            hashes[i] = hash;
+            size++;
+        }
+
+        void replace(int hash, long address, long newAddress) {
+            int i = slotOf(hash, address);
+            if (i >= 0) {
+                slots[i] = newAddress + 1;
+            }
+        }
+
+        void remove(int hash, long address) {
+            int i = slotOf(hash, address);
+            if (i >= 0) {
+                slots[i] = REMOVED;
+                size--;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private int slotOf(int hash, long address) {
+            int mask = slots.length - 1;
+            for (int i = hash & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (slots[i] == address + 1) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void resize() {
+            long[] oldSlots = slots;
+            int[] oldHashes = hashes;
+            int capacity = Integer.highestOneBit(Math.max(1024, size * 4 - 1)) << 1;
+            slots = new long[capacity];
+            hashes = new int[capacity];
+            size = 0;
+            used = 0;
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] != EMPTY && oldSlots[i] != REMOVED) {
+                    put(oldHashes[i], oldSlots[i] - 1);
+                }
+            }
+        }
+    }
+
+    private final int chunkSize;
+    // Addresses are chunk index * chunk size + offset. Released chunks
+    // are null until their index is reused.
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final Deque<Integer> releasedChunks = new ArrayDeque<>();
+    // the bytes of each chunk that are written and still in use
+    private int[] chunkEnds = new int[16];
+    private int[] liveBytes = new int[16];
+    private int writeChunk;
+    // Writers change records in place and resize the indexes, so reads
+    // and writes are separated with a lock. Reads don't block each other.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long seed = new SecureRandom().nextLong();
+    private final Index credentials = new Index(CREDENTIAL_ID);
+    // these point to the first record of each user, the rest are chained
+    private final Index usersByName = new Index(USERNAME);
+    private final Index usersByHandle = new Index(USER_HANDLE);
+    private final NavigableSet<String> sortedUsernames = new ConcurrentSkipListSet<>();
+    // Read and filled under the read lock, and invalidated under the write
+    // lock, so a removed passkey can't be cached again by a concurrent
+    // lookup. Null if disabled.
+    private final Cache<ByteArray, RegisteredCredential> decoded;
+
+    public OffHeapRegistrationRepository(@Value("${webauthn.offheap.chunk-size:16777216}") int chunkSize,
+                                         @Value("${webauthn.offheap.credential-cache-bytes:16000000}") long credentialCacheBytes) {
+        this.chunkSize = chunkSize;
+        chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        decoded = credentialCacheBytes <= 0 ? null : Caffeine.newBuilder()
+                .maximumWeight(credentialCacheBytes)
+                .weigher(JdbcRegistrationRepository::weigh)
+                .build();
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            long record = usersByName.find(hash(name), name);
+            if (record == NONE) {
+                return Set.of();
+            }
+            long next = chunk(record).getLong(offset(record) + NEXT_IN_USER);
+            if (next == NONE) {
+                // the usual case
+                return Set.of(descriptor(record));
+            }
+            List<PublicKeyCredentialDescriptor> descriptors = new ArrayList<>(4);
+            for (; record != NONE; record = chunk(record).getLong(offset(record) + NEXT_IN_USER)) {
+                descriptors.add(descriptor(record));
+            }
+            // the credential ids are unique, so are the descriptors
+            return Set.copyOf(descriptors);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            long record = usersByName.find(hash(name), name);
+            return record == NONE ? Optional.empty() : Optional.of(new ByteArray(field(record, USER_HANDLE)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        byte[] handle = userHandle.getBytes();
+        lock.readLock().lock();
+        try {
+            long record = usersByHandle.find(hash(handle), handle);
+            return record == NONE ? Optional.empty()
+                    : Optional.of(new String(field(record, USERNAME), StandardCharsets.UTF_8));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        lock.readLock().lock();
+        try {
+            RegisteredCredential credential = decoded(credentialId);
+            return credential != null && credential.getUserHandle().equals(userHandle)
+                    ? Optional.of(credential) : Optional.empty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        lock.readLock().lock();
+        try {
+            RegisteredCredential credential = decoded(credentialId);
+            return credential == null ? Set.of() : Set.of(credential);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the passkey, from the cache or from its record, null if not known
+     */
+    private RegisteredCredential decoded(ByteArray credentialId) {
+        RegisteredCredential credential = decoded == null ? null : decoded.getIfPresent(credentialId);
+        if (credential == null) {
+            byte[] id = credentialId.getBytes();
+            long record = credentials.find(hash(id), id);
+            if (record == NONE) {
+                // misses are not cached, probing can't push real users out
+                return null;
+            }
+            credential = credential(record);
+            if (decoded != null) {
+                decoded.put(credentialId, credential);
+            }
+        }
+        return credential;
+    }
+
+    @Override
+    public void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON) {
+        store(new CredentialRegistration(username, keyId, RegisteredCredential.builder()
+                .credentialId(keyId.getId())
+                .userHandle(user)
+                .publicKeyCose(publicKeyCose)
+                .signatureCount(attestation.getAuthenticatorData().getSignatureCounter())
+                .build()));
+    }
+
+    void store(CredentialRegistration registration) {
+        lock.writeLock().lock();
+        try {
+            storeLocked(registration);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void storeAll(Collection<CredentialRegistration> registrations) {
+        // one lock for the whole batch
+        lock.writeLock().lock();
+        try {
+            registrations.forEach(this::storeLocked);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void storeLocked(CredentialRegistration registration) {
+        RegisteredCredential credential = registration.credential();
+        byte[] id = credential.getCredentialId().getBytes();
+        byte[] handle = credential.getUserHandle().getBytes();
+        byte[] name = registration.username().getBytes(StandardCharsets.UTF_8);
+        long lastUsed = NEVER;
+        long existing = credentials.find(hash(id), id);
+        if (existing != NONE) {
+            // stored again, e.g. when replaying a log, keep the usage
+            lastUsed = chunk(existing).getLong(offset(existing) + LAST_USED);
+            removeLocked(existing, id);
+        }
+        long record = append(registration, lastUsed);
+        credentials.put(hash(id), record);
+        long first = usersByName.find(hash(name), name);
+        ByteBuffer chunk = chunk(record);
+        if (first == NONE) {
+            chunk.putLong(offset(record) + NEXT_IN_USER, NONE);
+            usersByName.put(hash(name), record);
+            usersByHandle.put(hash(handle), record);
+            sortedUsernames.add(registration.username());
+        } else {
+            // link as the second one, so the indexes stay as they are
+            ByteBuffer firstChunk = chunk(first);
+            chunk.putLong(offset(record) + NEXT_IN_USER, firstChunk.getLong(offset(first) + NEXT_IN_USER));
+            firstChunk.putLong(offset(first) + NEXT_IN_USER, record);
+        }
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        byte[] id = credentialId.getBytes();
+        lock.writeLock().lock();
+        try {
+            long record = credentials.find(hash(id), id);
+            if (record != NONE) {
+                removeLocked(record, id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(long record, byte[] id) {
+        credentials.remove(hash(id), record);
+        if (decoded != null) {
+            decoded.invalidate(new ByteArray(id));
+        }
+        byte[] name = field(record, USERNAME);
+        byte[] handle = field(record, USER_HANDLE);
+        long next = chunk(record).getLong(offset(record) + NEXT_IN_USER);
+        long first = usersByName.find(hash(name), name);
+        if (first == record) {
+            if (next == NONE) {
+                // that was the last passkey, forget the user too
+                usersByName.remove(hash(name), record);
+                usersByHandle.remove(hash(handle), record);
+                sortedUsernames.remove(new String(name, StandardCharsets.UTF_8));
+            } else {
+                usersByName.replace(hash(name), record, next);
+                usersByHandle.replace(hash(handle), record, next);
+            }
+        } else {
+            long previous = first;
+            long p;
+            while ((p = chunk(previous).getLong(offset(previous) + NEXT_IN_USER)) != record) {
+                previous = p;
+            }
+            chunk(previous).putLong(offset(previous) + NEXT_IN_USER, next);
+        }
+        int c = chunkIndex(record);
+        liveBytes[c] -= length(record);
+        if (c != writeChunk && liveBytes[c] < chunkSize / 4) {
+            release(c);
+        }
+    }
+
+    /**
+     * Moves the passkeys still in the chunk to the one being written, and
+     * releases the chunk.
+     */
+    private void release(int c) {
+        long start = (long) c * chunkSize;
+        for (long record = start; record < start + chunkEnds[c]; record += length(record)) {
+            byte[] id = field(record, CREDENTIAL_ID);
+            if (credentials.find(hash(id), id) == record) {
+                move(record, id);
+            }
+        }
+        chunks.set(c, null);
+        chunkEnds[c] = 0;
+        liveBytes[c] = 0;
+        releasedChunks.push(c);
+    }
+
+    private void move(long record, byte[] id) {
+        int length = length(record);
+        long moved = allocate(length);
+        chunk(moved).put(offset(moved), chunk(record), offset(record), length);
+        credentials.replace(hash(id), record, moved);
+        byte[] name = field(record, USERNAME);
+        long first = usersByName.find(hash(name), name);
+        if (first == record) {
+            byte[] handle = field(record, USER_HANDLE);
+            usersByName.replace(hash(name), record, moved);
+            usersByHandle.replace(hash(handle), record, moved);
+        } else {
+            long previous = first;
+            long p;
+            while ((p = chunk(previous).getLong(offset(previous) + NEXT_IN_USER)) != record) {
+                previous = p;
+            }
+            chunk(previous).putLong(offset(previous) + NEXT_IN_USER, moved);
+        }
+    }
+
+    @Override
+    public void updateUsage(Collection<CredentialUsage> usages) {
+        lock.writeLock().lock();
+        try {
+            for (CredentialUsage usage : usages) {
+                byte[] id = usage.credentialId().getBytes();
+                long record = credentials.find(hash(id), id);
+                if (record == NONE) {
+                    continue;
+                }
+                ByteBuffer chunk = chunk(record);
+                int offset = offset(record);
+                // never go backwards, even if updates arrive out of order
+                long count = Math.max(chunk.getLong(offset + SIGNATURE_COUNT), usage.signatureCount());
+                chunk.putLong(offset + SIGNATURE_COUNT, count);
+                if (decoded != null) {
+                    decoded.asMap().computeIfPresent(usage.credentialId(), (i, c) -> c.getSignatureCount() == count
+                            ? c : c.toBuilder().signatureCount(count).build());
+                }
+                chunk.putLong(offset + LAST_USED,
+                        Math.max(chunk.getLong(offset + LAST_USED), usage.lastUsed().toEpochMilli()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Instant> getLastUsed(ByteArray credentialId) {
+        byte[] id = credentialId.getBytes();
+        lock.readLock().lock();
+        try {
+            long record = credentials.find(hash(id), id);
+            long lastUsed = record == NONE ? NEVER : chunk(record).getLong(offset(record) + LAST_USED);
+            return lastUsed == NEVER ? Optional.empty() : Optional.of(Instant.ofEpochMilli(lastUsed));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        NavigableSet<String> usernames = withPrefix(usernamePrefix);
+        if (after != null) {
+            usernames = usernames.tailSet(after, false);
+        }
+        List<String> page = new ArrayList<>(Math.min(limit, 100));
+        Iterator<String> i = usernames.iterator();
+        while (page.size() < limit && i.hasNext()) {
+            page.add(i.next());
+        }
+        return page;
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        sortedUsernames.forEach(consumer);
+    }
+
+    @Override
+    public void forEachRegistration(Consumer<CredentialRegistration> consumer) {
+        List<CredentialRegistration> registrations = new ArrayList<>();
+        for (String username : sortedUsernames) {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            // a user at a time, so that writers are not blocked for long
+            lock.readLock().lock();
+            try {
+                for (long record = usersByName.find(hash(name), name); record != NONE;
+                     record = chunk(record).getLong(offset(record) + NEXT_IN_USER)) {
+                    registrations.add(new CredentialRegistration(username, descriptor(record), credential(record)));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            registrations.forEach(consumer);
+            registrations.clear();
+        }
+    }
+
+    @Override
+    public long countUsers(String usernamePrefix, long max) {
+        if (usernamePrefix.isEmpty()) {
+            lock.readLock().lock();
+            try {
+                return Math.min(usersByName.size(), max);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return InMemoryRegistrationRepository.count(withPrefix(usernamePrefix), max);
+    }
+
+    @Override
+    public long countCredentials() {
+        lock.readLock().lock();
+        try {
+            return credentials.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private NavigableSet<String> withPrefix(String usernamePrefix) {
+        if (usernamePrefix.isEmpty()) {
+            return sortedUsernames;
+        }
+        return sortedUsernames.subSet(usernamePrefix, true, usernamePrefix + Character.MAX_VALUE, false);
+    }
+
+    private long append(CredentialRegistration registration, long lastUsed) {
+        RegisteredCredential credential = registration.credential();
+        byte[][] fields = {
+                credential.getCredentialId().getBytes(),
+                credential.getUserHandle().getBytes(),
+                registration.username().getBytes(StandardCharsets.UTF_8),
+                credential.getPublicKeyCose().getBytes()
+        };
+        List<byte[]> transports = registration.descriptor().getTransports()
+                .map(t -> t.stream().map(a -> a.getId().getBytes(StandardCharsets.US_ASCII)).toList())
+                .orElse(List.of());
+        int length = VARIABLE_FIELDS + 1;
+        for (byte[] f : fields) {
+            length += 2 + f.length;
+        }
+        for (byte[] t : transports) {
+            length += 1 + t.length;
+        }
+        if (length > chunkSize) {
+            throw new IllegalArgumentException("Passkey does not fit in a chunk of " + chunkSize + " bytes");
+        }
+        long record = allocate(length);
+        ByteBuffer chunk = chunk(record);
+        int position = offset(record);
+        chunk.putLong(position + NEXT_IN_USER, NONE);
+        chunk.putLong(position + SIGNATURE_COUNT, credential.getSignatureCount());
+        chunk.putLong(position + LAST_USED, lastUsed);
+        position += VARIABLE_FIELDS;
+        for (byte[] f : fields) {
+            chunk.putShort(position, (short) f.length);
+            chunk.put(position + 2, f);
+            position += 2 + f.length;
+        }
+        chunk.put(position++, (byte) transports.size());
+        for (byte[] t : transports) {
+            chunk.put(position++, (byte) t.length);
+            chunk.put(position, t);
+            position += t.length;
+        }
+        return record;
+    }
+
+    /**
+     * @return the direct memory taken by the chunks
+     */
+    long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) (chunks.size() - releasedChunks.size()) * chunkSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the address of a new record of the given length
+     */
+    private long allocate(int length) {
+        if (chunkEnds[writeChunk] + length > chunkSize) {
+            // records never span chunks, start a new one
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+            if (releasedChunks.isEmpty()) {
+                chunks.add(chunk);
+                writeChunk = chunks.size() - 1;
+                if (writeChunk == chunkEnds.length) {
+                    chunkEnds = Arrays.copyOf(chunkEnds, writeChunk * 2);
+                    liveBytes = Arrays.copyOf(liveBytes, writeChunk * 2);
+                }
+            } else {
+                writeChunk = releasedChunks.pop();
+                chunks.set(writeChunk, chunk);
+            }
+        }
+        long record = (long) writeChunk * chunkSize + chunkEnds[writeChunk];
+        chunkEnds[writeChunk] += length;
+        liveBytes[writeChunk] += length;
+        return record;
+    }
+
+    /**
+     * @return the length of the record, see the layout above
+     */
+    private int length(long record) {
+        ByteBuffer chunk = chunk(record);
+        int position = fieldPosition(chunk, record, TRANSPORTS);
+        int count = chunk.get(position++);
+        for (int i = 0; i < count; i++) {
+            position += 1 + chunk.get(position);
+        }
+        return position - offset(record);
+    }
+
+    private int chunkIndex(long address) {
+        return (int) (address / chunkSize);
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get(chunkIndex(address));
+    }
+
+    private int offset(long address) {
+        return (int) (address % chunkSize);
+    }
+
+    /**
+     * @return the position of the length prefix of the given variable field
+     */
+    private int fieldPosition(ByteBuffer chunk, long record, int field) {
+        int position = offset(record) + VARIABLE_FIELDS;
+        for (int i = 0; i < field; i++) {
+            position += 2 + Short.toUnsignedInt(chunk.getShort(position));
+        }
+        return position;
+    }
+
+    private byte[] field(long record, int field) {
+        ByteBuffer chunk = chunk(record);
+        int position = fieldPosition(chunk, record, field);
+        byte[] bytes = new byte[Short.toUnsignedInt(chunk.getShort(position))];
+        chunk.get(position + 2, bytes);
+        return bytes;
+    }
+
+    private boolean fieldEquals(long record, int field, byte[] key) {
+        ByteBuffer chunk = chunk(record);
+        int position = fieldPosition(chunk, record, field);
+        if (Short.toUnsignedInt(chunk.getShort(position)) != key.length) {
+            return false;
+        }
+        position += 2;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private RegisteredCredential credential(long record) {
+        return RegisteredCredential.builder()
+                .credentialId(new ByteArray(field(record, CREDENTIAL_ID)))
+                .userHandle(new ByteArray(field(record, USER_HANDLE)))
+                .publicKeyCose(new ByteArray(field(record, PUBLIC_KEY_COSE)))
+                .signatureCount(chunk(record).getLong(offset(record) + SIGNATURE_COUNT))
+                .build();
+    }
+
+    private PublicKeyCredentialDescriptor descriptor(long record) {
+        var descriptor = PublicKeyCredentialDescriptor.builder().id(new ByteArray(field(record, CREDENTIAL_ID)));
+        ByteBuffer chunk = chunk(record);
+        int position = fieldPosition(chunk, record, TRANSPORTS);
+        int count = chunk.get(position++);
+        if (count > 0) {
+            SortedSet<AuthenticatorTransport> transports = new TreeSet<>();
+            for (int i = 0; i < count; i++) {
+                byte[] t = new byte[chunk.get(position++)];
+                chunk.get(position, t);
+                position += t.length;
+                transports.add(AuthenticatorTransport.of(new String(t, StandardCharsets.US_ASCII)));
+            }
+            descriptor.transports(transports);
+        }
+        return descriptor.build();
+    }
+
+    private int hash(byte[] key) {
+        // the usernames are chosen by the users, so the hash is seeded to
+        // keep them from building long probe chains on purpose
+        return (int) Hashing.hash(key, seed);
+    }
+}
@@ -0,0 +1,261 @@
+package org.example;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how often the ceremonies can be started, per client address, per
+ * username and in total. Starting a ceremony needs no login, but costs
+ * the server a challenge, repository queries and later a signature check,
+ * so without a limit anybody could keep the server busy.
+ * <p>
+ * Requests over a limit are rejected right away with a
+ * {@link RateLimitExceededException}, an IllegalStateException like the
+ * one {@link CeremonyStore} throws when too many ceremonies are pending.
+ * Nothing here locks:
+ * </p>
+ * <ul>
+ *     <li>The global limit is a token bucket kept in a single
+ *     {@link AtomicLong}, the time when the bucket is full again (the
+ *     "generic cell rate algorithm"), updated with compare-and-set.</li>
+ *     <li>The address and username limits count the requests of the
+ *     current second in a count-min sketch, a few rows of counters indexed
+ *     by different hashes of the key. A key's count is the smallest of its
+ *     counters, which is never too low but may be too high if other keys
+ *     share all of them. The memory is fixed however many keys there
+ *     are. The hashes are seeded randomly at startup, so nobody can pick
+ *     keys that collide on purpose.</li>
+ * </ul>
+ * <p>
+ * A limit of 0 disables it. The client address is the one the servlet
+ * container reports. Behind a reverse proxy that is the proxy's, unless
+ * {@code server.forward-headers-strategy} is set, and all clients would
+ * share one address limit.
+ * </p>
+ */
+@Service
+public class RateLimiter {
+
+    public enum Limit {
+        GLOBAL, ADDRESS, USERNAME
+    }
+
+    /**
+     * Thrown when a limit is exceeded. Has no stack trace, as filling it
+     * in would be the most expensive part of rejecting a flood.
+     */
+    public static class RateLimitExceededException extends IllegalStateException {
+
+        RateLimitExceededException() {
+            super("Too many attempts, please try again later.");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private final LongSupplier nanoTime;
+    private final TokenBucket global;
+    private final KeyedLimit perAddress;
+    private final KeyedLimit perUsername;
+    private final LongAdder[] rejected = new LongAdder[Limit.values().length];
+
+    @Autowired
+    public RateLimiter(@Value("${webauthn.rate-limit.global-per-second:1000}") int globalPerSecond,
+                       @Value("${webauthn.rate-limit.address-per-second:10}") int addressPerSecond,
+                       @Value("${webauthn.rate-limit.username-per-second:5}") int usernamePerSecond,
+                       @Value("${webauthn.rate-limit.sketch-width:16384}") int sketchWidth) {
+        this(globalPerSecond, addressPerSecond, usernamePerSecond, sketchWidth, System::nanoTime);
+    }
+
+    /**
+     * @param nanoTime the clock of the limits, {@link System#nanoTime()}
+     *                 except in tests
+     */
+    RateLimiter(int globalPerSecond, int addressPerSecond, int usernamePerSecond, int sketchWidth,
+                LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+        global = new TokenBucket(globalPerSecond, nanoTime);
+        perAddress = new KeyedLimit(addressPerSecond, sketchWidth);
+        perUsername = new KeyedLimit(usernamePerSecond, sketchWidth);
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Takes one request from the limits.
+     *
+     * @param address  the client address, or null if not known
+     * @param username the username, or null if not known yet, e.g. for
+     *                 a login
+     * @throws RateLimitExceededException if any of the limits is exceeded
+     */
+    public void acquire(String address, String username) {
+        long second = TimeUnit.NANOSECONDS.toSeconds(nanoTime.getAsLong());
+        // the narrowest limits first, so that a single flooding client
+        // doesn't use up the global limit of the others. A request counts
+        // against no limit if any of them rejects it.
+        if (address != null && !perAddress.tryAcquire(address, second)) {
+            reject(Limit.ADDRESS);
+        }
+        if (username != null && !perUsername.tryAcquire(username, second)) {
+            release(address, null, second);
+            reject(Limit.USERNAME);
+        }
+        if (!global.tryAcquire()) {
+            release(address, username, second);
+            reject(Limit.GLOBAL);
+        }
+    }
+
+    public long getRejected(Limit limit) {
+        return rejected[limit.ordinal()].sum();
+    }
+
+    private void release(String address, String username, long second) {
+        if (address != null) {
+            perAddress.release(address, second);
+        }
+        if (username != null) {
+            perUsername.release(username, second);
+        }
+    }
+
+    private void reject(Limit limit) {
+        rejected[limit.ordinal()].increment();
+        throw new RateLimitExceededException();
+    }
+
+    private static final class TokenBucket {
+
+        private final long interval;
+        private final long tolerance;
+        private final LongSupplier nanoTime;
+        // when the bucket would be full again
+        private final AtomicLong theoreticalArrival;
+
+        /**
+         * @param perSecond the rate, and also the size of the bucket
+         */
+        TokenBucket(int perSecond, LongSupplier nanoTime) {
+            this.nanoTime = nanoTime;
+            theoreticalArrival = new AtomicLong(nanoTime.getAsLong());
+            interval = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+            tolerance = interval * (perSecond - 1L);
+        }
+
+        boolean tryAcquire() {
+            if (interval == 0) {
+                return true;
+            }
+            long now = nanoTime.getAsLong();
+            while (true) {
+                long tat = theoreticalArrival.get();
+                if (tat - now > tolerance) {
+                    return false;
+                }
+                long next = (tat - now > 0 ? tat : now) + interval;
+                if (theoreticalArrival.compareAndSet(tat, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static final class KeyedLimit {
+
+        private static final int DEPTH = 4;
+
+        private final int perSecond;
+        private final int width;
+        private final long seed = new SecureRandom().nextLong();
+        // Two sketches, for even and odd seconds, so that the one of the
+        // next second can be cleared while the current one is in use
+        private final AtomicIntegerArray[] sketches = new AtomicIntegerArray[2];
+        private final AtomicLongArray sketchSeconds = new AtomicLongArray(2);
+
+        KeyedLimit(int perSecond, int width) {
+            this.perSecond = perSecond;
+            this.width = Math.max(64, width);
+            for (int i = 0; i < 2; i++) {
+                sketches[i] = new AtomicIntegerArray(DEPTH * this.width);
+                sketchSeconds.set(i, Long.MIN_VALUE);
+            }
+        }
+
+        /**
+         * Counts the request first and then checks the limit, so that
+         * concurrent requests of the same key can't all pass a check
+         * before any of them is counted.
+         */
+        boolean tryAcquire(String key, long second) {
+            if (perSecond <= 0) {
+                return true;
+            }
+            AtomicIntegerArray counts = sketch(second);
+            long h1 = Hashing.hash(key, seed);
+            long h2 = Hashing.step(h1);
+            int count = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                count = Math.min(count, counts.incrementAndGet(cell(h1, h2, i)));
+            }
+            if (count > perSecond) {
+                // not counted, so that a rejected flood doesn't prolong itself
+                release(counts, h1, h2);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Takes back a request counted by {@link #tryAcquire(String, long)}
+         * in the same second.
+         */
+        void release(String key, long second) {
+            if (perSecond <= 0 || sketchSeconds.get((int) (second & 1)) != second) {
+                // cleared already
+                return;
+            }
+            long h1 = Hashing.hash(key, seed);
+            release(sketches[(int) (second & 1)], h1, Hashing.step(h1));
+        }
+
+        private void release(AtomicIntegerArray counts, long h1, long h2) {
+            for (int i = 0; i < DEPTH; i++) {
+                // never below zero, the sketch may have been cleared meanwhile
+                counts.getAndUpdate(cell(h1, h2, i), c -> c > 0 ? c - 1 : 0);
+            }
+        }
+
+        private int cell(long h1, long h2, int i) {
+            return i * width + (int) Hashing.index(h1, h2, i, width);
+        }
+
+        private AtomicIntegerArray sketch(long second) {
+            int i = (int) (second & 1);
+            long current = sketchSeconds.get(i);
+            if (current != second && sketchSeconds.compareAndSet(i, current, second)) {
+                // The first request of a new second clears the counts of
+                // two seconds ago. Requests counted meanwhile may get lost,
+                // which only makes the limit a bit looser for a moment.
+                AtomicIntegerArray counts = sketches[i];
+                for (int c = 0; c < counts.length(); c++) {
+                    counts.set(c, 0);
+                }
+            }
+            return sketches[i];
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The "user database" of the app: Yubico's {@link CredentialRepository}
+ * for the WebAuthn library plus the write and listing methods our own
+ * code needs.
+ * <p>
+ * The implementation is chosen with the {@code webauthn.repository}
+ * property, see application.properties.
+ * </p>
+ */
+public interface RegistrationRepository extends CredentialRepository {
+
+    void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON);
+
+    /**
+     * Removes a passkey, e.g. when the authenticator is lost. Removing the
+     * last passkey of a user removes the user as well. Does nothing if the
+     * passkey is not known.
+     */
+    void removeCredential(ByteArray credentialId);
+
+    /**
+     * Updates the signature counters and last used times of passkeys.
+     * Called in batches by {@link CredentialUsageRecorder}, not on each
+     * login. Counters never decrease, unknown passkeys are ignored.
+     */
+    void updateUsage(Collection<CredentialUsage> usages);
+
+    /**
+     * Stores passkeys in bulk, e.g. when migrating users from another
+     * system, see {@link BulkTransfer}. Unlike {@link #storeCredential},
+     * the passkeys are expected to be valid and new: the caller checks that
+     * the credential ids are not known yet and that each username keeps
+     * the same user handle.
+     */
+    void storeAll(Collection<CredentialRegistration> registrations);
+
+    /**
+     * Passes every stored passkey to the given consumer, e.g. to export
+     * them, without collecting them to memory first. Passkeys stored
+     * concurrently may or may not be included.
+     */
+    void forEachRegistration(Consumer<CredentialRegistration> consumer);
+
+    Optional<Instant> getLastUsed(ByteArray credentialId);
+
+    /**
+     * Lists users a page at a time, sorted by username. The next page
+     * starts after the last username of the previous one, so that a page
+     * far down the list is found as fast as the first one.
+     *
+     * @param usernamePrefix only list usernames starting with this, empty for all
+     * @param after          the last username of the previous page, null for the first page
+     * @param limit          the maximum number of users to return
+     */
+    List<String> findUsers(String usernamePrefix, String after, int limit);
+
+    /**
+     * Passes every username to the given consumer, e.g. to build an index
+     * at startup, without collecting them to memory first.
+     */
+    void forEachUsername(Consumer<String> consumer);
+
+    /**
+     * Counts the users {@link #findUsers(String, String, int)} would list,
+     * but stops at {@code max}. Counting the users with a prefix takes
+     * time in proportion to their number, a UI only needs to know if
+     * there are more than fit on the screen.
+     *
+     * @return the number of users with the prefix, at most {@code max}
+     */
+    long countUsers(String usernamePrefix, long max);
+
+    /**
+     * @return the number of users with at least one passkey
+     */
+    default long countUsers() {
+        return countUsers("", Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the number of stored passkeys
+     */
+    long countCredentials();
+}
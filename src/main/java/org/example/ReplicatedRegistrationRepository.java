@@ -0,0 +1,306 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A repository for running several nodes behind a load balancer. Every
+ * node keeps all passkeys in a local {@link InMemoryRegistrationRepository},
+ * so logins never leave the node, and the changes are shipped to the
+ * other nodes via a {@link ReplicationTransport} as {@link CredentialRecords}.
+ * A node joining the cluster first gets the state of an existing node.
+ * Enable with {@code webauthn.repository=replicated}.
+ * <p>
+ * Applying the changes is idempotent and usage updates only move forward,
+ * so the nodes converge. The only real conflict is the same username
+ * registered on two nodes at the same time, as reservations are local to
+ * a node. The registration with the smaller user handle wins on every node
+ * and the passkeys of the other one are dropped.
+ * </p>
+ */
+@Service
+@ConditionalOnProperty(name = "webauthn.repository", havingValue = "replicated")
+public class ReplicatedRegistrationRepository implements RegistrationRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicatedRegistrationRepository.class);
+
+    private final InMemoryRegistrationRepository index = new InMemoryRegistrationRepository();
+    private final ReplicationTransport transport;
+    // Changes are applied one at a time, so that the conflict rule sees a
+    // consistent index, and queued for sending in the same order
+    private final Object applyLock = new Object();
+    private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // changes the transport failed to send, sent before the outbox on the
+    // next attempt, written with sendLock held
+    private volatile ByteBuffer unsent;
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ReplicatedRegistrationRepository(ReplicationTransport transport) {
+        this.transport = transport;
+        transport.connect(new ReplicationTransport.Listener() {
+            @Override
+            public void received(ByteBuffer records) {
+                apply(records);
+            }
+
+            @Override
+            public void writeSnapshot(Consumer<ByteBuffer> out) {
+                snapshot(out);
+            }
+        });
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return index.getCredentialIdsForUsername(username);
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return index.getUserHandleForUsername(username);
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return index.getUsernameForUserHandle(userHandle);
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        return index.lookup(credentialId, userHandle);
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        return index.lookupAll(credentialId);
+    }
+
+    @Override
+    public void storeCredential(String username, ByteArray user, PublicKeyCredentialDescriptor keyId, ByteArray publicKeyCose, AttestationObject attestation, ByteArray clientDataJSON) {
+        CredentialRegistration registration = new CredentialRegistration(username, keyId, RegisteredCredential.builder()
+                .credentialId(keyId.getId())
+                .userHandle(user)
+                .publicKeyCose(publicKeyCose)
+                .signatureCount(attestation.getAuthenticatorData().getSignatureCounter())
+                .build());
+        synchronized (applyLock) {
+            if (!store(registration)) {
+                // another node got the name first
+                throw new IllegalStateException("Username already exists!");
+            }
+            outbox.add(CredentialRecords.store(registration));
+        }
+        send();
+    }
+
+    @Override
+    public void storeAll(Collection<CredentialRegistration> registrations) {
+        synchronized (applyLock) {
+            List<ByteBuffer> stored = new ArrayList<>(registrations.size());
+            for (CredentialRegistration registration : registrations) {
+                // the same rule as for registrations, a bulk load doesn't win over users
+                if (store(registration)) {
+                    stored.add(CredentialRecords.store(registration));
+                }
+            }
+            if (!stored.isEmpty()) {
+                outbox.add(concat(stored));
+            }
+        }
+        send();
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        synchronized (applyLock) {
+            index.removeCredential(credentialId);
+            outbox.add(CredentialRecords.remove(credentialId));
+        }
+        send();
+    }
+
+    @Override
+    public void updateUsage(Collection<CredentialUsage> usages) {
+        if (usages.isEmpty()) {
+            return;
+        }
+        synchronized (applyLock) {
+            index.updateUsage(usages);
+            outbox.add(concat(usages.stream().map(CredentialRecords::usage).toList()));
+        }
+        send();
+    }
+
+    @Override
+    public Optional<Instant> getLastUsed(ByteArray credentialId) {
+        return index.getLastUsed(credentialId);
+    }
+
+    @Override
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        return index.findUsers(usernamePrefix, after, limit);
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> consumer) {
+        index.forEachUsername(consumer);
+    }
+
+    @Override
+    public void forEachRegistration(Consumer<CredentialRegistration> consumer) {
+        index.forEachRegistration(consumer);
+    }
+
+    @Override
+    public long countUsers(String usernamePrefix, long max) {
+        return index.countUsers(usernamePrefix, max);
+    }
+
+    @Override
+    public long countCredentials() {
+        return index.countCredentials();
+    }
+
+    /**
+     * Stores the passkey unless it loses to another user with the same
+     * username. Must be called with the applyLock held.
+     *
+     * @return false if the passkey lost and was not stored
+     */
+    private boolean store(CredentialRegistration registration) {
+        ByteArray userHandle = registration.credential().getUserHandle();
+        Optional<ByteArray> existing = index.getUserHandleForUsername(registration.username());
+        if (existing.isPresent() && !existing.get().equals(userHandle)) {
+            if (userHandle.compareTo(existing.get()) > 0) {
+                return false;
+            }
+            for (PublicKeyCredentialDescriptor d : index.getCredentialIdsForUsername(registration.username())) {
+                index.removeCredential(d.getId());
+            }
+        }
+        index.store(registration);
+        return true;
+    }
+
+    private void apply(ByteBuffer records) {
+        synchronized (applyLock) {
+            CredentialRecords.readAll(records, new CredentialRecords.Handler() {
+                @Override
+                public void stored(CredentialRegistration registration) {
+                    store(registration);
+                }
+
+                @Override
+                public void removed(ByteArray credentialId) {
+                    index.removeCredential(credentialId);
+                }
+
+                @Override
+                public void used(CredentialUsage usage) {
+                    index.updateUsage(List.of(usage));
+                }
+            });
+        }
+    }
+
+    private void snapshot(Consumer<ByteBuffer> out) {
+        synchronized (applyLock) {
+            List<ByteBuffer> batch = new ArrayList<>();
+            index.forEachRegistration(r -> {
+                batch.add(CredentialRecords.store(r));
+                index.getLastUsed(r.credential().getCredentialId()).ifPresent(lastUsed ->
+                        batch.add(CredentialRecords.usage(new CredentialUsage(r.credential().getCredentialId(),
+                                r.credential().getSignatureCount(), lastUsed))));
+                if (batch.size() >= 1000) {
+                    out.accept(concat(batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                out.accept(concat(batch));
+            }
+        }
+    }
+
+    /**
+     * Sends what is in the outbox. Whoever gets the lock sends the changes
+     * of the others too, in the order they were applied. If the transport
+     * fails, the changes are kept and sent again, before any later ones,
+     * on the next change or after a second.
+     */
+    private void send() {
+        while (unsent != null || !outbox.isEmpty()) {
+            sendLock.lock();
+            try {
+                List<ByteBuffer> batch = new ArrayList<>();
+                if (unsent != null) {
+                    batch.add(unsent);
+                }
+                ByteBuffer records;
+                while ((records = outbox.poll()) != null) {
+                    batch.add(records);
+                }
+                if (!batch.isEmpty()) {
+                    unsent = concat(batch);
+                    transport.send(unsent.duplicate());
+                    unsent = null;
+                }
+            } catch (RuntimeException e) {
+                // applied here already, the other nodes get it later
+                log.warn("Sending changes to other nodes failed, retrying", e);
+                if (retryScheduled.compareAndSet(false, true)) {
+                    retrier.schedule(() -> {
+                        retryScheduled.set(false);
+                        send();
+                    }, 1, TimeUnit.SECONDS);
+                }
+                return;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        retrier.shutdownNow();
+    }
+
+    private static ByteBuffer concat(List<ByteBuffer> records) {
+        if (records.size() == 1) {
+            return records.get(0);
+        }
+        ByteBuffer all = ByteBuffer.allocate(records.stream().mapToInt(ByteBuffer::remaining).sum());
+        records.forEach(r -> all.put(r.duplicate()));
+        return all.flip();
+    }
+}
@@ -0,0 +1,46 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Ships the changes of {@link ReplicatedRegistrationRepository} between
+ * the nodes of a cluster. The changes are {@link CredentialRecords}, one or
+ * more in a buffer.
+ * <p>
+ * {@link LoopbackReplicationTransport} connects nodes within a single JVM,
+ * e.g. for tests. A real cluster would implement this on top of whatever
+ * messaging it already has.
+ * </p>
+ */
+public interface ReplicationTransport {
+
+    /**
+     * The node side of the transport.
+     */
+    interface Listener {
+
+        /**
+         * Called with changes made on another node, in the order that
+         * node made them.
+         */
+        void received(ByteBuffer records);
+
+        /**
+         * Called to pass the full state of this node to a joining node.
+         */
+        void writeSnapshot(Consumer<ByteBuffer> out);
+    }
+
+    /**
+     * Joins the cluster. Before returning, the current state of an
+     * existing node is passed to the listener, unless this is the first
+     * node.
+     */
+    void connect(Listener listener);
+
+    /**
+     * Sends changes made on this node to all other nodes.
+     */
+    void send(ByteBuffer records);
+}
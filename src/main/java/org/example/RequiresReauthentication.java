@@ -0,0 +1,28 @@
+package org.example;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a route that the user may only enter if they have verified
+ * themselves with their passkey recently, by logging in or by
+ * re-authenticating, see {@link WebAuthnSession#runReauthenticated()}.
+ * Otherwise they are asked to re-authenticate first. See
+ * {@link RouteAccess}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface RequiresReauthentication {
+
+    /**
+     * @return how long ago the user may have verified themselves
+     */
+    long maxAge() default 5;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+}
@@ -0,0 +1,99 @@
+package org.example;
+
+import com.vaadin.flow.server.auth.AnonymousAllowed;
+import jakarta.annotation.security.DenyAll;
+import jakarta.annotation.security.PermitAll;
+import jakarta.annotation.security.RolesAllowed;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The access rules of the routes, compiled from their annotations once
+ * when the application starts, so that navigating only looks up the rule
+ * of the target and compares it to the state cached in
+ * {@link WebAuthnSession}. The annotations are:
+ * <ul>
+ *     <li>{@link AnonymousAllowed}: anybody may enter, e.g. the login view.</li>
+ *     <li>{@link PermitAll}, or no annotation: logged-in users may enter.</li>
+ *     <li>{@link RolesAllowed}: logged-in users with one of the roles may
+ *     enter, see {@link WebAuthnSession#hasRole(String)}.</li>
+ *     <li>{@link DenyAll}: nobody may enter.</li>
+ *     <li>{@link RequiresReauthentication}: additionally, the user must have
+ *     verified themselves recently.</li>
+ * </ul>
+ * <p>
+ * Routes not known when compiling, e.g. registered later at runtime, need
+ * a login.
+ * </p>
+ */
+public final class RouteAccess {
+
+    public enum Decision {
+        ALLOW,
+        /** the user needs to log in */
+        LOGIN,
+        /** the user needs to re-authenticate */
+        REAUTHENTICATE,
+        DENY
+    }
+
+    private record Rule(boolean anonymous, boolean denied, Set<String> roles, long reauthenticationNanos) {
+    }
+
+    private static final Rule LOGIN_REQUIRED = new Rule(false, false, Set.of(), 0);
+
+    private final Map<Class<?>, Rule> rules;
+
+    private RouteAccess(Map<Class<?>, Rule> rules) {
+        this.rules = Map.copyOf(rules);
+    }
+
+    /**
+     * Reads the annotations of the given navigation targets.
+     */
+    public static RouteAccess compile(Collection<Class<?>> targets) {
+        Map<Class<?>, Rule> rules = new HashMap<>();
+        for (Class<?> target : targets) {
+            RolesAllowed rolesAllowed = target.getAnnotation(RolesAllowed.class);
+            RequiresReauthentication reauthentication = target.getAnnotation(RequiresReauthentication.class);
+            rules.put(target, new Rule(
+                    target.isAnnotationPresent(AnonymousAllowed.class),
+                    target.isAnnotationPresent(DenyAll.class),
+                    rolesAllowed == null ? Set.of() : Set.of(rolesAllowed.value()),
+                    reauthentication == null ? 0 : reauthentication.unit().toNanos(reauthentication.maxAge())));
+        }
+        return new RouteAccess(rules);
+    }
+
+    public Decision check(Class<?> target, WebAuthnSession session) {
+        Rule rule = rules.getOrDefault(target, LOGIN_REQUIRED);
+        if (rule.denied()) {
+            return Decision.DENY;
+        }
+        if (rule.anonymous()) {
+            return Decision.ALLOW;
+        }
+        if (!session.isLoggedIn()) {
+            return Decision.LOGIN;
+        }
+        if (!rule.roles().isEmpty() && !hasAnyRole(session, rule.roles())) {
+            return Decision.DENY;
+        }
+        if (rule.reauthenticationNanos() > 0 && !session.isAuthenticatedWithin(rule.reauthenticationNanos())) {
+            return Decision.REAUTHENTICATE;
+        }
+        return Decision.ALLOW;
+    }
+
+    private static boolean hasAnyRole(WebAuthnSession session, Set<String> roles) {
+        for (String role : roles) {
+            if (session.hasRole(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,47 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+import org.springframework.stereotype.Service;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The default {@link UserHandleGenerator}, 32 random bytes from a
+ * {@link SecureRandom}.
+ * <p>
+ * Each thread has its own SecureRandom, so concurrent registrations don't
+ * contend on a shared one. The random bytes are drawn in batches into a
+ * per-thread buffer, so most handles are just copied from memory. The
+ * default (non "strong") SecureRandom is used on purpose: it never blocks
+ * waiting for the OS entropy pool, but is still suitable for keys.
+ * </p>
+ */
+@Service
+public class SecureRandomUserHandleGenerator implements UserHandleGenerator {
+
+    static final int HANDLE_LENGTH = 32;
+    private static final int HANDLES_PER_REFILL = 128;
+
+    private static final class Buffer {
+        final SecureRandom random = new SecureRandom();
+        final byte[] bytes = new byte[HANDLE_LENGTH * HANDLES_PER_REFILL];
+        int position = bytes.length;
+    }
+
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    @Override
+    public ByteArray newUserHandle() {
+        Buffer buffer = buffers.get();
+        if (buffer.position == buffer.bytes.length) {
+            buffer.random.nextBytes(buffer.bytes);
+            buffer.position = 0;
+        }
+        byte[] handle = Arrays.copyOfRange(buffer.bytes, buffer.position, buffer.position + HANDLE_LENGTH);
+        // don't leave used handles lying around in memory
+        Arrays.fill(buffer.bytes, buffer.position, buffer.position + HANDLE_LENGTH, (byte) 0);
+        buffer.position += HANDLE_LENGTH;
+        return new ByteArray(handle);
+    }
+}
@@ -0,0 +1,48 @@
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Keeps the state that must survive a node going down when running
+ * several nodes behind a load balancer: the ceremonies waiting for the
+ * browser in {@link CeremonyStore} and the logged in user of
+ * {@link WebAuthnSession}. With sticky sessions and a shared store the
+ * user can continue on another node as if nothing happened.
+ * <p>
+ * The values are small byte arrays, so the interface maps directly to
+ * e.g. Redis or Hazelcast. {@link InProcessSessionStateStore} keeps them
+ * in the local heap, which is enough for a single node.
+ * </p>
+ */
+public interface SessionStateStore {
+
+    /**
+     * Stores the value, replacing any previous value of the key.
+     *
+     * @param ttl how long to keep the value if it is not removed
+     */
+    void put(String key, byte[] value, Duration ttl);
+
+    /**
+     * @return the value, or null if there is none or it has expired
+     */
+    byte[] get(String key);
+
+    /**
+     * Replaces the value atomically if it still has the expected content,
+     * so that of two nodes replacing the same value only one succeeds.
+     *
+     * @param ttl how long to keep the new value if it is not removed
+     * @return true if the value was replaced, false if it was missing,
+     * expired or different
+     */
+    boolean replace(String key, byte[] expected, byte[] value, Duration ttl);
+
+    /**
+     * Removes the value atomically, so that of two nodes removing the
+     * same key only one gets the value.
+     *
+     * @return the removed value, or null if there was none
+     */
+    byte[] remove(String key);
+}
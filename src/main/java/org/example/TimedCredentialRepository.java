@@ -0,0 +1,59 @@
+package org.example;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Measures how long the queries of the WebAuthn library to our
+ * repository take. This is what the library sees as the
+ * {@link CredentialRepository}, our own code uses the repository directly.
+ */
+class TimedCredentialRepository implements CredentialRepository {
+
+    private final CredentialRepository repository;
+    private final Timer credentialIdsForUsername;
+    private final Timer userHandleForUsername;
+    private final Timer usernameForUserHandle;
+    private final Timer lookup;
+    private final Timer lookupAll;
+
+    TimedCredentialRepository(CredentialRepository repository, WebAuthnMetrics metrics) {
+        this.repository = repository;
+        credentialIdsForUsername = metrics.repositoryTimer("getCredentialIdsForUsername");
+        userHandleForUsername = metrics.repositoryTimer("getUserHandleForUsername");
+        usernameForUserHandle = metrics.repositoryTimer("getUsernameForUserHandle");
+        lookup = metrics.repositoryTimer("lookup");
+        lookupAll = metrics.repositoryTimer("lookupAll");
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return credentialIdsForUsername.record(() -> repository.getCredentialIdsForUsername(username));
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return userHandleForUsername.record(() -> repository.getUserHandleForUsername(username));
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return usernameForUserHandle.record(() -> repository.getUsernameForUserHandle(userHandle));
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        return lookup.record(() -> repository.lookup(credentialId, userHandle));
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        return lookupAll.record(() -> repository.lookupAll(credentialId));
+    }
+}
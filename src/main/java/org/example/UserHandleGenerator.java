@@ -0,0 +1,13 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Generates the user handles (the WebAuthn user.id) for new users. The
+ * handle is stored in the passkey and should not reveal anything about
+ * the user, so it must be random.
+ */
+public interface UserHandleGenerator {
+
+    ByteArray newUserHandle();
+}
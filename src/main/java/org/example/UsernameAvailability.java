@@ -0,0 +1,125 @@
+package org.example;
+
+import com.yubico.webauthn.data.ByteArray;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells whether a username is still free and reserves it for the duration
+ * of a registration.
+ * <p>
+ * The registration form checks the username on every change, so the check
+ * must be cheap. Most names typed are free, and a Bloom filter of all
+ * usernames answers those without touching the repository. Only the "maybe
+ * taken" answers are verified from the repository.
+ * </p>
+ * <p>
+ * Between starting a registration and storing the passkey the browser is
+ * waiting for the user, so two people could pick the same free name. The
+ * name is thus reserved atomically when the registration starts, for the
+ * user handle of the new user. The reservation is released when the
+ * passkey is stored, the registration fails, or at the latest when it
+ * would have expired in {@link CeremonyStore} anyway.
+ * </p>
+ */
+@Service
+public class UsernameAvailability {
+
+    private record Reservation(ByteArray userHandle, long expiresAtNanos) {
+
+        boolean isExpired(long now) {
+            return now - expiresAtNanos > 0;
+        }
+    }
+
+    private final RegistrationRepository repository;
+    private final BloomFilter usernames;
+    private final ConcurrentMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "username-reservation-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public UsernameAvailability(RegistrationRepository repository,
+                                @Value("${webauthn.username.expected-users:1000000}") long expectedUsers,
+                                @Value("${webauthn.username.false-positive-rate:0.01}") double falsePositiveRate,
+                                @Value("${webauthn.ceremony.ttl:PT5M}") Duration ttl) {
+        this.repository = repository;
+        this.ttlNanos = ttl.toNanos();
+        usernames = new BloomFilter(expectedUsers, falsePositiveRate);
+        repository.forEachUsername(usernames::add);
+        sweeper.scheduleWithFixedDelay(this::expire, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true if nobody has registered or is registering the username
+     */
+    public boolean isAvailable(String username) {
+        Reservation reservation = reservations.get(username);
+        if (reservation != null && !reservation.isExpired(System.nanoTime())) {
+            return false;
+        }
+        return !usernames.mightContain(username)
+                || repository.getUserHandleForUsername(username).isEmpty();
+    }
+
+    /**
+     * Reserves the username for a registration in progress.
+     *
+     * @param userHandle the user handle of the user being registered
+     * @return false if the username is already taken or reserved
+     */
+    public boolean reserve(String username, ByteArray userHandle) {
+        long now = System.nanoTime();
+        Reservation reservation = new Reservation(userHandle, now + ttlNanos);
+        Reservation current = reservations.merge(username, reservation,
+                (old, r) -> old.isExpired(now) ? r : old);
+        if (current != reservation) {
+            return false;
+        }
+        // A registration that finished meanwhile has stored the user before
+        // releasing its reservation, so it is visible in the repository now.
+        // The filter is not consulted here, as users may also be added
+        // without passing this class, e.g. on other nodes of a cluster.
+        if (repository.getUserHandleForUsername(username).isPresent()) {
+            release(username, userHandle);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the username taken for good. Called after the passkey is stored.
+     */
+    public void registered(String username, ByteArray userHandle) {
+        usernames.add(username);
+        release(username, userHandle);
+    }
+
+    /**
+     * Releases the reservation of a registration that failed.
+     */
+    public void release(String username, ByteArray userHandle) {
+        reservations.computeIfPresent(username, (u, r) -> r.userHandle().equals(userHandle) ? null : r);
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        reservations.values().removeIf(r -> r.isExpired(now));
+    }
+
+    @PreDestroy
+    void close() {
+        sweeper.shutdownNow();
+    }
+}
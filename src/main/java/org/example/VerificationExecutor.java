@@ -0,0 +1,128 @@
+package org.example;
+
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinServiceInitListener;
+import com.vaadin.flow.shared.communication.PushMode;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the verification of the browser's WebAuthn responses (JSON parsing,
+ * signature checks and repository access).
+ * <p>
+ * By default, the verification is done directly on the thread receiving
+ * the response from the browser. That is a Vaadin request thread holding
+ * the session lock, so a slow verification blocks all other UI traffic of
+ * the same session. With {@code webauthn.verification.async=true} the work
+ * is moved to virtual threads (Java 21+) or to a bounded thread pool, and
+ * {@link WebAuthnSession} hands the result back to the UI with
+ * {@code UI.access}. As the result then arrives outside of a request, push
+ * is enabled for the UIs.
+ * </p>
+ * At most {@code webauthn.verification.max-concurrency} verifications run
+ * at once, and at most {@code webauthn.verification.max-queued} wait for
+ * their turn. Further ones fail right away.
+ */
+@Component
+public class VerificationExecutor implements Executor, VaadinServiceInitListener {
+
+    private final boolean async;
+    private final ExecutorService executor;
+    // Caps the concurrency when using virtual threads, null with the pool
+    private final Semaphore permits;
+    private final int maxQueued;
+
+    public VerificationExecutor(
+            @Value("${webauthn.verification.async:false}") boolean async,
+            @Value("${webauthn.verification.max-concurrency:0}") int maxConcurrency,
+            @Value("${webauthn.verification.max-queued:1000}") int maxQueued) {
+        this.async = async;
+        this.maxQueued = maxQueued;
+        int concurrency = maxConcurrency > 0 ? maxConcurrency : Runtime.getRuntime().availableProcessors();
+        ExecutorService virtualThreads = async ? virtualThreadExecutor() : null;
+        if (!async) {
+            executor = null;
+            permits = null;
+        } else if (virtualThreads != null) {
+            executor = virtualThreads;
+            permits = new Semaphore(concurrency);
+        } else {
+            executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxQueued), r -> {
+                Thread t = new Thread(r, "webauthn-verification");
+                t.setDaemon(true);
+                return t;
+            });
+            permits = null;
+        }
+    }
+
+    @Override
+    public void serviceInit(ServiceInitEvent event) {
+        if (async) {
+            event.getSource().addUIInitListener(e ->
+                    e.getUI().getPushConfiguration().setPushMode(PushMode.AUTOMATIC));
+        }
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!async) {
+            task.run();
+        } else if (permits == null) {
+            executor.execute(task);
+        } else {
+            if (permits.getQueueLength() >= maxQueued) {
+                throw new RejectedExecutionException("Too many verifications waiting");
+            }
+            executor.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of verifications waiting for their turn
+     */
+    public int getQueued() {
+        if (executor instanceof ThreadPoolExecutor pool) {
+            return pool.getQueue().size();
+        }
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        // The project compiles for Java 17, so look the Java 21 API up reflectively
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
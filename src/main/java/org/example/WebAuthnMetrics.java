@@ -0,0 +1,190 @@
+package org.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The meters of the WebAuthn ceremonies, published via Spring Boot
+ * Actuator, e.g. for Prometheus at /actuator/prometheus.
+ * <p>
+ * The timers are created once here, so recording a ceremony is just an
+ * array lookup and an update of the timer, no registry lookups or tag
+ * objects on the login path. Only the failure counters are created lazily,
+ * as the exception types are not known beforehand.
+ * </p>
+ * <p>
+ * Counting the users and passkeys may scan a whole table, so they are
+ * counted in the background every {@code webauthn.metrics.count-interval}
+ * and the gauges show the latest counts, however often they are scraped.
+ * </p>
+ * <ul>
+ *     <li>webauthn.ceremony: server side work, tags ceremony and phase (start/finish)</li>
+ *     <li>webauthn.ceremony.failures: failed ceremonies, tags ceremony and exception</li>
+ *     <li>webauthn.browser: the round-trip to the browser, including the user
+ *     interacting with the authenticator, tag ceremony</li>
+ *     <li>webauthn.repository: the queries of the WebAuthn library, tag operation</li>
+ *     <li>webauthn.users, webauthn.credentials, webauthn.ceremonies.*: gauges</li>
+ *     <li>webauthn.ratelimit.rejected: ceremonies rejected by {@link RateLimiter}, tag limit</li>
+ *     <li>webauthn.audit.lag, webauthn.audit.written, webauthn.audit.dropped: the
+ *     events of the {@link AuditLog}</li>
+ * </ul>
+ */
+@Service
+public class WebAuthnMetrics {
+
+    public enum Ceremony {
+        REGISTRATION, LOGIN, REAUTHENTICATION;
+
+        final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(WebAuthnMetrics.class);
+
+    private final MeterRegistry registry;
+    private final ScheduledExecutorService counter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "webauthn-metrics-counter");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long users;
+    private volatile long credentials;
+    private final Timer[] starts = new Timer[Ceremony.values().length];
+    private final Timer[] finishes = new Timer[Ceremony.values().length];
+    private final Timer[] browserRoundTrips = new Timer[Ceremony.values().length];
+    private final Map<Class<?>, Counter>[] failures;
+
+    @SuppressWarnings("unchecked")
+    public WebAuthnMetrics(MeterRegistry registry, RegistrationRepository repository,
+                           CeremonyStore ceremonyStore, VerificationExecutor verificationExecutor,
+                           RateLimiter rateLimiter, AuditLog auditLog,
+                           @Value("${webauthn.metrics.count-interval:PT1M}") Duration countInterval) {
+        this.registry = registry;
+        failures = new Map[Ceremony.values().length];
+        for (Ceremony c : Ceremony.values()) {
+            starts[c.ordinal()] = ceremonyTimer(c, "start");
+            finishes[c.ordinal()] = ceremonyTimer(c, "finish");
+            browserRoundTrips[c.ordinal()] = Timer.builder("webauthn.browser")
+                    .description("Time from sending a ceremony to the browser until its answer")
+                    .tag("ceremony", c.tag)
+                    .register(registry);
+            failures[c.ordinal()] = new ConcurrentHashMap<>();
+        }
+        counter.scheduleWithFixedDelay(() -> count(repository), 0, countInterval.toMillis(), TimeUnit.MILLISECONDS);
+        Gauge.builder("webauthn.users", this, m -> m.users)
+                .description("Registered users")
+                .register(registry);
+        Gauge.builder("webauthn.credentials", this, m -> m.credentials)
+                .description("Registered passkeys")
+                .register(registry);
+        Gauge.builder("webauthn.ceremonies.pending", ceremonyStore, CeremonyStore::getPending)
+                .description("Ceremonies waiting for the browser")
+                .register(registry);
+        FunctionCounter.builder("webauthn.ceremonies.completed", ceremonyStore, CeremonyStore::getCompleted)
+                .register(registry);
+        FunctionCounter.builder("webauthn.ceremonies.expired", ceremonyStore, CeremonyStore::getExpired)
+                .register(registry);
+        FunctionCounter.builder("webauthn.ceremonies.rejected", ceremonyStore, CeremonyStore::getRejected)
+                .description("Ceremonies not started because of too many pending ones")
+                .register(registry);
+        Gauge.builder("webauthn.verification.queued", verificationExecutor, VerificationExecutor::getQueued)
+                .description("Verifications waiting for a thread")
+                .register(registry);
+        for (RateLimiter.Limit limit : RateLimiter.Limit.values()) {
+            FunctionCounter.builder("webauthn.ratelimit.rejected", rateLimiter, l -> l.getRejected(limit))
+                    .description("Ceremonies not started because of a rate limit")
+                    .tag("limit", limit.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+        Gauge.builder("webauthn.audit.lag", auditLog, AuditLog::getLag)
+                .description("Audit events recorded but not yet written")
+                .register(registry);
+        FunctionCounter.builder("webauthn.audit.written", auditLog, AuditLog::getWritten)
+                .register(registry);
+        FunctionCounter.builder("webauthn.audit.dropped", auditLog, AuditLog::getDropped)
+                .description("Audit events dropped because the writer couldn't keep up")
+                .register(registry);
+    }
+
+    private void count(RegistrationRepository repository) {
+        try {
+            users = repository.countUsers();
+            credentials = repository.countCredentials();
+        } catch (RuntimeException e) {
+            // keep the old counts, and the task running
+            log.warn("Counting the users and passkeys failed", e);
+        }
+    }
+
+    private Timer ceremonyTimer(Ceremony ceremony, String phase) {
+        return Timer.builder("webauthn.ceremony")
+                .description("Server side work of the WebAuthn ceremonies")
+                .tags("ceremony", ceremony.tag, "phase", phase)
+                .register(registry);
+    }
+
+    public Timer start(Ceremony ceremony) {
+        return starts[ceremony.ordinal()];
+    }
+
+    public Timer finish(Ceremony ceremony) {
+        return finishes[ceremony.ordinal()];
+    }
+
+    public Timer browserRoundTrip(Ceremony ceremony) {
+        return browserRoundTrips[ceremony.ordinal()];
+    }
+
+    /**
+     * Counts a failed ceremony by the type of the exception, looking
+     * through the wrappers the futures and our own code add.
+     */
+    public void failed(Ceremony ceremony, Throwable ex) {
+        failures[ceremony.ordinal()].computeIfAbsent(cause(ex).getClass(), type -> Counter.builder("webauthn.ceremony.failures")
+                .tags("ceremony", ceremony.tag, "exception", type.getSimpleName())
+                .register(registry)).increment();
+    }
+
+    /**
+     * @return the exception inside the wrappers the futures and our own
+     * code add
+     */
+    static Throwable cause(Throwable ex) {
+        while ((ex instanceof CompletionException || ex.getClass() == RuntimeException.class)
+                && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex;
+    }
+
+    /**
+     * Creates a timer for the given operation of the repository.
+     */
+    Timer repositoryTimer(String operation) {
+        return Timer.builder("webauthn.repository")
+                .description("Queries of the WebAuthn library to the repository")
+                .tag("operation", operation)
+                .register(registry);
+    }
+
+    @PreDestroy
+    void close() {
+        counter.shutdownNow();
+    }
+}
@@ -0,0 +1,26 @@
+package org.example;
+
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinServiceInitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Loads webauthnhelpers.js once for every UI, so that it is there when
+ * {@link WebAuthnSession} starts a ceremony.
+ * <p>
+ * WebAuthn API uses binary data in the browser, which is not nice for
+ * JSON (transport format). The script contains helpers to convert between
+ * base64 & binary data, and the ceremony functions {@code webauthnCreate}
+ * and {@code webauthnGet} taking the options JSON. Each ceremony thus
+ * sends only its data to the browser, not new code to evaluate.
+ * </p>
+ */
+@Component
+public class WebAuthnScripts implements VaadinServiceInitListener {
+
+    @Override
+    public void serviceInit(ServiceInitEvent event) {
+        event.getSource().addUIInitListener(e ->
+                e.getUI().getPage().addJavaScript("context://webauthnhelpers.js"));
+    }
+}
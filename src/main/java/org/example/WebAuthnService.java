@@ -8,8 +8,11 @@ import com.yubico.webauthn.RegistrationResult;
 import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartAssertionOptions;
 import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
 import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
 import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
 import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
 import com.yubico.webauthn.data.PublicKeyCredential;
 import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
@@ -21,8 +24,9 @@ import com.yubico.webauthn.exception.RegistrationFailedException;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.List;
-import java.util.Random;
+import java.util.Optional;
 
 /**
  * A service class that mostly uses Yubico's Java WebAuthn library.
@@ -41,12 +45,21 @@ public class WebAuthnService {
 
     private final RelyingPartyIdentity rpIdentity;
     private final RelyingParty rp;
-    private final InMemoryRegistrationRepository repository;
-    Random random = new Random();
-
-    public WebAuthnService(InMemoryRegistrationRepository repository) {
+    private final RegistrationRepository repository;
+    private final UserHandleGenerator userHandleGenerator;
+    private final CredentialUsageRecorder usageRecorder;
+    private final UsernameAvailability usernameAvailability;
+    private final MetadataTrustStore trustStore;
+
+    public WebAuthnService(RegistrationRepository repository, UserHandleGenerator userHandleGenerator,
+                           CredentialUsageRecorder usageRecorder, WebAuthnMetrics metrics,
+                           UsernameAvailability usernameAvailability, MetadataTrustStore trustStore) {
         // repository is our "in memory database", our "user database"
         this.repository = repository;
+        this.userHandleGenerator = userHandleGenerator;
+        this.usageRecorder = usageRecorder;
+        this.usernameAvailability = usernameAvailability;
+        this.trustStore = trustStore;
 
         // The main purpose of this demo is that it can be launched locally.
         // "localhost" domain has exceptions in browser -> no https required etc 💪
@@ -64,8 +77,14 @@ public class WebAuthnService {
 
         rp = RelyingParty.builder()
                 .identity(rpIdentity)
-                .credentialRepository(repository)
+                // the library's queries are timed, see WebAuthnMetrics
+                .credentialRepository(new TimedCredentialRepository(repository, metrics))
                 .allowOriginPort(true)
+                // with an allow-list of authenticators, ask them to prove
+                // their model, see finishRegistration
+                .attestationConveyancePreference(trustStore.isEnabled()
+                        ? Optional.of(AttestationConveyancePreference.DIRECT)
+                        : Optional.empty())
                 .build();
 
     }
@@ -85,7 +104,10 @@ public class WebAuthnService {
     }
 
     public PublicKeyCredentialCreationOptions startRegistration(String usernameValue) {
-        if (!repository.getCredentialIdsForUsername(usernameValue).isEmpty()) {
+        ByteArray userHandle = userHandleGenerator.newUserHandle();
+        // Keeps others from registering the same name while the user
+        // creates the passkey, see cancelRegistration
+        if (!usernameAvailability.reserve(usernameValue, userHandle)) {
             throw new RuntimeException("Username already exists!");
         }
 
@@ -95,33 +117,51 @@ public class WebAuthnService {
                                 UserIdentity.builder()
                                         .name(usernameValue)
                                         .displayName(usernameValue)
-                                        .id(generateRandom(32))
+                                        .id(userHandle)
                                         .build()
                         ).build());
     }
 
-    private ByteArray generateRandom(int length) {
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return new ByteArray(bytes);
+    /**
+     * Frees the username reserved by a registration that won't finish.
+     */
+    public void cancelRegistration(UserIdentity user) {
+        usernameAvailability.release(user.getName(), user.getId());
     }
 
     public String finishAssertion(AssertionRequest assertionRequest, String publicKeyCredentialJson) throws IOException, AssertionFailedException {
-        var response = PublicKeyCredential.parseAssertionResponseJson(publicKeyCredentialJson);
+        return finishAssertion(assertionRequest, PublicKeyCredential.parseAssertionResponseJson(publicKeyCredentialJson));
+    }
+
+    public String finishAssertion(AssertionRequest assertionRequest,
+                                  PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> response) throws AssertionFailedException {
         AssertionResult assertionResult = rp.finishAssertion(FinishAssertionOptions.builder()
                 .request(assertionRequest)
                 .response(response)
                 .build());
+        // The library has checked the signature counter against the stored
+        // one (a counter not increasing suggests a cloned authenticator),
+        // now save the new one for the next login
+        usageRecorder.record(new CredentialUsage(assertionResult.getCredentialId(),
+                assertionResult.getSignatureCount(), Instant.now()));
         return assertionResult.getUsername();
     }
 
     public RegistrationResult finishRegistration(PublicKeyCredentialCreationOptions creationOptions, String publicKeyCredentialJson) throws RegistrationFailedException, IOException {
-        PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc = PublicKeyCredential.parseRegistrationResponseJson(publicKeyCredentialJson);
+        return finishRegistration(creationOptions, PublicKeyCredential.parseRegistrationResponseJson(publicKeyCredentialJson));
+    }
+
+    public RegistrationResult finishRegistration(PublicKeyCredentialCreationOptions creationOptions,
+                                                 PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc) throws RegistrationFailedException {
         RegistrationResult registrationResult = rp.finishRegistration(FinishRegistrationOptions.builder()
                 .request(creationOptions)  // The PublicKeyCredentialCreationOptions from startRegistration above
                 // NOTE: Must be stored in server memory or otherwise protected against tampering
                 .response(pkc)
                 .build());
+        if (trustStore.isEnabled() && trustStore.findTrusted(registrationResult).isEmpty()) {
+            throw new RegistrationFailedException(new IllegalArgumentException(
+                    "The authenticator is not on the list of allowed models"));
+        }
 
         repository.storeCredential(
                 creationOptions.getUser().getName(),
@@ -131,11 +171,20 @@ public class WebAuthnService {
                 pkc.getResponse().getAttestation(),
                 pkc.getResponse().getClientDataJSON()
         );
+        usernameAvailability.registered(creationOptions.getUser().getName(), creationOptions.getUser().getId());
         return registrationResult;
 
     }
 
-    public List<String> findKnownUsers() {
-        return repository.findKnownUsers();
+    public List<String> findUsers(String usernamePrefix, String after, int limit) {
+        return repository.findUsers(usernamePrefix, after, limit);
+    }
+
+    public long countUsers(String usernamePrefix, long max) {
+        return repository.countUsers(usernamePrefix, max);
+    }
+
+    public boolean isUsernameAvailable(String username) {
+        return usernameAvailability.isAvailable(username);
     }
 }
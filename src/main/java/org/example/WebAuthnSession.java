@@ -2,17 +2,32 @@ package org.example;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.server.VaadinSession;
 import com.vaadin.flow.spring.annotation.SpringComponent;
 import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.UserIdentity;
 import com.yubico.webauthn.exception.AssertionFailedException;
 import com.yubico.webauthn.exception.RegistrationFailedException;
+import io.micrometer.core.instrument.Timer;
+import org.example.WebAuthnMetrics.Ceremony;
 import org.example.views.LoginAndRegistrationView;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.context.annotation.SessionScope;
-import org.vaadin.firitin.util.JsPromise;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A helper class for the UI to tackle all things related to WebAuthn
@@ -23,26 +38,63 @@ import java.util.concurrent.CompletableFuture;
  *     TODO figure out if the API would be simpler with callback
  *     interfaces instead of using CompletableFuture 🤷‍
  * </p>
+ * <p>
+ *     The logged in user is also saved to the {@link SessionStateStore},
+ *     keyed by the HTTP session id. If the node goes down and the session
+ *     id survives, e.g. with Spring Session, another node picks the user
+ *     up from there.
+ * </p>
+ * <p>
+ *     The roles of the user and when they last verified themselves with
+ *     their passkey are kept here too, for the access checks of
+ *     {@link RouteAccess}.
+ * </p>
  */
 @SpringComponent
 @SessionScope
 public class WebAuthnSession {
 
     private String username;
+    // whether the username was looked up from the SessionStateStore already
+    private boolean restored;
+    private long savedAtNanos;
+    private Set<String> roles = Set.of();
+    // when the user last logged in or re-authenticated in this session,
+    // written by a verification thread
+    private volatile boolean authenticated;
+    private volatile long authenticatedAtNanos;
     private final WebAuthnService webAuthnService;
+    private final CeremonyStore ceremonyStore;
+    private final VerificationExecutor verificationExecutor;
+    private final WebAuthnMetrics metrics;
+    private final SessionStateStore stateStore;
+    private final CredentialsGetJson credentialsGetJson;
+    private final CeremonyClient ceremonyClient;
+    private final RateLimiter rateLimiter;
+    private final AuditLog auditLog;
+    private final Duration ttl;
+    private final Set<String> admins;
+    // identifies this session in the CeremonyStore and SessionStateStore,
+    // the HTTP session id so that it is the same on every node
+    private final String sessionId = RequestContextHolder.currentRequestAttributes().getSessionId();
 
-    public WebAuthnSession(WebAuthnService webAuthnService) {
+    public WebAuthnSession(WebAuthnService webAuthnService, CeremonyStore ceremonyStore,
+                           VerificationExecutor verificationExecutor, WebAuthnMetrics metrics,
+                           SessionStateStore stateStore, CredentialsGetJson credentialsGetJson,
+                           CeremonyClient ceremonyClient, RateLimiter rateLimiter, AuditLog auditLog,
+                           @Value("${webauthn.session.ttl:PT30M}") Duration ttl,
+                           @Value("${webauthn.admins:}") Set<String> admins) {
         this.webAuthnService = webAuthnService;
-    }
-
-    /**
-     * WebAuthn API uses binary data in the browser, which is not
-     * nice for JSON (transport format). The webauthnhelpers.js
-     * injected into the browser contains helpers to convert between
-     * base64 & binary data.
-     */
-    private static void injectWebAuthnHelperJavaScripts() {
-        UI.getCurrent().getPage().addJavaScript("context://webauthnhelpers.js");
+        this.ceremonyStore = ceremonyStore;
+        this.verificationExecutor = verificationExecutor;
+        this.metrics = metrics;
+        this.stateStore = stateStore;
+        this.credentialsGetJson = credentialsGetJson;
+        this.ceremonyClient = ceremonyClient;
+        this.rateLimiter = rateLimiter;
+        this.auditLog = auditLog;
+        this.ttl = ttl;
+        this.admins = admins;
     }
 
     /**
@@ -54,52 +106,73 @@ public class WebAuthnSession {
      * passkey is saved.
      */
     public CompletableFuture<Void> registerUser(String username) {
-        injectWebAuthnHelperJavaScripts();
+        UI ui = UI.getCurrent();
+        // known only in the UI thread, but also audited when the ceremony ends
+        String address = clientAddress();
 
         // Returning a void CompletableFuture that the UI can use
         // to execute logic after successful registration
+        // Uses Yubico's server library to start a username registration
+        // process. The creation options contains e.g. the username &
+        // a challenge that the server can verify the process was started
+        // by it.
+        // The options are needed to verify the response. Only the challenge
+        // is kept in the closure below, the CeremonyStore keeps the options
+        // and forgets them if the browser never answers.
+        var registration = started(Ceremony.REGISTRATION, username, address, () -> {
+            rateLimiter.acquire(address, username);
+            var options = webAuthnService.startRegistration(username);
+            try {
+                return new Started<>(options, ceremonyStore.start(sessionId, options));
+            } catch (IllegalStateException e) {
+                webAuthnService.cancelRegistration(options.getUser());
+                throw e;
+            }
+        });
+        var creationOptions = registration.request();
+        ByteArray challenge = registration.challenge();
+        UserIdentity user = creationOptions.getUser();
+        // Make a JSON that can be sent to browser via Vaadin's JS API
+        // send it to browser and request a new passkey
+        // with the WebAuthn API, once user has created one, it will be
+        // passed back to the server side for validation/persistence
+        String json;
         try {
-            // Uses Yubico's server library to start a username registration
-            // process. The creation options contains e.g. the username &
-            // a challenge that the server can verify the process was started
-            // by it.
-            var creationOptions = webAuthnService.startRegistration(username);
-            // Make a JSON that can be sent to browser via Vaadin's JS API
-            // send it to browser and request a new passkey
-            // with the WebAuthn API, once user has created one, it will be
-            // passed back to the server side for validation/persistence
-            String json = creationOptions.toCredentialsCreateJson();
-            // Evaluate an async JS code in the browser within an async JS method
-            // and return the value as JSON back to the server
-            return JsPromise.computeString("""
-            // the JSON gets to the c variable
-            var c = %s;
-            // convert base64 fields to bytes
-            fromB64Cred(c);
-            // trigger the browser dialog to generate passkey
-            const cred = await navigator.credentials.create(c);
-            // send the generated passkey data back to server as return value
-            return createCredentialJsonForServer(cred);
-            """.formatted(json)).thenAccept(credsJson -> {
-                // credsJson is the stringified/base64 JSON from the WebAuthn API
-
-                // Let the Yubico's library map the JSON to Java objects,
-                // do the cryptography to validate the process was really started
-                // by us and save the public key part of the generated passkey to
-                // the "database" (in memory in this demo app).
-                try {
-                    webAuthnService.finishRegistration(creationOptions, credsJson);
-                    // save the username to session and complete the future
-                    setUser(creationOptions.getUser().getName());
-                } catch (RegistrationFailedException e) {
-                    throw new RuntimeException(e);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException();
+            json = creationOptions.toCredentialsCreateJson();
+        } catch (JsonProcessingException e) {
+            ceremonyStore.cancel(challenge);
+            webAuthnService.cancelRegistration(user);
+            throw new RuntimeException(e);
         }
+        // Pass it to an async JS function in the browser, see WebAuthnScripts,
+        // and get the generated passkey data back to the server
+        return backInUi(ui, roundTrip(Ceremony.REGISTRATION,
+                ceremonyClient.create(json)).thenApplyAsync(finished(Ceremony.REGISTRATION, answer -> {
+            // answer is the stringified/base64 JSON from the WebAuthn API,
+            // or refers to the raw data uploaded, see CeremonyClient
+
+            // Let the Yubico's library map the JSON to Java objects,
+            // do the cryptography to validate the process was really started
+            // by us and save the public key part of the generated passkey to
+            // the "database" (in memory in this demo app).
+            try {
+                var options = ceremonyStore.finish(sessionId, challenge, PublicKeyCredentialCreationOptions.class);
+                webAuthnService.finishRegistration(options, ceremonyClient.registration(answer));
+                return options.getUser().getName();
+            } catch (RegistrationFailedException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }), verificationExecutor).whenComplete(completed(Ceremony.REGISTRATION, challenge, username, address))
+                .whenComplete((name, ex) -> {
+                    if (ex != null) {
+                        // free the username for others
+                        webAuthnService.cancelRegistration(user);
+                    }
+                }))
+                // save the username to session and complete the future
+                .thenAccept(this::setUser);
     }
 
 
@@ -112,39 +185,45 @@ public class WebAuthnSession {
      * @return a CompletableFuture for the username
      */
     public CompletableFuture<String> login() {
-        injectWebAuthnHelperJavaScripts();
+        UI ui = UI.getCurrent();
+        String address = clientAddress();
         // Uses Yubico's server library to create a challenge etc that is
         // needed to start the login process in the browser
-        AssertionRequest assertionRequest = webAuthnService.startAssertion();
+        var login = started(Ceremony.LOGIN, null, address, () -> {
+            // the user is not known before the browser answers
+            rateLimiter.acquire(address, null);
+            AssertionRequest request = webAuthnService.startAssertion();
+            return new Started<>(request, ceremonyStore.start(sessionId, request));
+        });
+        AssertionRequest assertionRequest = login.request();
+        ByteArray challenge = login.challenge();
         try {
-            // Make a JSON of the needed request data
-            String credJson = assertionRequest.toCredentialsGetJson();
+            // Make a JSON of the needed request data, see CredentialsGetJson
+            String credJson = credentialsGetJson.of(assertionRequest);
             // Use the WebAuthn API in the browser and return the
             // credentials from it back to the server
-            return JsPromise.computeString("""
-            // raw credential JSON (binary fields b64d)
-            var c = %s;
-            // convert binary fields from base64 to bytes
-            fromB64Cred(c);
-            const cred = await navigator.credentials.get(c);
-            return createCredentialJsonForServer(cred);
-            """.formatted(credJson)).thenApply(credentialJson -> {
+            return backInUi(ui, roundTrip(Ceremony.LOGIN,
+                    ceremonyClient.get(credJson)).thenApplyAsync(finished(Ceremony.LOGIN, answer -> {
                 try {
                     // Let the Yubico's library to parse the response and
                     // do the cryptographic checks this is a response to our
                     // original challenge and the passkey is from its original
                     // issuer
-                    String username = webAuthnService
-                            .finishAssertion(assertionRequest, credentialJson);
-                    // Save the username to session
-                    setUser(username);
-                    // also return it for the UI in the CompletableFuture
-                    return username;
+                    return webAuthnService.finishAssertion(
+                            ceremonyStore.finish(sessionId, challenge, AssertionRequest.class),
+                            ceremonyClient.assertion(answer));
                 } catch (IOException | AssertionFailedException e) {
                     throw new RuntimeException(e);
                 }
-            });
+            }), verificationExecutor).whenComplete(completed(Ceremony.LOGIN, challenge, null, address)))
+                    .thenApply(username -> {
+                        // Save the username to session
+                        setUser(username);
+                        // also return it for the UI in the CompletableFuture
+                        return username;
+                    });
         } catch (JsonProcessingException e) {
+            ceremonyStore.cancel(challenge);
             throw new RuntimeException(e);
         }
     }
@@ -164,49 +243,218 @@ public class WebAuthnSession {
      * an important action if the user re-authenticated properly.
      */
     public CompletableFuture<Void> runReauthenticated() {
-        Objects.requireNonNull(username);
-        injectWebAuthnHelperJavaScripts();
-        AssertionRequest assertionRequest = webAuthnService.startReauthentication(username);
+        String username = Objects.requireNonNull(getUsername());
+        UI ui = UI.getCurrent();
+        String address = clientAddress();
+        var reauthentication = started(Ceremony.REAUTHENTICATION, username, address, () -> {
+            rateLimiter.acquire(address, username);
+            AssertionRequest request = webAuthnService.startReauthentication(username);
+            return new Started<>(request, ceremonyStore.start(sessionId, request));
+        });
+        AssertionRequest assertionRequest = reauthentication.request();
+        ByteArray challenge = reauthentication.challenge();
         try {
-            String credJson = assertionRequest.toCredentialsGetJson();
-            return JsPromise.computeString("""
-            // raw credential JSON (binary fields b64d)
-            var c = %s;
-            // convert binary fields from b64 to bytes
-            fromB64Cred(c);
-            const cred = await navigator.credentials.get(c);
-            return createCredentialJsonForServer(cred);
-            """.formatted(credJson)).thenAccept(credentialJson -> {
+            String credJson = credentialsGetJson.of(assertionRequest);
+            return backInUi(ui, roundTrip(Ceremony.REAUTHENTICATION,
+                    ceremonyClient.get(credJson)).thenAcceptAsync(finished(Ceremony.REAUTHENTICATION, answer -> {
                 try {
-                    webAuthnService.finishAssertion(assertionRequest, credentialJson);
+                    webAuthnService.finishAssertion(
+                            ceremonyStore.finish(sessionId, challenge, AssertionRequest.class),
+                            ceremonyClient.assertion(answer));
+                    authenticated();
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
-            });
+            }), verificationExecutor).whenComplete(completed(Ceremony.REAUTHENTICATION, challenge, username, address)));
         } catch (JsonProcessingException e) {
+            ceremonyStore.cancel(challenge);
             throw new RuntimeException(e);
         }
     }
 
-    public boolean userExists(String username) {
-        return webAuthnService.findKnownUsers().contains(username);
+    /**
+     * Releases the server side state of a ceremony right away if e.g.
+     * the user cancels the browser dialog, instead of waiting for it to
+     * expire. Also counts the failure, and audits the outcome.
+     *
+     * @param username the user, or null for a login, which then
+     *                 completes with the username
+     */
+    private <T> BiConsumer<T, Throwable> completed(Ceremony ceremony, ByteArray challenge,
+                                                   String username, String address) {
+        return (result, ex) -> {
+            if (ex != null) {
+                ceremonyStore.cancel(challenge);
+                metrics.failed(ceremony, ex);
+            }
+            audit(ceremony, username == null && result instanceof String name ? name : username, address, ex);
+        };
+    }
+
+    private void audit(Ceremony ceremony, String username, String address, Throwable ex) {
+        String failure = null;
+        if (ex != null) {
+            Throwable cause = WebAuthnMetrics.cause(ex);
+            failure = cause.getMessage() == null
+                    ? cause.getClass().getSimpleName()
+                    : cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        }
+        auditLog.record(ceremony, username, address, failure);
+    }
+
+    private static String clientAddress() {
+        VaadinSession session = VaadinSession.getCurrent();
+        return session == null || session.getBrowser() == null ? null : session.getBrowser().getAddress();
+    }
+
+    /**
+     * A ceremony waiting for the browser in the {@link CeremonyStore}.
+     */
+    private record Started<T>(T request, ByteArray challenge) {
+    }
+
+    /**
+     * Starts a ceremony, timing it, and counting and auditing it if it
+     * can't be started, e.g. because of a rate limit or too many
+     * ceremonies pending.
+     */
+    private <T> T started(Ceremony ceremony, String username, String address, Supplier<T> start) {
+        try {
+            return metrics.start(ceremony).record(start);
+        } catch (RuntimeException e) {
+            metrics.failed(ceremony, e);
+            audit(ceremony, username, address, e);
+            throw e;
+        }
+    }
+
+    private <T> Function<String, T> finished(Ceremony ceremony, Function<String, T> finish) {
+        Timer timer = metrics.finish(ceremony);
+        return json -> timer.record(() -> finish.apply(json));
+    }
+
+    private Consumer<String> finished(Ceremony ceremony, Consumer<String> finish) {
+        Timer timer = metrics.finish(ceremony);
+        return json -> timer.record(() -> finish.accept(json));
+    }
+
+    private CompletableFuture<String> roundTrip(Ceremony ceremony, CompletableFuture<String> browser) {
+        Timer.Sample sample = Timer.start();
+        return browser.whenComplete((json, ex) -> sample.stop(metrics.browserRoundTrip(ceremony)));
+    }
+
+    /**
+     * With asynchronous verification, the result arrives on a
+     * verification thread. The UI code continuing from the returned
+     * futures expects to run with the session locked, like it does when
+     * verifying directly, so the outcome is handed over via UI.access.
+     */
+    private <T> CompletableFuture<T> backInUi(UI ui, CompletableFuture<T> verification) {
+        if (!verificationExecutor.isAsync() || ui == null) {
+            // or no UI at all, with a headless CeremonyClient
+            return verification;
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        verification.whenComplete((result, ex) -> {
+            try {
+                ui.access(() -> {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                    } else {
+                        future.complete(result);
+                    }
+                });
+            } catch (UIDetachedException e) {
+                // the user closed the tab meanwhile
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return true if nobody has registered or is just registering the username
+     */
+    public boolean isUsernameAvailable(String username) {
+        return webAuthnService.isUsernameAvailable(username);
     }
 
     public boolean isLoggedIn() {
-        return username != null;
+        return getUsername() != null;
     }
 
     public String getUsername() {
+        if (username == null && !restored) {
+            // a new session on this node, maybe continuing one from another node
+            restored = true;
+            byte[] saved = stateStore.get(key());
+            if (saved != null) {
+                // logged in elsewhere, so not recently verified here
+                username = new String(saved, StandardCharsets.UTF_8);
+                roles = rolesOf(username);
+                save();
+            }
+        } else if (username != null && System.nanoTime() - savedAtNanos > ttl.toNanos() / 2) {
+            // keep the saved user alive while the session is used
+            save();
+        }
         return username;
     }
 
+    /**
+     * @return true if the logged-in user has the role, currently
+     * "admin" for the users listed in {@code webauthn.admins}
+     */
+    public boolean hasRole(String role) {
+        return roles.contains(role);
+    }
+
+    /**
+     * @return true if the user has logged in or re-authenticated in
+     * this session within the given time
+     */
+    public boolean isAuthenticatedWithin(long nanos) {
+        return authenticated && System.nanoTime() - authenticatedAtNanos <= nanos;
+    }
+
     public void logout() {
         username = null;
+        roles = Set.of();
+        authenticated = false;
+        stateStore.remove(key());
         UI.getCurrent().navigate(LoginAndRegistrationView.class);
     }
 
     public void setUser(String name) {
         this.username = name;
+        this.restored = true;
+        this.roles = rolesOf(name);
+        if (name == null) {
+            authenticated = false;
+            stateStore.remove(key());
+        } else {
+            // just logged in or registered with the passkey
+            authenticated();
+            save();
+        }
+    }
+
+    private void authenticated() {
+        authenticatedAtNanos = System.nanoTime();
+        authenticated = true;
+    }
+
+    private Set<String> rolesOf(String name) {
+        return name != null && admins.contains(name) ? Set.of("admin") : Set.of();
+    }
+
+    private void save() {
+        stateStore.put(key(), username.getBytes(StandardCharsets.UTF_8), ttl);
+        savedAtNanos = System.nanoTime();
+    }
+
+    private String key() {
+        return "user:" + sessionId;
     }
 
 }
\ No newline at end of file
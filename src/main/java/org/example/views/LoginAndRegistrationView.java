@@ -11,12 +11,14 @@ import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.dom.Style;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.server.auth.AnonymousAllowed;
 import org.example.WebAuthnService;
 import org.example.WebAuthnSession;
 import org.vaadin.firitin.components.RichText;
 import org.vaadin.firitin.components.textfield.VTextField;
 
 @Route("login")
+@AnonymousAllowed
 public class LoginAndRegistrationView extends VerticalLayout {
 
     public LoginAndRegistrationView(
@@ -74,7 +76,7 @@ public class LoginAndRegistrationView extends VerticalLayout {
         username.setManualValidation(true);
         username.addValueChangeListener(e -> {
             boolean isValid = !e.getValue().isEmpty() && e.getValue().matches("[a-zA-Z0-9]+");
-            boolean userExists = webAuthnSession.userExists(username.getValue());
+            boolean userExists = !webAuthnSession.isUsernameAvailable(username.getValue());
             if (isValid) {
                 if (userExists)
                     username.setErrorMessage("User name already exists!");
@@ -6,6 +6,7 @@ import com.vaadin.flow.component.html.Hr;
 import com.vaadin.flow.component.html.Paragraph;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
 import org.example.WebAuthnSession;
 
 @Route("")
@@ -32,6 +33,8 @@ public class MainView extends VerticalLayout {
             importantTaskDialog.open();
         }));
 
+        add(new RouterLink("Transfer money (asks to verify again)", TransferView.class));
+
         add(new Button("Logout", e -> {
             userSession.logout();
         }));
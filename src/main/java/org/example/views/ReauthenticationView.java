@@ -0,0 +1,50 @@
+package org.example.views;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.html.H1;
+import com.vaadin.flow.component.html.Paragraph;
+import com.vaadin.flow.component.notification.Notification;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.router.BeforeEnterEvent;
+import com.vaadin.flow.router.BeforeEnterObserver;
+import com.vaadin.flow.router.Route;
+import org.example.RequiresReauthentication;
+import org.example.WebAuthnSession;
+import org.vaadin.firitin.components.button.VButton;
+
+/**
+ * Shown instead of a view annotated with {@link RequiresReauthentication}
+ * if the user hasn't verified themselves recently. Continues to that
+ * view after a successful re-authentication.
+ */
+@Route(ReauthenticationView.ROUTE)
+public class ReauthenticationView extends VerticalLayout implements BeforeEnterObserver {
+
+    public static final String ROUTE = "reauthenticate";
+    public static final String CONTINUE = "continue";
+
+    private String continueTo = "";
+
+    public ReauthenticationView(WebAuthnSession webAuthnSession) {
+        setAlignItems(Alignment.CENTER);
+        add(new H1("Please verify it's you"));
+        add(new Paragraph("The page you are going to needs a recent " +
+                "verification with your passkey, e.g. a fingerprint."));
+        add(new VButton("Verify and continue", e -> {
+            webAuthnSession.runReauthenticated().thenAccept(v -> {
+                UI.getCurrent().navigate(continueTo);
+            }).exceptionally(ex -> {
+                Notification.show("Re-authentication failed! " + ex.getMessage())
+                        .setPosition(Notification.Position.MIDDLE);
+                return null;
+            });
+        }));
+        add(new VButton("Cancel", e -> UI.getCurrent().navigate(MainView.class)));
+    }
+
+    @Override
+    public void beforeEnter(BeforeEnterEvent event) {
+        continueTo = event.getLocation().getQueryParameters()
+                .getSingleParameter(CONTINUE).orElse("");
+    }
+}
@@ -0,0 +1,35 @@
+package org.example.views;
+
+import com.vaadin.flow.component.html.H1;
+import com.vaadin.flow.component.html.Paragraph;
+import com.vaadin.flow.component.notification.Notification;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.textfield.BigDecimalField;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
+import org.example.RequiresReauthentication;
+import org.vaadin.firitin.components.button.VButton;
+
+/**
+ * Like {@link ImportantTaskDialog}, but the whole view is protected: the
+ * user must have verified themselves within the last five minutes to
+ * even see it, see {@link RequiresReauthentication}.
+ */
+@Route("transfer")
+@RequiresReauthentication(maxAge = 5)
+public class TransferView extends VerticalLayout {
+
+    public TransferView() {
+        setAlignItems(Alignment.CENTER);
+        add(new H1("Transfer money"));
+        add(new Paragraph("You verified yourself recently, so you may " +
+                "transfer the millions."));
+        BigDecimalField amount = new BigDecimalField("Amount");
+        add(amount);
+        add(new VButton("Transfer", e -> {
+            Notification.show("Transferred " + amount.getValue() + "!")
+                    .setPosition(Notification.Position.MIDDLE);
+        }));
+        add(new RouterLink("Back to the main view", MainView.class));
+    }
+}
@@ -1,23 +1,73 @@
 package org.example.views;
 
 import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.grid.dataview.GridLazyDataView;
 import com.vaadin.flow.component.html.H3;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.value.ValueChangeMode;
 import com.vaadin.flow.spring.annotation.SpringComponent;
 import org.example.WebAuthnService;
 import org.springframework.context.annotation.Scope;
 
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
 @Scope("prototype")
 @SpringComponent
 public class UserListing extends VerticalLayout {
 
+    // Counting more than this many users would take long with a short
+    // filter, the grid finds the rest by scrolling
+    private static final int COUNT_LIMIT = 1000;
+
+    private final WebAuthnService webAuthnService;
+    private String filter = "";
+    // The last username before each offset fetched so far, so that the
+    // next page is found from there instead of skipping all the rows
+    // above it. Users added or removed meanwhile may shift the rows a bit.
+    private final NavigableMap<Integer, String> bookmarks = new TreeMap<>();
+
     public UserListing(WebAuthnService webAuthnService) {
+        this.webAuthnService = webAuthnService;
         setAlignItems(Alignment.CENTER);
         Grid<String> grid = new Grid<>();
         grid.setWidth("300px");
         grid.addColumn(s -> s);
-        grid.setItems(webAuthnService.findKnownUsers());
+        // Lazy loading: the grid only asks for the rows it shows, so the
+        // page loads equally fast with a handful or millions of users
+        GridLazyDataView<String> users = grid.setItems(query -> page(query.getOffset(), query.getLimit()).stream());
+        users.setItemCountEstimate(estimate());
         grid.getStyle().setMargin("0 auto"); // TODO figure out why not centered
-        add(new H3("Known users (no dupes allowed)"), grid);
+
+        TextField filter = new TextField();
+        filter.setPlaceholder("Filter by username");
+        filter.setWidth("300px");
+        filter.setValueChangeMode(ValueChangeMode.LAZY);
+        filter.addValueChangeListener(e -> {
+            this.filter = e.getValue().trim();
+            bookmarks.clear();
+            users.setItemCountEstimate(estimate());
+            users.refreshAll();
+        });
+        add(new H3("Known users (no dupes allowed)"), filter, grid);
+    }
+
+    private List<String> page(int offset, int limit) {
+        Map.Entry<Integer, String> bookmark = bookmarks.floorEntry(offset);
+        int start = bookmark == null ? 0 : bookmark.getKey();
+        List<String> usernames = webAuthnService.findUsers(filter, bookmark == null ? null : bookmark.getValue(),
+                offset - start + limit);
+        if (!usernames.isEmpty()) {
+            bookmarks.put(start + usernames.size(), usernames.get(usernames.size() - 1));
+        }
+        return usernames.subList(Math.min(offset - start, usernames.size()), usernames.size());
+    }
+
+    private int estimate() {
+        // exact below the limit, the estimate must be positive
+        return (int) Math.max(1, webAuthnService.countUsers(filter, COUNT_LIMIT));
     }
 }
@@ -52,3 +52,60 @@ window.createCredentialJsonForServer = cred => {
     }
     return JSON.stringify(c);
 }
+
+// The ceremonies, called by WebAuthnSession with the options JSON from the
+// server. Return the JSON of the credential for the server.
+window.webauthnCreate = async json => {
+    const c = JSON.parse(json);
+    // convert base64 fields to bytes
+    fromB64Cred(c);
+    // trigger the browser dialog to generate passkey
+    const cred = await navigator.credentials.create(c);
+    return createCredentialJsonForServer(cred);
+};
+window.webauthnGet = async json => {
+    const c = JSON.parse(json);
+    fromB64Cred(c);
+    const cred = await navigator.credentials.get(c);
+    return createCredentialJsonForServer(cred);
+};
+
+// The same for webauthn.transport=binary: the raw buffers are POSTed to
+// the given url, see CredentialResponses for the format
+window.uploadCredential = async (url, type, cred, fields) => {
+    const ext = new TextEncoder().encode(JSON.stringify(cred.getClientExtensionResults()));
+    const parts = [cred.rawId, ...fields, ext].map(p => new Uint8Array(p || new ArrayBuffer(0)));
+    const body = new Uint8Array(2 + parts.reduce((n, p) => n + 4 + p.length, 0));
+    const view = new DataView(body.buffer);
+    body[0] = 1; // version
+    body[1] = type;
+    let pos = 2;
+    parts.forEach(p => {
+        view.setUint32(pos, p.length);
+        body.set(p, pos + 4);
+        pos += 4 + p.length;
+    });
+    const response = await fetch(url, {
+        method: 'POST',
+        headers: {'Content-Type': 'application/octet-stream'},
+        body: body
+    });
+    if (!response.ok) {
+        throw new Error('Uploading the credential failed: ' + response.status);
+    }
+    return "";
+};
+window.webauthnCreateBinary = async (json, url) => {
+    const c = JSON.parse(json);
+    fromB64Cred(c);
+    const cred = await navigator.credentials.create(c);
+    return uploadCredential(url, 1, cred,
+        [cred.response.clientDataJSON, cred.response.attestationObject]);
+};
+window.webauthnGetBinary = async (json, url) => {
+    const c = JSON.parse(json);
+    fromB64Cred(c);
+    const cred = await navigator.credentials.get(c);
+    return uploadCredential(url, 2, cred, [cred.response.clientDataJSON,
+        cred.response.authenticatorData, cred.response.signature, cred.response.userHandle]);
+};
@@ -0,0 +1,13 @@
+-- Schema for JdbcRegistrationRepository, written for H2. Adjust the
+-- binary column types for your database (e.g. BYTEA on PostgreSQL).
+CREATE TABLE IF NOT EXISTS webauthn_credential (
+    credential_id   VARBINARY(1023) NOT NULL PRIMARY KEY,
+    user_handle     VARBINARY(64)   NOT NULL,
+    username        VARCHAR(255)    NOT NULL,
+    public_key_cose VARBINARY(2048) NOT NULL,
+    transports      VARCHAR(255),
+    signature_count BIGINT          DEFAULT 0 NOT NULL,
+    last_used       TIMESTAMP WITH TIME ZONE
+);
+CREATE INDEX IF NOT EXISTS webauthn_credential_user_handle ON webauthn_credential (user_handle);
+CREATE INDEX IF NOT EXISTS webauthn_credential_username ON webauthn_credential (username);
@@ -0,0 +1,97 @@
+package org.example;
+
+import org.example.WebAuthnMetrics.Ceremony;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuditLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @Timeout(10)
+    void blockingGivesUpWhenTheWriterIsStuck() throws Exception {
+        AuditLog auditLog = new AuditLog(directory.toString(), 4, "block", 1 << 20, Duration.ofMillis(100));
+        // no writer from now on
+        auditLog.close();
+
+        for (int i = 0; i < 6; i++) {
+            auditLog.record(Ceremony.LOGIN, "user" + i, "10.0.0.1", null);
+        }
+
+        assertThat(auditLog.getLag()).isEqualTo(4);
+        assertThat(auditLog.getDropped()).isEqualTo(2);
+    }
+
+    /**
+     * Recording the events must stay off the path of the ceremonies: the
+     * p99 latency of logins with the audit log on is within 5% of the
+     * one without. The logins alternate between an audited and a not
+     * audited instance, so that the GC, the JIT and the neighbours of the
+     * test slow down both alike. Still, wall-clock latencies vary from run
+     * to run, so this is not part of the default build.
+     */
+    @Test
+    @Tag("perf")
+    void auditingDoesntSlowDownLogins() throws Exception {
+        int users = 200;
+        int logins = 2000;
+        try (WebAuthnFixture off = new WebAuthnFixture();
+             WebAuthnFixture on = new WebAuthnFixture(new InMemoryRegistrationRepository(),
+                     new AuditLog(directory.toString(), 8192, "drop", 64 << 20, Duration.ofSeconds(1)),
+                     new VerificationExecutor(false, 0, 1000))) {
+            // a device logs in with its latest passkey, so one per instance
+            SoftwareAuthenticator[] offDevices = new SoftwareAuthenticator[users];
+            SoftwareAuthenticator[] onDevices = new SoftwareAuthenticator[users];
+            for (int i = 0; i < users; i++) {
+                offDevices[i] = new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.ES256);
+                onDevices[i] = new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.ES256);
+                off.session(offDevices[i]).registerUser("user" + i).join();
+                on.session(onDevices[i]).registerUser("user" + i).join();
+            }
+            long[] offNanos = new long[logins];
+            long[] onNanos = new long[logins];
+            // the first half warms up
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < logins; i++) {
+                    // which one goes first alternates too
+                    if (i % 2 == 0) {
+                        offNanos[i] = login(off, offDevices[i % users]);
+                        onNanos[i] = login(on, onDevices[i % users]);
+                    } else {
+                        onNanos[i] = login(on, onDevices[i % users]);
+                        offNanos[i] = login(off, offDevices[i % users]);
+                    }
+                }
+            }
+            assertThat(on.auditLog.getWritten() + on.auditLog.getLag()).isEqualTo(users + 2L * logins);
+
+            long offP99 = p99(offNanos);
+            long onP99 = p99(onNanos);
+            assertThat(onP99)
+                    .as("login p99 with the audit log, %.2f ms without", offP99 / 1e6)
+                    .isLessThanOrEqualTo((long) (offP99 * 1.05));
+        }
+    }
+
+    private static long login(WebAuthnFixture fixture, SoftwareAuthenticator authenticator) {
+        long start = System.nanoTime();
+        fixture.session(authenticator).login().join();
+        return System.nanoTime() - start;
+    }
+
+    private static long p99(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+    }
+}
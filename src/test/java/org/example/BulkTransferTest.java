@@ -0,0 +1,94 @@
+package org.example;
+
+import com.upokecenter.cbor.CBORObject;
+import com.yubico.webauthn.data.ByteArray;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkTransferTest {
+
+    private final InMemoryRegistrationRepository repository = new InMemoryRegistrationRepository();
+    private final UsernameAvailability usernameAvailability =
+            new UsernameAvailability(repository, 1000, 0.01, Duration.ofMinutes(5));
+    private final BulkTransfer bulkTransfer = new BulkTransfer(repository, usernameAvailability, 100, 2, "", "");
+
+    @AfterEach
+    void close() {
+        usernameAvailability.close();
+    }
+
+    @Test
+    void importsAnExport() throws Exception {
+        InMemoryRegistrationRepository source = new InMemoryRegistrationRepository();
+        TestRegistrations.fill(source, 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(new BulkTransfer(source, usernameAvailability, 100, 2, "", "").export(out)).isEqualTo(1000);
+
+        BulkTransfer.ImportResult result = bulkTransfer.importFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(result).isEqualTo(new BulkTransfer.ImportResult(1000, 0));
+        assertThat(repository.lookupAll(TestRegistrations.credentialId(999))).hasSize(1);
+        assertThat(usernameAvailability.isAvailable(TestRegistrations.username(999))).isFalse();
+    }
+
+    @Test
+    void skipsConflictsWithinTheFile() throws Exception {
+        ByteArray mallory = TestRegistrations.userHandle(100);
+        // a registration in progress, must not be released by a skipped record
+        assertThat(usernameAvailability.reserve("mallory", mallory)).isTrue();
+
+        BulkTransfer.ImportResult result = bulkTransfer.importFrom(export(
+                TestRegistrations.registration(0),
+                // the user handle of user 0 with another username
+                TestRegistrations.registration("eve", TestRegistrations.userHandle(0), TestRegistrations.credentialId(1),
+                        TestRegistrations.PUBLIC_KEY_COSE),
+                // the username of user 0 with another user handle
+                TestRegistrations.registration(TestRegistrations.username(0), TestRegistrations.userHandle(2),
+                        TestRegistrations.credentialId(2), TestRegistrations.PUBLIC_KEY_COSE),
+                // the credential id of user 0
+                TestRegistrations.registration("mallory", mallory, TestRegistrations.credentialId(0),
+                        TestRegistrations.PUBLIC_KEY_COSE),
+                // a key that is not on its curve
+                TestRegistrations.registration(TestRegistrations.username(3), TestRegistrations.userHandle(3),
+                        TestRegistrations.credentialId(3), offCurveKey()),
+                TestRegistrations.registration(4)));
+
+        assertThat(result).isEqualTo(new BulkTransfer.ImportResult(2, 4));
+        assertThat(repository.getUsernameForUserHandle(TestRegistrations.userHandle(0)))
+                .contains(TestRegistrations.username(0));
+        assertThat(repository.lookupAll(TestRegistrations.credentialId(4))).hasSize(1);
+        assertThat(repository.getUserHandleForUsername("eve")).isEmpty();
+        assertThat(repository.getUserHandleForUsername(TestRegistrations.username(3))).isEmpty();
+        assertThat(usernameAvailability.isAvailable("mallory")).isFalse();
+        assertThat(usernameAvailability.isAvailable("eve")).isTrue();
+    }
+
+    private static ByteArray offCurveKey() {
+        byte[] coordinate = new byte[32];
+        coordinate[31] = 1;
+        CBORObject key = CBORObject.NewMap()
+                .Add(1, 2)
+                .Add(3, -7)
+                .Add(-1, 1)
+                .Add(-2, coordinate)
+                .Add(-3, coordinate);
+        return new ByteArray(key.EncodeToBytes());
+    }
+
+    private static ByteArrayInputStream export(CredentialRegistration... registrations) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ByteBuffer.allocate(4).putInt(BulkTransfer.MAGIC).array());
+        for (CredentialRegistration r : List.of(registrations)) {
+            out.writeBytes(CredentialRecords.store(r).array());
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+}
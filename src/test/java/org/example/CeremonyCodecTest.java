@@ -0,0 +1,179 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.AssertionExtensionInputs;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobAuthenticationInput;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobRegistrationInput;
+import com.yubico.webauthn.data.Extensions.LargeBlob.LargeBlobRegistrationInput.LargeBlobSupport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialParameters;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import com.yubico.webauthn.data.RegistrationExtensionInputs;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+import com.yubico.webauthn.extension.appid.AppId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CeremonyCodecTest {
+
+    private static final String OWNER = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Test
+    void minimalRegistrationRoundTrips() {
+        assertRoundTrips(PublicKeyCredentialCreationOptions.builder()
+                .rp(RelyingPartyIdentity.builder().id("localhost").name("Test").build())
+                .user(user())
+                .challenge(challenge())
+                .pubKeyCredParams(List.of(PublicKeyCredentialParameters.ES256))
+                .build());
+    }
+
+    @Test
+    void registrationWithEverythingRoundTrips() throws Exception {
+        assertRoundTrips(PublicKeyCredentialCreationOptions.builder()
+                .rp(RelyingPartyIdentity.builder().id("example.com").name("Example").build())
+                .user(user())
+                .challenge(challenge())
+                .pubKeyCredParams(List.of(PublicKeyCredentialParameters.ES256, PublicKeyCredentialParameters.EdDSA,
+                        PublicKeyCredentialParameters.RS256))
+                .timeout(60000L)
+                .excludeCredentials(Set.of(descriptors()))
+                .authenticatorSelection(AuthenticatorSelectionCriteria.builder()
+                        .authenticatorAttachment(AuthenticatorAttachment.CROSS_PLATFORM)
+                        .residentKey(ResidentKeyRequirement.REQUIRED)
+                        .userVerification(UserVerificationRequirement.DISCOURAGED)
+                        .build())
+                .attestation(AttestationConveyancePreference.DIRECT)
+                .extensions(RegistrationExtensionInputs.builder()
+                        .appidExclude(new AppId("https://example.com/appid.json"))
+                        .credProps()
+                        .largeBlob(new LargeBlobRegistrationInput(LargeBlobSupport.PREFERRED))
+                        .uvm()
+                        .build())
+                .build());
+    }
+
+    @Test
+    void registrationWithPartialSelectionRoundTrips() {
+        assertRoundTrips(PublicKeyCredentialCreationOptions.builder()
+                .rp(RelyingPartyIdentity.builder().id("localhost").name("Test").build())
+                .user(user())
+                .challenge(challenge())
+                .pubKeyCredParams(List.of(PublicKeyCredentialParameters.ES256))
+                .excludeCredentials(Set.of())
+                .authenticatorSelection(AuthenticatorSelectionCriteria.builder()
+                        .residentKey(ResidentKeyRequirement.PREFERRED)
+                        .build())
+                .extensions(RegistrationExtensionInputs.builder()
+                        .largeBlob(LargeBlobSupport.REQUIRED)
+                        .build())
+                .build());
+    }
+
+    @Test
+    void loginWithoutUserRoundTrips() {
+        assertRoundTrips(AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenge())
+                        .build())
+                .build());
+    }
+
+    @Test
+    void reauthenticationWithEverythingRoundTrips() throws Exception {
+        assertRoundTrips(AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenge())
+                        .timeout(30000L)
+                        .rpId("example.com")
+                        .allowCredentials(List.of(descriptors()))
+                        .userVerification(UserVerificationRequirement.REQUIRED)
+                        .extensions(AssertionExtensionInputs.builder()
+                                .appid(new AppId("https://example.com/appid.json"))
+                                .largeBlob(LargeBlobAuthenticationInput.write(new ByteArray(new byte[]{1, 2, 3})))
+                                .uvm()
+                                .build())
+                        .build())
+                .username("alice")
+                .build());
+    }
+
+    @Test
+    void loginByUserHandleRoundTrips() {
+        assertRoundTrips(AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenge())
+                        .allowCredentials(List.of())
+                        .extensions(AssertionExtensionInputs.builder()
+                                .largeBlob(LargeBlobAuthenticationInput.read())
+                                .build())
+                        .build())
+                .userHandle(TestRegistrations.userHandle(1))
+                .build());
+    }
+
+    @Test
+    void theOwnerRoundTrips() {
+        AssertionRequest request = AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenge())
+                        .build())
+                .build();
+        assertThat(CeremonyCodec.decode(CeremonyCodec.encode(OWNER, request)).owner()).isEqualTo(OWNER);
+    }
+
+    @Test
+    void unknownVersionsAreRejected() {
+        byte[] bytes = CeremonyCodec.encode(OWNER, AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenge())
+                        .build())
+                .build());
+        bytes[0] = 2;
+        assertThatThrownBy(() -> CeremonyCodec.decode(bytes)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static void assertRoundTrips(Object request) {
+        assertThat(CeremonyCodec.decode(CeremonyCodec.encode(OWNER, request)).request()).isEqualTo(request);
+    }
+
+    private static UserIdentity user() {
+        return UserIdentity.builder()
+                .name(TestRegistrations.username(1))
+                .displayName("User One")
+                .id(TestRegistrations.userHandle(1))
+                .build();
+    }
+
+    private static ByteArray challenge() {
+        return TestRegistrations.credentialId(42);
+    }
+
+    private static PublicKeyCredentialDescriptor[] descriptors() {
+        return new PublicKeyCredentialDescriptor[]{
+                PublicKeyCredentialDescriptor.builder().id(TestRegistrations.credentialId(1)).build(),
+                PublicKeyCredentialDescriptor.builder()
+                        .id(TestRegistrations.credentialId(2))
+                        .transports(Set.of(AuthenticatorTransport.USB, AuthenticatorTransport.NFC))
+                        .build(),
+                PublicKeyCredentialDescriptor.builder()
+                        .id(TestRegistrations.credentialId(3))
+                        .transports(Set.of(AuthenticatorTransport.HYBRID, AuthenticatorTransport.INTERNAL))
+                        .build()
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CeremonyStoreTest {
+
+    private final InProcessSessionStateStore stateStore = new InProcessSessionStateStore();
+    private final CeremonyStore ceremonyStore = new CeremonyStore(stateStore, Duration.ofSeconds(1), 10000, 5);
+
+    @AfterEach
+    void close() {
+        ceremonyStore.close();
+        stateStore.close();
+    }
+
+    /**
+     * A soak test of several seconds, not part of the default build. Run
+     * with {@code -DexcludedGroups= -Dgroups=soak}.
+     */
+    @Test
+    @Tag("soak")
+    void reloadStormKeepsTheHeapFlat() throws Exception {
+        long started = 0;
+        long rejected = 0;
+        long baseline = 0;
+        long storm = TimeUnit.SECONDS.toNanos(6);
+        long begin = System.nanoTime();
+        for (long now = begin; now - begin < storm; now = System.nanoTime()) {
+            // every reload is a new session, and only every tenth bot answers
+            for (int i = 0; i < 1000; i++) {
+                String owner = "bot" + started;
+                AssertionRequest request = request();
+                started++;
+                try {
+                    ceremonyStore.start(owner, request);
+                } catch (IllegalStateException e) {
+                    rejected++;
+                    continue;
+                }
+                if (started % 10 == 0) {
+                    ceremonyStore.finish(owner, challenge(request), AssertionRequest.class);
+                }
+            }
+            assertThat(ceremonyStore.getPending()).isLessThanOrEqualTo(10000);
+            if (baseline == 0 && now - begin > TimeUnit.SECONDS.toNanos(2)) {
+                // the first ceremonies have expired, the store is as full as it gets
+                baseline = Heap.usedAfterGc();
+            }
+        }
+        // the pending ceremonies take a few megabytes, the rest must go
+        assertThat(Heap.usedAfterGc() - baseline).isLessThan(4 << 20);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ceremonyStore.getPending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(ceremonyStore.getPending()).isZero();
+        assertThat(ceremonyStore.getRejected()).isEqualTo(rejected).isPositive();
+        assertThat(ceremonyStore.getCompleted() + ceremonyStore.getExpired() + ceremonyStore.getRejected())
+                .isEqualTo(started);
+    }
+
+    private static AssertionRequest request() {
+        byte[] challenge = new byte[32];
+        ThreadLocalRandom.current().nextBytes(challenge);
+        return AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                        .challenge(new ByteArray(challenge))
+                        .rpId("localhost")
+                        .build())
+                .build();
+    }
+
+    private static ByteArray challenge(AssertionRequest request) {
+        return request.getPublicKeyCredentialRequestOptions().getChallenge();
+    }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileRegistrationRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void usageUpdatesTriggerSnapshots() throws Exception {
+        FileRegistrationRepository repository = new FileRegistrationRepository(directory, 100);
+        try {
+            TestRegistrations.fill(repository, 10);
+            awaitSnapshots(0);
+            // only logins from now on, the log must not grow forever
+            for (int round = 1; round <= 20; round++) {
+                List<CredentialUsage> usages = new ArrayList<>();
+                for (int n = 0; n < 10; n++) {
+                    usages.add(new CredentialUsage(TestRegistrations.credentialId(n), round, Instant.now()));
+                }
+                repository.updateUsage(usages);
+            }
+            awaitSnapshots(1);
+        } finally {
+            repository.close();
+        }
+
+        FileRegistrationRepository recovered = new FileRegistrationRepository(directory, 100);
+        try {
+            assertThat(recovered.countCredentials()).isEqualTo(10);
+            assertThat(recovered.lookupAll(TestRegistrations.credentialId(7)))
+                    .singleElement().satisfies(c -> assertThat(c.getSignatureCount()).isEqualTo(20));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    private void awaitSnapshots(int count) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (snapshots() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(snapshots()).isGreaterThanOrEqualTo(count);
+    }
+
+    private long snapshots() throws Exception {
+        try (var files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("snapshot-")).count();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Heap measurements for the soak tests.
+ */
+final class Heap {
+
+    private Heap() {
+    }
+
+    /**
+     * @return the used heap after collecting the garbage, roughly:
+     * {@link System#gc()} is only a hint
+     */
+    static long usedAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        // the smallest of a few, another thread may allocate meanwhile
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
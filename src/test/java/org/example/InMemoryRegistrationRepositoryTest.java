@@ -0,0 +1,46 @@
+package org.example;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemoryRegistrationRepositoryTest {
+
+    /**
+     * A soak test, ten million probes take a while, so it is not part of
+     * the default build. Run with {@code -DexcludedGroups= -Dgroups=soak}.
+     */
+    @Test
+    @Tag("soak")
+    void probingUnknownUsernamesKeepsTheHeapFlat() throws Exception {
+        InMemoryRegistrationRepository repository = new InMemoryRegistrationRepository();
+        TestRegistrations.fill(repository, 10000);
+        // a filter this small lets half of the probes through to the repository
+        UsernameAvailability availability = new UsernameAvailability(repository, 10000, 0.5, Duration.ofMinutes(5));
+        try {
+            SplittableRandom random = new SplittableRandom(42);
+            long before = Heap.usedAfterGc();
+            long probesPerRound = 1_000_000;
+            for (int round = 1; round <= 10; round++) {
+                for (long i = 0; i < probesPerRound; i++) {
+                    // like bots probing the login page, never the same name twice
+                    String username = Long.toString(random.nextLong(), 36);
+                    availability.isAvailable(username);
+                    repository.getUserHandleForUsername(username);
+                    repository.getCredentialIdsForUsername(username);
+                }
+                // 10M leaked entries would take gigabytes, a megabyte is noise
+                assertThat(Heap.usedAfterGc() - before)
+                        .as("heap growth after %d probes", round * probesPerRound)
+                        .isLessThan(1 << 20);
+            }
+            assertThat(repository.countUsers()).isEqualTo(10000);
+        } finally {
+            availability.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InProcessSessionStateStoreTest {
+
+    private final InProcessSessionStateStore store = new InProcessSessionStateStore();
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    @Test
+    void replacesOnlyTheExpectedValue() {
+        assertThat(store.replace("key", new byte[0], new byte[]{1}, Duration.ofMinutes(1))).isFalse();
+
+        store.put("key", new byte[0], Duration.ofMinutes(1));
+        assertThat(store.replace("key", new byte[]{2}, new byte[]{1}, Duration.ofMinutes(1))).isFalse();
+        // by content, not by the instance
+        assertThat(store.replace("key", new byte[0], new byte[]{1}, Duration.ofMinutes(1))).isTrue();
+        assertThat(store.get("key")).containsExactly(1);
+
+        store.put("expired", new byte[0], Duration.ZERO.minusSeconds(1));
+        assertThat(store.replace("expired", new byte[0], new byte[]{1}, Duration.ofMinutes(1))).isFalse();
+    }
+
+    @Test
+    void onlyOneOfConcurrentReplacesWins() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 1000; round++) {
+                String key = "key" + round;
+                store.put(key, new byte[0], Duration.ofMinutes(1));
+                List<Callable<Boolean>> uploads = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    byte[] value = {(byte) i};
+                    uploads.add(() -> store.replace(key, new byte[0], value, Duration.ofMinutes(1)));
+                }
+                int wins = 0;
+                for (Future<Boolean> won : executor.invokeAll(uploads)) {
+                    wins += won.get() ? 1 : 0;
+                }
+                assertThat(wins).isEqualTo(1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.AttestationObject;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialParameters;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.UserIdentity;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link JdbcRegistrationRepository} against an embedded H2 database.
+ */
+class JdbcRegistrationRepositoryTest {
+
+    private static final AttestationObject ATTESTATION = attestation();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile long connectionDelayMillis;
+    private final DriverManagerDataSource dataSource = new DriverManagerDataSource(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1") {
+        @Override
+        public Connection getConnection() throws SQLException {
+            connections.incrementAndGet();
+            if (connectionDelayMillis > 0) {
+                // a database further away, so that registrations queue up
+                try {
+                    Thread.sleep(connectionDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getConnection();
+        }
+    };
+    private final JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+    private final JdbcRegistrationRepository repository = newRepository();
+
+    @Test
+    void storedPasskeysAreReadThroughTheCache() {
+        store(1);
+        store(2);
+        assertThat(repository.lookup(TestRegistrations.credentialId(1), TestRegistrations.userHandle(1)))
+                .hasValueSatisfying(c -> assertThat(c.getPublicKeyCose()).isEqualTo(TestRegistrations.PUBLIC_KEY_COSE));
+        assertThat(repository.lookup(TestRegistrations.credentialId(1), TestRegistrations.userHandle(2))).isEmpty();
+        assertThat(repository.lookupAll(TestRegistrations.credentialId(2)))
+                .extracting(RegisteredCredential::getUserHandle).containsExactly(TestRegistrations.userHandle(2));
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(1)))
+                .singleElement().satisfies(d -> {
+                    assertThat(d.getId()).isEqualTo(TestRegistrations.credentialId(1));
+                    assertThat(d.getTransports()).hasValueSatisfying(t -> assertThat(t).containsExactly(AuthenticatorTransport.USB));
+                });
+        assertThat(repository.getUsernameForUserHandle(TestRegistrations.userHandle(2)))
+                .contains(TestRegistrations.username(2));
+
+        // gone from the table, but logins keep being answered from the cache
+        jdbc.update("DELETE FROM webauthn_credential");
+        assertThat(repository.lookup(TestRegistrations.credentialId(1), TestRegistrations.userHandle(1))).isPresent();
+        assertThat(repository.getUserHandleForUsername(TestRegistrations.username(1)))
+                .contains(TestRegistrations.userHandle(1));
+        assertThat(newRepository().lookupAll(TestRegistrations.credentialId(1))).isEmpty();
+    }
+
+    @Test
+    void cachedUsersFollowRegistrationsAndRemovals() {
+        store(1);
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(1))).hasSize(1);
+
+        // a second passkey of the same user
+        repository.storeCredential(TestRegistrations.username(1), TestRegistrations.userHandle(1),
+                PublicKeyCredentialDescriptor.builder().id(TestRegistrations.credentialId(100)).build(),
+                TestRegistrations.PUBLIC_KEY_COSE, ATTESTATION, null);
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(1)))
+                .extracting(PublicKeyCredentialDescriptor::getId)
+                .containsExactlyInAnyOrder(TestRegistrations.credentialId(1), TestRegistrations.credentialId(100));
+
+        repository.removeCredential(TestRegistrations.credentialId(1));
+        assertThat(repository.lookup(TestRegistrations.credentialId(1), TestRegistrations.userHandle(1))).isEmpty();
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(1)))
+                .extracting(PublicKeyCredentialDescriptor::getId).containsExactly(TestRegistrations.credentialId(100));
+
+        repository.removeCredential(TestRegistrations.credentialId(100));
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(1))).isEmpty();
+        assertThat(repository.getUsernameForUserHandle(TestRegistrations.userHandle(1))).isEmpty();
+        assertThat(repository.countCredentials()).isZero();
+    }
+
+    @Test
+    void usageOnlyMovesForward() {
+        store(1);
+        ByteArray id = TestRegistrations.credentialId(1);
+        Instant later = Instant.parse("2024-01-02T00:00:00Z");
+        repository.lookupAll(id);
+
+        repository.updateUsage(List.of(new CredentialUsage(id, 5, later)));
+        // e.g. a delayed write of an earlier login
+        repository.updateUsage(List.of(new CredentialUsage(id, 3, later.minusSeconds(3600))));
+
+        assertThat(repository.getLastUsed(id)).contains(later);
+        assertThat(repository.lookupAll(id))
+                .singleElement().satisfies(c -> assertThat(c.getSignatureCount()).isEqualTo(5));
+        assertThat(newRepository().lookupAll(id))
+                .singleElement().satisfies(c -> assertThat(c.getSignatureCount()).isEqualTo(5));
+    }
+
+    @Test
+    void passkeysTheTableCantHoldAreRejectedBeforeQueueing() {
+        assertThatThrownBy(() -> repository.storeCredential("x".repeat(256), TestRegistrations.userHandle(1),
+                PublicKeyCredentialDescriptor.builder().id(TestRegistrations.credentialId(1)).build(),
+                TestRegistrations.PUBLIC_KEY_COSE, ATTESTATION, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(repository.countCredentials()).isZero();
+    }
+
+    @Test
+    void concurrentRegistrationsAreBatchedAndOnlyBadOnesFail() throws Exception {
+        int threads = 8;
+        int perThread = 25;
+        store(0);
+        connections.set(0);
+        connectionDelayMillis = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<CompletableFuture<Void>> registrations = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                registrations.add(CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        store(1 + thread * perThread + i);
+                    }
+                }, executor));
+            }
+            // the passkey of user 0 once more, among the others
+            List<CompletableFuture<Void>> duplicates = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                duplicates.add(CompletableFuture.runAsync(() -> repository.storeCredential("intruder" + thread,
+                        TestRegistrations.userHandle(1000 + thread),
+                        PublicKeyCredentialDescriptor.builder().id(TestRegistrations.credentialId(0)).build(),
+                        TestRegistrations.PUBLIC_KEY_COSE, ATTESTATION, null), executor));
+            }
+            CompletableFuture.allOf(registrations.toArray(CompletableFuture[]::new)).join();
+            for (CompletableFuture<Void> duplicate : duplicates) {
+                assertThatThrownBy(duplicate::join).hasCauseInstanceOf(DataAccessException.class);
+            }
+        } finally {
+            executor.shutdown();
+            connectionDelayMillis = 0;
+        }
+
+        assertThat(connections.get()).isLessThan(threads * perThread);
+        assertThat(repository.countCredentials()).isEqualTo(1 + threads * perThread);
+        assertThat(newRepository().lookup(TestRegistrations.credentialId(0), TestRegistrations.userHandle(0)))
+                .isPresent();
+        for (int n = 1; n <= threads * perThread; n++) {
+            assertThat(newRepository().getCredentialIdsForUsername(TestRegistrations.username(n))).hasSize(1);
+        }
+    }
+
+    private JdbcRegistrationRepository newRepository() {
+        return new JdbcRegistrationRepository(jdbc, new DataSourceTransactionManager(dataSource),
+                1000, 1 << 20, true);
+    }
+
+    private void store(int n) {
+        repository.storeCredential(TestRegistrations.username(n), TestRegistrations.userHandle(n),
+                PublicKeyCredentialDescriptor.builder()
+                        .id(TestRegistrations.credentialId(n))
+                        .transports(Set.of(AuthenticatorTransport.USB))
+                        .build(),
+                TestRegistrations.PUBLIC_KEY_COSE, ATTESTATION, null);
+    }
+
+    private static AttestationObject attestation() {
+        PublicKeyCredentialCreationOptions options = PublicKeyCredentialCreationOptions.builder()
+                .rp(RelyingPartyIdentity.builder().id("localhost").name("test").build())
+                .user(UserIdentity.builder().name("test").displayName("test").id(TestRegistrations.userHandle(0)).build())
+                .challenge(new ByteArray(new byte[32]))
+                .pubKeyCredParams(List.of(PublicKeyCredentialParameters.ES256))
+                .build();
+        try {
+            return PublicKeyCredential.parseRegistrationResponseJson(
+                            new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.ES256)
+                                    .register(options.toCredentialsCreateJson()))
+                    .getResponse().getAttestation();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
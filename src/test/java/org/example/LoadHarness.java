@@ -0,0 +1,194 @@
+package org.example;
+
+import org.example.WebAuthnMetrics.Ceremony;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A headless load test of the ceremonies: thousands of simulated users,
+ * each with their own {@link SoftwareAuthenticator} as the
+ * {@link CeremonyClient} of their sessions, register, log in and
+ * re-authenticate through {@link WebAuthnSession} like the views do.
+ * <p>
+ * First all users register, then each of them opens a new session (like
+ * a new browser) and logs in and re-authenticates a number of times. The
+ * sessions of the second phase are kept, so the heap they take can be
+ * measured. Reports the throughput and the p50/p99/p999 latencies of
+ * each ceremony.
+ * </p>
+ * Run e.g. with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.example.LoadHarness -Dexec.args="users=10000 concurrency=200"},
+ * the options being:
+ * <ul>
+ *     <li>{@code users}: the number of users and sessions, 2000 by default</li>
+ *     <li>{@code concurrency}: users doing their ceremonies at the same time, 64 by default</li>
+ *     <li>{@code logins}: logins and re-authentications per user, 5 by default</li>
+ *     <li>{@code algorithm}: of the passkeys, ES256 (default), EDDSA or RS256</li>
+ *     <li>{@code async}: verify on {@link VerificationExecutor}'s threads, false by default</li>
+ *     <li>{@code audit}: the directory of the {@link AuditLog}, not audited by default</li>
+ * </ul>
+ */
+public class LoadHarness {
+
+    public record Options(int users, int concurrency, int logins,
+                          SoftwareAuthenticator.Algorithm algorithm, boolean async, String audit) {
+
+        static Options parse(String... args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                String[] pair = arg.split("=", 2);
+                values.put(pair[0], pair.length > 1 ? pair[1] : "true");
+            }
+            return new Options(
+                    Integer.parseInt(values.getOrDefault("users", "2000")),
+                    Integer.parseInt(values.getOrDefault("concurrency", "64")),
+                    Integer.parseInt(values.getOrDefault("logins", "5")),
+                    SoftwareAuthenticator.Algorithm.valueOf(values.getOrDefault("algorithm", "ES256")),
+                    Boolean.parseBoolean(values.getOrDefault("async", "false")),
+                    values.getOrDefault("audit", ""));
+        }
+    }
+
+    /**
+     * The latencies of one ceremony, in nanoseconds.
+     */
+    public static final class Latencies {
+        private final long[] nanos;
+        private final AtomicInteger count = new AtomicInteger();
+        private final LongAdder failures = new LongAdder();
+        private long elapsedNanos;
+
+        Latencies(int capacity) {
+            nanos = new long[capacity];
+        }
+
+        void record(long latency) {
+            nanos[count.getAndIncrement()] = latency;
+        }
+
+        public int count() {
+            return count.get();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public double perSecond() {
+            return count() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile e.g. 99.9
+         */
+        public long percentile(double percentile) {
+            long[] sorted = Arrays.copyOf(nanos, count());
+            Arrays.sort(sorted);
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1)];
+        }
+    }
+
+    public record Report(Options options, Map<Ceremony, Latencies> latencies, long heapPerSession) {
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("%d users, %d at a time, %s, %s verification, %s%n".formatted(
+                    options.users(), options.concurrency(), options.algorithm(),
+                    options.async() ? "async" : "direct", options.audit().isEmpty() ? "not audited" : "audited"));
+            sb.append("%-18s %8s %8s %10s %10s %10s %10s%n".formatted(
+                    "ceremony", "count", "failed", "per sec", "p50 ms", "p99 ms", "p999 ms"));
+            latencies.forEach((ceremony, l) -> sb.append("%-18s %8d %8d %10.1f %10.2f %10.2f %10.2f%n".formatted(
+                    ceremony, l.count(), l.failures(), l.perSecond(),
+                    l.percentile(50) / 1e6, l.percentile(99) / 1e6, l.percentile(99.9) / 1e6)));
+            sb.append("heap per logged-in session: %d bytes%n".formatted(heapPerSession));
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.print(run(Options.parse(args)));
+    }
+
+    public static Report run(Options options) throws Exception {
+        Map<Ceremony, Latencies> latencies = new EnumMap<>(Ceremony.class);
+        latencies.put(Ceremony.REGISTRATION, new Latencies(options.users()));
+        latencies.put(Ceremony.LOGIN, new Latencies(options.users() * options.logins()));
+        latencies.put(Ceremony.REAUTHENTICATION, new Latencies(options.users() * options.logins()));
+
+        try (WebAuthnFixture fixture = new WebAuthnFixture(new InMemoryRegistrationRepository(),
+                new AuditLog(options.audit(), 8192, "drop", 64 << 20, Duration.ofSeconds(1)),
+                new VerificationExecutor(options.async(), 0, Math.max(1000, options.concurrency())))) {
+            SoftwareAuthenticator[] authenticators = new SoftwareAuthenticator[options.users()];
+            forEachUser(options, latencies.get(Ceremony.REGISTRATION), user -> {
+                authenticators[user] = new SoftwareAuthenticator(options.algorithm());
+                WebAuthnSession session = fixture.session(authenticators[user]);
+                time(latencies.get(Ceremony.REGISTRATION), () -> session.registerUser("load" + user).join());
+            });
+
+            // the sessions of the registrations are gone, what remains is
+            // the users and their authenticators
+            long before = usedHeap();
+            WebAuthnSession[] sessions = new WebAuthnSession[options.users()];
+            long start = System.nanoTime();
+            forEachUser(options, latencies.get(Ceremony.LOGIN), user -> {
+                sessions[user] = fixture.session(authenticators[user]);
+                for (int i = 0; i < options.logins(); i++) {
+                    time(latencies.get(Ceremony.LOGIN), () -> sessions[user].login().join());
+                    time(latencies.get(Ceremony.REAUTHENTICATION), () -> sessions[user].runReauthenticated().join());
+                }
+            });
+            // the two ran interleaved
+            latencies.get(Ceremony.REAUTHENTICATION).elapsedNanos = System.nanoTime() - start;
+            long heapPerSession = (usedHeap() - before) / options.users();
+            // the sessions must not be collected before measuring
+            Reference.reachabilityFence(sessions);
+            return new Report(options, latencies, heapPerSession);
+        }
+    }
+
+    private static void forEachUser(Options options, Latencies latencies, IntConsumer user) throws InterruptedException {
+        ExecutorService users = Executors.newFixedThreadPool(options.concurrency());
+        long start = System.nanoTime();
+        for (int i = 0; i < options.users(); i++) {
+            int n = i;
+            users.execute(() -> user.accept(n));
+        }
+        users.shutdown();
+        users.awaitTermination(1, TimeUnit.HOURS);
+        latencies.elapsedNanos = System.nanoTime() - start;
+    }
+
+    private static void time(Latencies latencies, Runnable ceremony) {
+        long start = System.nanoTime();
+        try {
+            ceremony.run();
+            latencies.record(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            latencies.failures.increment();
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+import org.example.WebAuthnMetrics.Ceremony;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * A short run of the {@link LoadHarness}, the real runs are done from the
+ * command line.
+ */
+class LoadHarnessTest {
+
+    @Test
+    void drivesTheCeremoniesOfConcurrentUsers() throws Exception {
+        LoadHarness.Report report = LoadHarness.run(LoadHarness.Options.parse(
+                "users=200", "concurrency=16", "logins=2", "async=true"));
+
+        assertThat(report.latencies().get(Ceremony.REGISTRATION).count()).isEqualTo(200);
+        assertThat(report.latencies().get(Ceremony.LOGIN).count()).isEqualTo(400);
+        assertThat(report.latencies().get(Ceremony.REAUTHENTICATION).count()).isEqualTo(400);
+        assertThat(report.latencies().values()).allSatisfy(l -> {
+            assertThat(l.failures()).isZero();
+            assertThat(l.percentile(99.9)).isGreaterThanOrEqualTo(l.percentile(50)).isPositive();
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OffHeapRegistrationRepositoryTest {
+
+    private final OffHeapRegistrationRepository repository = new OffHeapRegistrationRepository(1 << 20, 1 << 20);
+
+    @Test
+    void cachedPasskeysFollowUsageAndRemoval() {
+        TestRegistrations.fill(repository, 10);
+        // cached by the first lookup
+        assertThat(repository.lookup(TestRegistrations.credentialId(3), TestRegistrations.userHandle(3)))
+                .hasValueSatisfying(c -> assertThat(c.getSignatureCount()).isZero());
+
+        repository.updateUsage(List.of(new CredentialUsage(TestRegistrations.credentialId(3), 42, Instant.now())));
+        assertThat(repository.lookupAll(TestRegistrations.credentialId(3)))
+                .singleElement().satisfies(c -> assertThat(c.getSignatureCount()).isEqualTo(42));
+
+        repository.removeCredential(TestRegistrations.credentialId(3));
+        assertThat(repository.lookup(TestRegistrations.credentialId(3), TestRegistrations.userHandle(3))).isEmpty();
+        assertThat(repository.lookupAll(TestRegistrations.credentialId(3))).isEmpty();
+        assertThat(repository.lookup(TestRegistrations.credentialId(4), TestRegistrations.userHandle(3))).isEmpty();
+        assertThat(repository.lookup(TestRegistrations.credentialId(4), TestRegistrations.userHandle(4))).isPresent();
+    }
+
+    @Test
+    void spaceOfRemovedPasskeysIsReleased() {
+        OffHeapRegistrationRepository repository = new OffHeapRegistrationRepository(8192, 0);
+        // three passkeys per user, so that moving also relinks the users
+        List<CredentialRegistration> registrations = new ArrayList<>();
+        for (int n = 0; n < 3000; n++) {
+            registrations.add(TestRegistrations.registration(TestRegistrations.username(n / 3),
+                    TestRegistrations.userHandle(n / 3), TestRegistrations.credentialId(n),
+                    TestRegistrations.PUBLIC_KEY_COSE));
+        }
+        repository.storeAll(registrations);
+        long full = repository.getAllocatedBytes();
+
+        // all but every tenth
+        for (int n = 0; n < 3000; n++) {
+            if (n % 10 != 0) {
+                repository.removeCredential(TestRegistrations.credentialId(n));
+            }
+        }
+
+        assertThat(repository.getAllocatedBytes()).isLessThan(full / 2);
+        assertThat(repository.countCredentials()).isEqualTo(300);
+        assertThat(repository.countUsers()).isEqualTo(300);
+        for (int n = 0; n < 3000; n += 10) {
+            assertThat(repository.lookup(TestRegistrations.credentialId(n), TestRegistrations.userHandle(n / 3)))
+                    .isPresent();
+            assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(n / 3)))
+                    .extracting(PublicKeyCredentialDescriptor::getId).containsExactly(TestRegistrations.credentialId(n));
+            assertThat(repository.getUsernameForUserHandle(TestRegistrations.userHandle(n / 3)))
+                    .contains(TestRegistrations.username(n / 3));
+        }
+
+        // the released chunks are used again, instead of taking twice the space
+        repository.storeAll(TestRegistrations.registrations(10000, 13000));
+        assertThat(repository.getAllocatedBytes()).isLessThan(full + full / 2);
+        assertThat(repository.getCredentialIdsForUsername(TestRegistrations.username(3)))
+                .hasSize(1);
+        assertThat(repository.countCredentials()).isEqualTo(3300);
+    }
+}
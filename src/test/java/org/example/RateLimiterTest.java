@@ -0,0 +1,131 @@
+package org.example;
+
+import org.example.RateLimiter.Limit;
+import org.example.RateLimiter.RateLimitExceededException;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RateLimiterTest {
+
+    @Test
+    void rejectedRequestsCountAgainstNoLimit() {
+        // all within the same second
+        RateLimiter rateLimiter = new RateLimiter(0, 3, 1, 1024, () -> 0);
+        rateLimiter.acquire("10.0.0.1", "alice");
+        // over the username limit, the address must not be charged
+        for (int i = 0; i < 10; i++) {
+            assertThatThrownBy(() -> rateLimiter.acquire("10.0.0.1", "alice"))
+                    .isInstanceOf(RateLimitExceededException.class);
+        }
+        rateLimiter.acquire("10.0.0.1", "bob");
+        rateLimiter.acquire("10.0.0.1", "carol");
+        assertThatThrownBy(() -> rateLimiter.acquire("10.0.0.1", "dave"))
+                .isInstanceOf(RateLimitExceededException.class);
+        assertThat(rateLimiter.getRejected(Limit.USERNAME)).isEqualTo(10);
+        assertThat(rateLimiter.getRejected(Limit.ADDRESS)).isEqualTo(1);
+    }
+
+    @Test
+    void limitsStartOverEverySecond() {
+        AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(1000) + 999_999_999);
+        RateLimiter rateLimiter = new RateLimiter(0, 1, 0, 1024, now::get);
+        rateLimiter.acquire("10.0.0.1", null);
+        assertThatThrownBy(() -> rateLimiter.acquire("10.0.0.1", null))
+                .isInstanceOf(RateLimitExceededException.class);
+
+        now.incrementAndGet();
+        rateLimiter.acquire("10.0.0.1", null);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        rateLimiter.acquire("10.0.0.1", null);
+        assertThat(rateLimiter.getRejected(Limit.ADDRESS)).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentRequestsDontExceedTheLimit() throws Exception {
+        int limit = 50;
+        RateLimiter rateLimiter = new RateLimiter(0, limit, 0, 1024);
+        AtomicInteger passed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 100; i++) {
+                            try {
+                                rateLimiter.acquire("10.0.0.1", null);
+                                passed.incrementAndGet();
+                            } catch (RateLimitExceededException e) {
+                                // expected
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            done.await();
+        } finally {
+            executor.shutdown();
+        }
+        // at most two seconds of requests if the second changed meanwhile
+        assertThat(passed.get()).isPositive().isLessThanOrEqualTo(2 * limit);
+    }
+
+    /**
+     * One second of a flood of 50k requests, from a few thousand
+     * addresses trying the usernames of a few hundred users, must be
+     * rejected with a small part of one core.
+     */
+    @Test
+    void rejectingAFloodIsCheap() {
+        RateLimiter rateLimiter = new RateLimiter(1000, 10, 5, 16384);
+        String[] addresses = new String[5000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "10.0." + (i >> 8) + "." + (i & 255);
+        }
+        String[] usernames = new String[500];
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = TestRegistrations.username(i);
+        }
+        // warm up
+        flood(rateLimiter, addresses, usernames, 200_000);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getCurrentThreadCpuTime();
+        int passed = flood(rateLimiter, addresses, usernames, 50_000);
+        long cpuMillis = TimeUnit.NANOSECONDS.toMillis(threads.getCurrentThreadCpuTime() - cpu);
+        assertThat(passed).isLessThanOrEqualTo(2 * 1000);
+        // a tenth of a core at 50k requests per second
+        assertThat(cpuMillis).as("CPU of 50000 requests in ms").isLessThan(100);
+    }
+
+    private static int flood(RateLimiter rateLimiter, String[] addresses, String[] usernames, int requests) {
+        int passed = 0;
+        for (int i = 0; i < requests; i++) {
+            try {
+                rateLimiter.acquire(addresses[i % addresses.length], usernames[i % usernames.length]);
+                passed++;
+            } catch (RateLimitExceededException e) {
+                // expected for most
+            }
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReplicatedRegistrationRepositoryTest {
+
+    /**
+     * Fails to send while told to.
+     */
+    static class FlakyTransport implements ReplicationTransport {
+        final LoopbackReplicationTransport delegate;
+        volatile boolean failing;
+
+        FlakyTransport(String channel) {
+            delegate = new LoopbackReplicationTransport(channel);
+        }
+
+        @Override
+        public void connect(Listener listener) {
+            delegate.connect(listener);
+        }
+
+        @Override
+        public void send(ByteBuffer records) {
+            if (failing) {
+                throw new IllegalStateException("Network down");
+            }
+            delegate.send(records);
+        }
+    }
+
+    private final String channel = UUID.randomUUID().toString();
+    private final List<Runnable> closers = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        closers.forEach(Runnable::run);
+    }
+
+    @Test
+    void changesFailedToSendAreSentLater() throws Exception {
+        FlakyTransport transport = new FlakyTransport(channel);
+        ReplicatedRegistrationRepository node1 = node(transport);
+        ReplicatedRegistrationRepository node2 = node(new FlakyTransport(channel));
+
+        transport.failing = true;
+        node1.storeAll(TestRegistrations.registrations(0, 10));
+        node1.storeAll(TestRegistrations.registrations(10, 20));
+        assertThat(node1.countCredentials()).isEqualTo(20);
+        assertThat(node2.countCredentials()).isZero();
+
+        transport.failing = false;
+        // retried in the background, in order
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (node2.countCredentials() < 20 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(node2.countCredentials()).isEqualTo(20);
+
+        node1.removeCredential(TestRegistrations.credentialId(3));
+        assertThat(node2.lookupAll(TestRegistrations.credentialId(3))).isEmpty();
+    }
+
+    @Test
+    void nodesConverge() {
+        List<ReplicatedRegistrationRepository> nodes = List.of(
+                node(new FlakyTransport(channel)), node(new FlakyTransport(channel)), node(new FlakyTransport(channel)));
+        for (int i = 0; i < 30; i++) {
+            nodes.get(i % 3).storeAll(TestRegistrations.registrations(i * 10, i * 10 + 10));
+        }
+        nodes.get(1).removeCredential(TestRegistrations.credentialId(5));
+
+        assertThat(nodes).allSatisfy(node -> {
+            assertThat(node.countCredentials()).isEqualTo(299);
+            assertThat(node.lookupAll(TestRegistrations.credentialId(5))).isEmpty();
+            assertThat(node.getUserHandleForUsername(TestRegistrations.username(123)))
+                    .contains(TestRegistrations.userHandle(123));
+        });
+    }
+
+    private ReplicatedRegistrationRepository node(FlakyTransport transport) {
+        ReplicatedRegistrationRepository node = new ReplicatedRegistrationRepository(transport);
+        closers.add(() -> {
+            node.close();
+            transport.delegate.close();
+        });
+        return node;
+    }
+}
@@ -0,0 +1,349 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A passkey authenticator in software, answering the ceremonies like the
+ * browser and e.g. a phone would: creates key pairs, and signs real
+ * assertions with them. Used by the tests, the benchmarks and the load
+ * test instead of a browser.
+ * <p>
+ * One instance is like one device of one user. It keeps the passkeys it
+ * has created, and answers a login without allowed credentials with the
+ * latest one. The rp id and the origin ({@code https://<rp id>}) are taken
+ * from the options, the attestation is "none".
+ * </p>
+ */
+public class SoftwareAuthenticator implements CeremonyClient {
+
+    public enum Algorithm {
+        ES256(-7),
+        EDDSA(-8),
+        RS256(-257);
+
+        final int cose;
+
+        Algorithm(int cose) {
+            this.cose = cose;
+        }
+    }
+
+    private static final ObjectMapper json = new ObjectMapper();
+    private static final Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final byte UP = 0x01;
+    private static final byte UV = 0x04;
+    private static final byte AT = 0x40;
+
+    private record Passkey(ByteArray id, KeyPair keyPair, ByteArray userHandle, AtomicInteger counter) {
+    }
+
+    private final Algorithm algorithm;
+    private final Map<ByteArray, Passkey> passkeys = new ConcurrentHashMap<>();
+    private volatile Passkey latest;
+
+    public SoftwareAuthenticator(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Like {@code navigator.credentials.create}, synchronously.
+     *
+     * @return the JSON of the public key credential
+     */
+    public String register(String optionsJson) {
+        try {
+            JsonNode options = publicKey(optionsJson);
+            if (!offers(options.path("pubKeyCredParams"))) {
+                throw new IllegalArgumentException(algorithm + " is not accepted by the relying party");
+            }
+            String rpId = options.path("rp").path("id").asText();
+            byte[] id = new byte[32];
+            random.nextBytes(id);
+            Passkey passkey = new Passkey(new ByteArray(id), generate(algorithm),
+                    ByteArray.fromBase64Url(options.path("user").path("id").asText()), new AtomicInteger());
+
+            ByteBuffer authData = ByteBuffer.allocate(1024);
+            authData.put(sha256(rpId.getBytes(StandardCharsets.UTF_8)))
+                    .put((byte) (UP | UV | AT))
+                    .putInt(0)
+                    // the aaguid, none
+                    .put(new byte[16])
+                    .putShort((short) id.length)
+                    .put(id)
+                    .put(coseKey(algorithm, passkey.keyPair()));
+            Cbor attestation = new Cbor().map(3)
+                    .text("fmt").text("none")
+                    .text("attStmt").map(0)
+                    .text("authData").bytes(Arrays.copyOf(authData.array(), authData.position()));
+
+            passkeys.put(passkey.id(), passkey);
+            latest = passkey;
+            return ("{\"type\":\"public-key\",\"id\":\"%s\",\"rawId\":\"%1$s\",\"response\":{" +
+                    "\"clientDataJSON\":\"%s\",\"attestationObject\":\"%s\"},\"clientExtensionResults\":{}}")
+                    .formatted(passkey.id().getBase64Url(),
+                            base64.encodeToString(clientData("webauthn.create", options, rpId)),
+                            base64.encodeToString(attestation.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Base64UrlException e) {
+            throw new IllegalArgumentException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Like {@code navigator.credentials.get}, synchronously.
+     *
+     * @return the JSON of the public key credential
+     */
+    public String authenticate(String optionsJson) {
+        try {
+            JsonNode options = publicKey(optionsJson);
+            Passkey passkey = select(options.path("allowCredentials"));
+            String rpId = options.path("rpId").asText();
+            byte[] authData = ByteBuffer.allocate(37)
+                    .put(sha256(rpId.getBytes(StandardCharsets.UTF_8)))
+                    .put((byte) (UP | UV))
+                    .putInt(passkey.counter().incrementAndGet())
+                    .array();
+            byte[] clientData = clientData("webauthn.get", options, rpId);
+
+            Signature signature = Signature.getInstance(switch (algorithm) {
+                case ES256 -> "SHA256withECDSA";
+                case EDDSA -> "Ed25519";
+                case RS256 -> "SHA256withRSA";
+            });
+            signature.initSign(passkey.keyPair().getPrivate());
+            signature.update(authData);
+            signature.update(sha256(clientData));
+
+            return ("{\"type\":\"public-key\",\"id\":\"%s\",\"rawId\":\"%1$s\",\"response\":{" +
+                    "\"clientDataJSON\":\"%s\",\"authenticatorData\":\"%s\",\"signature\":\"%s\"," +
+                    "\"userHandle\":\"%s\"},\"clientExtensionResults\":{}}")
+                    .formatted(passkey.id().getBase64Url(), base64.encodeToString(clientData),
+                            base64.encodeToString(authData), base64.encodeToString(signature.sign()),
+                            passkey.userHandle().getBase64Url());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Base64UrlException e) {
+            throw new IllegalArgumentException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> create(String optionsJson) {
+        // fails like the promise in the browser would
+        return CompletableFuture.supplyAsync(() -> register(optionsJson), Runnable::run);
+    }
+
+    @Override
+    public CompletableFuture<String> get(String optionsJson) {
+        return CompletableFuture.supplyAsync(() -> authenticate(optionsJson), Runnable::run);
+    }
+
+    @Override
+    public PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> registration(String answer) throws IOException {
+        return PublicKeyCredential.parseRegistrationResponseJson(answer);
+    }
+
+    @Override
+    public PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> assertion(String answer) throws IOException {
+        return PublicKeyCredential.parseAssertionResponseJson(answer);
+    }
+
+    /**
+     * @return the COSE encoding of a new public key, e.g. for made up
+     * registrations that are never logged in with
+     */
+    static ByteArray newPublicKeyCose(Algorithm algorithm) {
+        try {
+            return new ByteArray(coseKey(algorithm, generate(algorithm)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonNode publicKey(String optionsJson) throws IOException {
+        JsonNode options = json.readTree(optionsJson);
+        return options.has("publicKey") ? options.get("publicKey") : options;
+    }
+
+    private boolean offers(JsonNode parameters) {
+        for (JsonNode parameter : parameters) {
+            if (parameter.path("alg").asInt() == algorithm.cose) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Passkey select(JsonNode allowCredentials) throws Base64UrlException {
+        if (allowCredentials.isEmpty()) {
+            // discoverable, "the user picks" the latest
+            if (latest == null) {
+                throw new IllegalStateException("No passkeys");
+            }
+            return latest;
+        }
+        for (JsonNode descriptor : allowCredentials) {
+            Passkey passkey = passkeys.get(ByteArray.fromBase64Url(descriptor.path("id").asText()));
+            if (passkey != null) {
+                return passkey;
+            }
+        }
+        throw new IllegalStateException("None of the allowed passkeys is here");
+    }
+
+    private static byte[] clientData(String type, JsonNode options, String rpId) {
+        return ("{\"type\":\"" + type + "\",\"challenge\":\"" + options.path("challenge").asText() +
+                "\",\"origin\":\"https://" + rpId + "\",\"crossOrigin\":false}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static KeyPair generate(Algorithm algorithm) throws GeneralSecurityException {
+        return switch (algorithm) {
+            case ES256 -> {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                yield generator.generateKeyPair();
+            }
+            case EDDSA -> KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+            case RS256 -> {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                yield generator.generateKeyPair();
+            }
+        };
+    }
+
+    private static byte[] coseKey(Algorithm algorithm, KeyPair keyPair) {
+        Cbor key = new Cbor();
+        switch (algorithm) {
+            case ES256 -> {
+                ECPublicKey ec = (ECPublicKey) keyPair.getPublic();
+                key.map(5).integer(1).integer(2).integer(3).integer(algorithm.cose)
+                        .integer(-1).integer(1)
+                        .integer(-2).bytes(unsigned(ec.getW().getAffineX(), 32))
+                        .integer(-3).bytes(unsigned(ec.getW().getAffineY(), 32));
+            }
+            case EDDSA -> {
+                // the raw key is the tail of the X.509 encoding
+                byte[] encoded = keyPair.getPublic().getEncoded();
+                key.map(4).integer(1).integer(1).integer(3).integer(algorithm.cose)
+                        .integer(-1).integer(6)
+                        .integer(-2).bytes(Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length));
+            }
+            case RS256 -> {
+                RSAPublicKey rsa = (RSAPublicKey) keyPair.getPublic();
+                key.map(4).integer(1).integer(3).integer(3).integer(algorithm.cose)
+                        .integer(-1).bytes(unsigned(rsa.getModulus(), 0))
+                        .integer(-2).bytes(unsigned(rsa.getPublicExponent(), 0));
+            }
+        }
+        return key.toByteArray();
+    }
+
+    /**
+     * @param length the length to pad to, or 0 for the minimal one
+     */
+    private static byte[] unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+        int size = Math.max(length, bytes.length - start);
+        byte[] result = new byte[size];
+        System.arraycopy(bytes, start, result, size - (bytes.length - start), bytes.length - start);
+        return result;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Just enough of CBOR for the attestation object and the COSE keys.
+     */
+    private static final class Cbor {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Cbor map(int size) {
+            return head(5, size);
+        }
+
+        Cbor integer(long value) {
+            return value < 0 ? head(1, -1 - value) : head(0, value);
+        }
+
+        Cbor bytes(byte[] value) {
+            head(2, value.length);
+            out.writeBytes(value);
+            return this;
+        }
+
+        Cbor text(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            head(3, utf8.length);
+            out.writeBytes(utf8);
+            return this;
+        }
+
+        private Cbor head(int major, long value) {
+            int type = major << 5;
+            if (value < 24) {
+                out.write(type | (int) value);
+            } else if (value < 0x100) {
+                out.write(type | 24);
+                out.write((int) value);
+            } else if (value < 0x10000) {
+                out.write(type | 25);
+                out.write((int) (value >> 8));
+                out.write((int) value);
+            } else {
+                out.write(type | 26);
+                out.writeBytes(ByteBuffer.allocate(4).putInt((int) value).array());
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SoftwareAuthenticatorTest {
+
+    private final WebAuthnFixture fixture = new WebAuthnFixture();
+
+    @AfterEach
+    void close() throws Exception {
+        fixture.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(SoftwareAuthenticator.Algorithm.class)
+    void registersLogsInAndReauthenticates(SoftwareAuthenticator.Algorithm algorithm) {
+        SoftwareAuthenticator authenticator = new SoftwareAuthenticator(algorithm);
+        WebAuthnSession session = fixture.session(authenticator);
+        session.registerUser("alice").join();
+        assertThat(session.getUsername()).isEqualTo("alice");
+
+        WebAuthnSession other = fixture.session(authenticator);
+        assertThat(other.login().join()).isEqualTo("alice");
+        other.runReauthenticated().join();
+        assertThat(other.isAuthenticatedWithin(1_000_000_000L)).isTrue();
+    }
+
+    @ParameterizedTest
+    @EnumSource(SoftwareAuthenticator.Algorithm.class)
+    void rejectsAnotherDevice(SoftwareAuthenticator.Algorithm algorithm) {
+        fixture.session(new SoftwareAuthenticator(algorithm)).registerUser("bob").join();
+        SoftwareAuthenticator stranger = new SoftwareAuthenticator(algorithm);
+        fixture.session(stranger).registerUser("mallory").join();
+
+        WebAuthnSession session = fixture.session(stranger);
+        session.setUser("bob");
+        // bob's passkey is not on the stranger's device
+        assertThatThrownBy(() -> session.runReauthenticated().join())
+                .hasRootCauseInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,75 @@
+package org.example;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Made up, but valid, registrations for filling repositories in the tests
+ * and the benchmarks. The n:th one is always the same, except for the
+ * public key that is shared by all of them.
+ */
+final class TestRegistrations {
+
+    static final ByteArray PUBLIC_KEY_COSE = SoftwareAuthenticator.newPublicKeyCose(SoftwareAuthenticator.Algorithm.ES256);
+
+    private TestRegistrations() {
+    }
+
+    static String username(int n) {
+        return "user%08d".formatted(n);
+    }
+
+    static ByteArray userHandle(int n) {
+        return id(n, 0x55);
+    }
+
+    static ByteArray credentialId(int n) {
+        return id(n, 0x43);
+    }
+
+    static CredentialRegistration registration(int n) {
+        return registration(username(n), userHandle(n), credentialId(n), PUBLIC_KEY_COSE);
+    }
+
+    static CredentialRegistration registration(String username, ByteArray userHandle,
+                                               ByteArray credentialId, ByteArray publicKeyCose) {
+        return new CredentialRegistration(username,
+                PublicKeyCredentialDescriptor.builder().id(credentialId).build(),
+                RegisteredCredential.builder()
+                        .credentialId(credentialId)
+                        .userHandle(userHandle)
+                        .publicKeyCose(publicKeyCose)
+                        .build());
+    }
+
+    /**
+     * @return the registrations from {@code from} (inclusive) to {@code to} (exclusive)
+     */
+    static List<CredentialRegistration> registrations(int from, int to) {
+        List<CredentialRegistration> registrations = new ArrayList<>(to - from);
+        for (int n = from; n < to; n++) {
+            registrations.add(registration(n));
+        }
+        return registrations;
+    }
+
+    static void fill(RegistrationRepository repository, int count) {
+        for (int from = 0; from < count; from += 10000) {
+            repository.storeAll(registrations(from, Math.min(count, from + 10000)));
+        }
+    }
+
+    private static ByteArray id(int n, int kind) {
+        // 32 bytes like the real ones, unique per n and kind
+        ByteBuffer bytes = ByteBuffer.allocate(32).put((byte) kind).putInt(n);
+        for (int i = bytes.position(); i < 32; i++) {
+            bytes.put((byte) (n * 31 + i));
+        }
+        return new ByteArray(bytes.array());
+    }
+}
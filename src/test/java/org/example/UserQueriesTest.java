@@ -0,0 +1,69 @@
+package org.example;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The user listing queries of the repositories that implement them
+ * themselves, the others delegate to {@link InMemoryRegistrationRepository}.
+ */
+class UserQueriesTest {
+
+    static Stream<Supplier<RegistrationRepository>> repositories() {
+        return Stream.of(
+                InMemoryRegistrationRepository::new,
+                () -> new OffHeapRegistrationRepository(1 << 20, 0),
+                () -> {
+                    DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+                    return new JdbcRegistrationRepository(new JdbcTemplate(dataSource),
+                            new DataSourceTransactionManager(dataSource), 1000, 0, true);
+                });
+    }
+
+    @ParameterizedTest
+    @MethodSource("repositories")
+    void pagesContinueAfterTheLastUsername(Supplier<RegistrationRepository> repositories) {
+        RegistrationRepository repository = repositories.get();
+        TestRegistrations.fill(repository, 250);
+
+        List<String> all = new ArrayList<>();
+        List<String> page = repository.findUsers("", null, 100);
+        while (!page.isEmpty()) {
+            all.addAll(page);
+            page = repository.findUsers("", page.get(page.size() - 1), 100);
+        }
+        assertThat(all).hasSize(250).isSorted().doesNotHaveDuplicates();
+
+        assertThat(repository.findUsers("user0000012", null, 100))
+                .containsExactly(TestRegistrations.registrations(120, 130).stream()
+                        .map(CredentialRegistration::username).toArray(String[]::new));
+        assertThat(repository.findUsers("user000001", TestRegistrations.username(150), 3))
+                .containsExactly(TestRegistrations.username(151), TestRegistrations.username(152),
+                        TestRegistrations.username(153));
+    }
+
+    @ParameterizedTest
+    @MethodSource("repositories")
+    void countsUpToTheLimit(Supplier<RegistrationRepository> repositories) {
+        RegistrationRepository repository = repositories.get();
+        TestRegistrations.fill(repository, 250);
+
+        assertThat(repository.countUsers()).isEqualTo(250);
+        assertThat(repository.countUsers("", 100)).isEqualTo(100);
+        assertThat(repository.countUsers("user000001", 1000)).isEqualTo(100);
+        assertThat(repository.countUsers("user000001", 10)).isEqualTo(10);
+        assertThat(repository.countUsers("nobody", 10)).isZero();
+    }
+}
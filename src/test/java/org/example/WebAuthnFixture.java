@@ -0,0 +1,97 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The services of the app wired by hand, without Spring or Vaadin, for
+ * the tests, the benchmarks and the load test. The rate limits are high
+ * enough not to get in the way, the rest is as configured by default
+ * unless given.
+ */
+public class WebAuthnFixture implements AutoCloseable {
+
+    final RegistrationRepository repository;
+    final InProcessSessionStateStore stateStore = new InProcessSessionStateStore();
+    final CeremonyStore ceremonyStore;
+    final VerificationExecutor verificationExecutor;
+    final RateLimiter rateLimiter;
+    final AuditLog auditLog;
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final WebAuthnMetrics metrics;
+    final CredentialUsageRecorder usageRecorder;
+    final UsernameAvailability usernameAvailability;
+    final MetadataTrustStore trustStore;
+    final CredentialsGetJson credentialsGetJson = new CredentialsGetJson(10000);
+    final WebAuthnService service;
+
+    public WebAuthnFixture() {
+        this(new SecureRandomUserHandleGenerator());
+    }
+
+    public WebAuthnFixture(UserHandleGenerator userHandleGenerator) {
+        this(new InMemoryRegistrationRepository(), new AuditLog("", 8192, "drop", 64 << 20, Duration.ofSeconds(1)),
+                new VerificationExecutor(false, 0, 1000),
+                new RateLimiter(1_000_000, 1_000_000, 1_000_000, 16384), userHandleGenerator);
+    }
+
+    public WebAuthnFixture(RegistrationRepository repository, AuditLog auditLog,
+                           VerificationExecutor verificationExecutor) {
+        this(repository, auditLog, verificationExecutor,
+                new RateLimiter(1_000_000, 1_000_000, 1_000_000, 16384));
+    }
+
+    public WebAuthnFixture(RegistrationRepository repository, AuditLog auditLog,
+                           VerificationExecutor verificationExecutor, RateLimiter rateLimiter) {
+        this(repository, auditLog, verificationExecutor, rateLimiter, new SecureRandomUserHandleGenerator());
+    }
+
+    public WebAuthnFixture(RegistrationRepository repository, AuditLog auditLog,
+                           VerificationExecutor verificationExecutor, RateLimiter rateLimiter,
+                           UserHandleGenerator userHandleGenerator) {
+        this.repository = repository;
+        this.auditLog = auditLog;
+        this.verificationExecutor = verificationExecutor;
+        this.rateLimiter = rateLimiter;
+        ceremonyStore = new CeremonyStore(stateStore, Duration.ofMinutes(5), 1_000_000, 5);
+        metrics = new WebAuthnMetrics(registry, repository, ceremonyStore, verificationExecutor,
+                rateLimiter, auditLog, Duration.ofMinutes(1));
+        usageRecorder = new CredentialUsageRecorder(repository, Duration.ofSeconds(1));
+        usernameAvailability = new UsernameAvailability(repository, 1_000_000, 0.01, Duration.ofMinutes(5));
+        trustStore = new MetadataTrustStore("", "", List.of(), "", 10000, Duration.ofHours(1));
+        service = new WebAuthnService(repository, userHandleGenerator, usageRecorder,
+                metrics, usernameAvailability, trustStore);
+    }
+
+    /**
+     * A new session, like one of a browser tab, answered by the given client.
+     */
+    public WebAuthnSession session(CeremonyClient client) {
+        // the session id comes from the current HTTP request
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        try {
+            return new WebAuthnSession(service, ceremonyStore, verificationExecutor, metrics, stateStore,
+                    credentialsGetJson, client, rateLimiter, auditLog, Duration.ofMinutes(30), Set.of());
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        metrics.close();
+        usageRecorder.close();
+        usernameAvailability.close();
+        trustStore.close();
+        ceremonyStore.close();
+        stateStore.close();
+        verificationExecutor.close();
+        auditLog.close();
+    }
+}
@@ -0,0 +1,126 @@
+package org.example;
+
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.PendingJavaScriptInvocation;
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.UIInitEvent;
+import com.vaadin.flow.server.UIInitListener;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.shared.ui.Dependency;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class WebAuthnSessionTest {
+
+    /**
+     * Like a browser tab where the user never answers.
+     */
+    static class SilentClient implements CeremonyClient {
+
+        @Override
+        public CompletableFuture<String> create(String optionsJson) {
+            return new CompletableFuture<>();
+        }
+
+        @Override
+        public CompletableFuture<String> get(String optionsJson) {
+            return new CompletableFuture<>();
+        }
+
+        @Override
+        public PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> registration(String answer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> assertion(String answer) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final WebAuthnFixture fixture = new WebAuthnFixture();
+
+    @AfterEach
+    void close() throws Exception {
+        UI.setCurrent(null);
+        fixture.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "binary"})
+    void helpersAreLoadedOnceAndCeremoniesSendOnlyData(String transport) {
+        UI ui = newUI();
+        UI.setCurrent(ui);
+        // loaded with the UI, before any ceremony
+        assertThat(ui.getInternals().getDependencyList().getPendingSendToClient())
+                .filteredOn(d -> d.getType() == Dependency.Type.JAVASCRIPT)
+                .extracting(Dependency::getUrl).containsExactly("context://webauthnhelpers.js");
+        WebAuthnSession session = fixture.session(new CredentialResponses(fixture.stateStore, transport, Duration.ofMinutes(5)));
+        session.registerUser("alice");
+        session.login();
+        session.login();
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        List<PendingJavaScriptInvocation> calls = ui.getInternals().dumpPendingJavaScriptInvocations();
+
+        assertThat(calls).hasSize(3);
+        String create = calls.get(0).getInvocation().getExpression();
+        String get = calls.get(1).getInvocation().getExpression();
+        assertThat(create).contains("binary".equals(transport) ? "webauthnCreateBinary(" : "webauthnCreate(");
+        assertThat(get).contains("binary".equals(transport) ? "webauthnGetBinary(" : "webauthnGet(");
+        // the same code for every ceremony, only the arguments differ
+        assertThat(calls.get(2).getInvocation().getExpression()).isEqualTo(get);
+        assertThat(calls).allSatisfy(call -> {
+            String expression = call.getInvocation().getExpression();
+            assertThat(expression).doesNotContain("publicKey", "challenge", "fromB64Cred", "function tb64");
+            assertThat(call.getInvocation().getParameters())
+                    .anySatisfy(p -> assertThat(p).asString().startsWith("{\"publicKey\":"));
+        });
+    }
+
+    /**
+     * A UI initialized like the app does, with the helpers of
+     * {@link WebAuthnScripts}.
+     */
+    private static UI newUI() {
+        VaadinService service = mock(VaadinService.class);
+        new WebAuthnScripts().serviceInit(new ServiceInitEvent(service));
+        ArgumentCaptor<UIInitListener> listener = ArgumentCaptor.forClass(UIInitListener.class);
+        verify(service).addUIInitListener(listener.capture());
+        UI ui = new UI();
+        ui.getInternals().setSession(mock(VaadinSession.class));
+        listener.getValue().uiInit(new UIInitEvent(ui, service));
+        return ui;
+    }
+
+    @Test
+    void ceremoniesOverTheSessionCapAreCountedAsFailures() {
+        WebAuthnSession session = fixture.session(new SilentClient());
+        // the fixture allows 5 pending ceremonies per session
+        for (int i = 0; i < 5; i++) {
+            session.login();
+        }
+        assertThatThrownBy(session::login).isInstanceOf(IllegalStateException.class);
+
+        assertThat(fixture.registry.get("webauthn.ceremony.failures")
+                .tags("ceremony", "login", "exception", "IllegalStateException")
+                .counter().count()).isEqualTo(1);
+    }
+}